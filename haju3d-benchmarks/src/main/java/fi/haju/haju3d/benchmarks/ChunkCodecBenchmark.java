@@ -0,0 +1,69 @@
+package fi.haju.haju3d.benchmarks;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCodec;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.server.world.PerlinNoiseWorldGenerator;
+import org.apache.commons.lang3.SerializationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the mixed chunk at the origin of the seed 42 world with {@link ChunkCodec}, compared to
+ * the Java serialization used by older versions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ChunkCodecBenchmark {
+  private static final int SEED = 42;
+
+  private Chunk chunk;
+  private byte[] encoded;
+  private byte[] serialized;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    PerlinNoiseWorldGenerator generator = new PerlinNoiseWorldGenerator();
+    generator.setSeed(SEED);
+    chunk = generator.generateChunk(new ChunkPosition(0, 0, 0), ChunkCoordinateSystem.DEFAULT.getChunkSizeLog2());
+    encoded = ChunkCodec.encode(chunk);
+    serialized = SerializationUtils.serialize(chunk);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return ChunkCodec.encode(chunk);
+  }
+
+  @Benchmark
+  public Chunk decode() {
+    return ChunkCodec.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return SerializationUtils.serialize(chunk);
+  }
+
+  @Benchmark
+  public Object deserialize() {
+    return SerializationUtils.deserialize(serialized);
+  }
+
+}
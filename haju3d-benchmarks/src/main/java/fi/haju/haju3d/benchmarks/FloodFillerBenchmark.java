@@ -0,0 +1,54 @@
+package fi.haju.haju3d.benchmarks;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.server.world.PerlinNoiseWorldGenerator;
+import fi.haju.haju3d.server.world.utils.FloodFiller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Floater removal on the mixed chunk at the origin of the seed 42 world. Every fill writes the same tiles into the
+ * same target chunk, so the target does not need to be cleared between invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FloodFillerBenchmark {
+  private static final int SEED = 42;
+
+  private FloodFiller filler;
+  private Chunk orig;
+  private Chunk ground;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    PerlinNoiseWorldGenerator generator = new PerlinNoiseWorldGenerator();
+    generator.setSeed(SEED);
+    orig = generator.generateChunk(new ChunkPosition(0, 0, 0), ChunkCoordinateSystem.DEFAULT.getChunkSizeLog2());
+    ground = new Chunk(orig.getSize(), orig.getSeed(), orig.getPosition());
+    filler = new FloodFiller(orig.getSize());
+  }
+
+  @Benchmark
+  public Chunk fill() {
+    filler.fill(ground, orig);
+    return ground;
+  }
+
+}
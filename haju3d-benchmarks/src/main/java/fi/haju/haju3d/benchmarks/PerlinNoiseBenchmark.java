@@ -0,0 +1,65 @@
+package fi.haju.haju3d.benchmarks;
+
+import fi.haju.haju3d.protocol.coordinate.Vector3i;
+import fi.haju.haju3d.server.world.utils.PerlinNoiseGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point queries and block bound queries of the terrain noise, with the same parameters as the world generator.
+ * <p/>
+ * The query position walks through a fixed 64^3 area so that the results cannot be constant folded while the
+ * lattice cache stays warm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PerlinNoiseBenchmark {
+  private static final int SEED = 42;
+  private static final int AREA_MASK = 63;
+  private static final int BLOCK_SIZE = 16;
+
+  private PerlinNoiseGenerator generator;
+  private int counter;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    generator = new PerlinNoiseGenerator(7, 3, SEED);
+  }
+
+  @Benchmark
+  public float getValueAt() {
+    int i = counter++;
+    return generator.getValueAt(i & AREA_MASK, (i >> 6) & AREA_MASK, (i >> 12) & AREA_MASK);
+  }
+
+  @Benchmark
+  public float getMinValue() {
+    return generator.getMinValue(nextCorner(), BLOCK_SIZE);
+  }
+
+  @Benchmark
+  public float getMaxValue() {
+    return generator.getMaxValue(nextCorner(), BLOCK_SIZE);
+  }
+
+  private Vector3i nextCorner() {
+    int i = counter++;
+    return new Vector3i((i & 3) * BLOCK_SIZE, ((i >> 2) & 3) * BLOCK_SIZE, ((i >> 4) & 3) * BLOCK_SIZE);
+  }
+
+}
@@ -0,0 +1,66 @@
+package fi.haju.haju3d.benchmarks;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.server.world.PerlinNoiseWorldGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of a single chunk. With seed 42 the column at x = 0, z = 0 is solid rock below y = -1, mixed at
+ * y = -1 and y = 0, and air above that.
+ * <p/>
+ * The generator is created once per trial, so the noise lattice cache is warm after the warmup iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WorldGeneratorBenchmark {
+  private static final int SEED = 42;
+
+  @Param({"AIR", "ROCK", "MIXED"})
+  public String kind;
+
+  private PerlinNoiseWorldGenerator generator;
+  private ChunkPosition position;
+  private int sizeLog2;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    generator = new PerlinNoiseWorldGenerator();
+    generator.setSeed(SEED);
+    sizeLog2 = ChunkCoordinateSystem.DEFAULT.getChunkSizeLog2();
+    switch (kind) {
+      case "AIR":
+        position = new ChunkPosition(0, 1, 0);
+        break;
+      case "ROCK":
+        position = new ChunkPosition(0, -2, 0);
+        break;
+      default:
+        position = new ChunkPosition(0, 0, 0);
+    }
+  }
+
+  @Benchmark
+  public Chunk generateChunk() {
+    return generator.generateChunk(position, sizeLog2);
+  }
+
+}
@@ -2,6 +2,7 @@ package fi.haju.haju3d.client;
 
 import fi.haju.haju3d.client.ui.ChunkRenderer;
 import fi.haju.haju3d.protocol.Client;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
 import fi.haju.haju3d.protocol.interaction.WorldEdit;
 
 import java.util.List;
@@ -19,4 +20,14 @@ public class ClientImpl implements Client {
     app.getWorldManager().registerWorldEdits(edits);
   }
 
+  @Override
+  public void receiveChunks(List<byte[]> chunks) {
+    app.getWorldManager().receiveChunks(chunks);
+  }
+
+  @Override
+  public void chunksFailed(List<ChunkPosition> positions) {
+    app.getWorldManager().chunksFailed(positions);
+  }
+
 }
@@ -22,15 +22,22 @@ public class ClientRunner {
     ChunkRenderer app = injector.getInstance(ChunkRenderer.class);
 
     final Client client = new ClientImpl(app);
-    Client stub = (Client) UnicastRemoteObject.exportObject(client, 5251);
-    server.login(stub);
+    if (server.isStreaming()) {
+      // the stream connection passes the edits to the client
+      server.login(client);
+    } else {
+      Client stub = (Client) UnicastRemoteObject.exportObject(client, 5251);
+      server.login(stub);
+    }
 
     app.setCloseEventHandler(new CloseEventHandler() {
       @Override
       public void onClose() {
         try {
           server.disconnect(client);
-          UnicastRemoteObject.unexportObject(client, false);
+          if (!server.isStreaming()) {
+            UnicastRemoteObject.unexportObject(client, false);
+          }
         } catch (NoSuchObjectException e) {
           //TODO : Proper error handling
           e.printStackTrace();
@@ -1,53 +1,139 @@
 package fi.haju.haju3d.client.chunk;
 
 import com.google.common.base.Optional;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import fi.haju.haju3d.client.connection.ServerConnector;
 import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
 import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCodec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The chunks of the client, as fetched from the server or pushed by it.
+ * <p/>
+ * Edits to a chunk that has been asked for but has not arrived yet are kept and applied when it arrives, as the
+ * chunk may have been encoded before the edit was made.
+ */
 @Singleton
 public class ChunkProvider {
   private static final Logger LOGGER = LoggerFactory.getLogger(ChunkProvider.class);
 
   private final ServerConnector server;
   private Map<ChunkPosition, Chunk> chunkCache = new ConcurrentHashMap<ChunkPosition, Chunk>();
+  // chunks that have not arrived yet, with the edits made to them meanwhile; guarded by this
+  private final Map<ChunkPosition, List<WorldEdit>> requested = new HashMap<>();
 
   @Inject
   public ChunkProvider(ServerConnector server) {
     this.server = server;
   }
 
-  public List<Chunk> getChunks(List<ChunkPosition> positions) {
-    Collection<ChunkPosition> newPositions = Collections2.filter(positions, new Predicate<ChunkPosition>() {
-      @Override
-      public boolean apply(ChunkPosition v) {
-        return !chunkCache.containsKey(v);
-      }
-    });
-    if (!newPositions.isEmpty()) {
-      List<Chunk> chunks = server.getChunks(Lists.newArrayList(newPositions));
+  public List<Chunk> getChunks(ChunkPosition origin, List<ChunkPosition> positions) {
+    List<ChunkPosition> newPositions = markRequested(positions);
+    if (newPositions.isEmpty()) {
+      return Lists.newArrayList();
+    }
+    try {
+      List<Chunk> chunks = server.getChunks(origin, newPositions);
       for (Chunk c : chunks) {
-        chunkCache.put(c.getPosition(), c);
+        load(c);
       }
       return chunks;
+    } finally {
+      // the positions that were not sent are no longer waited for
+      chunksFailed(newPositions);
+    }
+  }
+
+  /**
+   * Asks the server to push the chunks that are neither loaded nor asked for already. They are loaded as they
+   * arrive, nearest to the origin first.
+   */
+  public void requestChunks(ChunkPosition origin, Collection<ChunkPosition> positions) {
+    List<ChunkPosition> newPositions = markRequested(positions);
+    if (newPositions.isEmpty()) {
+      return;
+    }
+    try {
+      server.requestChunks(origin, newPositions);
+    } catch (RuntimeException e) {
+      chunksFailed(newPositions);
+      throw e;
+    }
+  }
+
+  /**
+   * Loads chunks pushed by the server.
+   */
+  public void receiveChunks(List<byte[]> encoded) {
+    for (byte[] data : encoded) {
+      load(ChunkCodec.decode(data));
     }
-    return Lists.newArrayList();
   }
-  
+
+  /**
+   * Forgets that the chunks were asked for, along with the edits kept for them, so that they can be asked for
+   * again.
+   */
+  public synchronized void chunksFailed(Collection<ChunkPosition> positions) {
+    for (ChunkPosition position : positions) {
+      if (requested.remove(position) != null) {
+        LOGGER.debug("Chunk " + position + " was not sent");
+      }
+    }
+  }
+
+  /**
+   * Cancels the requests of the chunks that have not arrived and are farther than the distance from the position,
+   * so that the server does not resolve chunks the player has moved away from.
+   */
+  public void cancelFarRequests(ChunkPosition position, int distance) {
+    List<ChunkPosition> cancelled = Lists.newArrayList();
+    synchronized (this) {
+      Iterator<ChunkPosition> it = requested.keySet().iterator();
+      while (it.hasNext()) {
+        ChunkPosition p = it.next();
+        if (p.distanceTo(position) > distance) {
+          it.remove();
+          cancelled.add(p);
+        }
+      }
+    }
+    if (!cancelled.isEmpty()) {
+      server.cancelChunks(cancelled);
+    }
+  }
+
+  /**
+   * Applies the edit to the loaded chunk, or keeps it for a chunk that has not arrived yet.
+   */
+  public synchronized void applyEdit(WorldEdit edit) {
+    ChunkPosition position = edit.getPosition().getChunkPosition();
+    Chunk chunk = chunkCache.get(position);
+    if (chunk != null) {
+      apply(chunk, edit);
+      return;
+    }
+    List<WorldEdit> pending = requested.get(position);
+    if (pending != null) {
+      pending.add(edit);
+    }
+  }
+
   public Optional<Chunk> getChunkIfLoaded(ChunkPosition pos) {
     if(chunkCache.containsKey(pos)) {
       return Optional.of(chunkCache.get(pos));
@@ -56,4 +142,31 @@ public class ChunkProvider {
     }
   }
 
+  private synchronized List<ChunkPosition> markRequested(Collection<ChunkPosition> positions) {
+    List<ChunkPosition> newPositions = Lists.newArrayList();
+    for (ChunkPosition position : positions) {
+      if (!chunkCache.containsKey(position) && !requested.containsKey(position)) {
+        requested.put(position, Lists.<WorldEdit>newArrayList());
+        newPositions.add(position);
+      }
+    }
+    return newPositions;
+  }
+
+  private synchronized void load(Chunk chunk) {
+    List<WorldEdit> pending = requested.remove(chunk.getPosition());
+    if (pending != null) {
+      // the edits are in the order the server made them, so the chunk ends up in its latest state
+      for (WorldEdit edit : pending) {
+        apply(chunk, edit);
+      }
+    }
+    chunkCache.put(chunk.getPosition(), chunk);
+  }
+
+  private static void apply(Chunk chunk, WorldEdit edit) {
+    LocalTilePosition tile = edit.getPosition().getTileWithinChunk();
+    chunk.set(tile.x, tile.y, tile.z, edit.getNewTile());
+  }
+
 }
@@ -1,5 +1,8 @@
 package fi.haju.haju3d.client.connection;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Singleton;
 
 import fi.haju.haju3d.protocol.Client;
@@ -8,18 +11,33 @@ import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
 import fi.haju.haju3d.protocol.coordinate.Vector3i;
 import fi.haju.haju3d.protocol.interaction.WorldEdit;
 import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCodec;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Connects to the server with the binary stream protocol, or with RMI if the server does not accept it.
+ */
 @Singleton
 public class ServerConnector implements Server {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ServerConnector.class);
+  private static final String HOST = "localhost";
+  private static final int RMI_PORT = 5250;
+  private static final int STREAM_PORT = 5252;
 
   private Server remoteServer;
+  private StreamConnection stream;
+  private Client client;
 
   public ServerConnector() {
   }
@@ -30,7 +48,14 @@ public class ServerConnector implements Server {
 
   public void connect() {
     try {
-      Registry registry = LocateRegistry.getRegistry(5250);
+      stream = StreamConnection.open(HOST, STREAM_PORT);
+      LOGGER.info("Connected to the stream server at " + STREAM_PORT);
+      return;
+    } catch (IOException e) {
+      LOGGER.info("Could not connect to the stream server, using RMI: " + e);
+    }
+    try {
+      Registry registry = LocateRegistry.getRegistry(RMI_PORT);
       remoteServer = (Server) registry.lookup("haju3d_server");
     } catch (RemoteException e) {
       throw connectionError(e);
@@ -39,11 +64,23 @@ public class ServerConnector implements Server {
     }
   }
 
+  /**
+   * Whether the connection uses the stream protocol, which passes the edits of the server to the client itself.
+   */
+  public boolean isStreaming() {
+    return stream != null;
+  }
+
   @Override
   public void login(Client client) {
     try {
-      remoteServer.login(client);
-    } catch (RemoteException e) {
+      if (stream != null) {
+        stream.login(client);
+      } else {
+        remoteServer.login(client);
+      }
+      this.client = client;
+    } catch (IOException e) {
       throw connectionError(e);
     }
   }
@@ -51,14 +88,25 @@ public class ServerConnector implements Server {
   @Override
   public void logout(Client client) {
     try {
-      remoteServer.logout(client);
-    } catch (RemoteException e) {
+      if (stream != null) {
+        stream.logout();
+      } else {
+        remoteServer.logout(client);
+      }
+    } catch (IOException e) {
       throw connectionError(e);
     }
   }
 
   @Override
   public Chunk getChunk(ChunkPosition position) {
+    if (stream != null) {
+      List<Chunk> chunks = decode(getStreamedChunks(null, Collections.singletonList(position)));
+      if (chunks.isEmpty()) {
+        throw connectionError(new IOException("Chunk " + position + " was not sent"));
+      }
+      return chunks.get(0);
+    }
     try {
       return remoteServer.getChunk(position);
     } catch (RemoteException e) {
@@ -68,6 +116,9 @@ public class ServerConnector implements Server {
 
   @Override
   public List<Chunk> getChunks(Collection<ChunkPosition> positions) {
+    if (stream != null) {
+      return decode(getStreamedChunks(null, positions));
+    }
     try {
       return remoteServer.getChunks(positions);
     } catch (RemoteException e) {
@@ -75,18 +126,99 @@ public class ServerConnector implements Server {
     }
   }
 
+  /**
+   * Fetches chunks on behalf of the logged in client, nearest to the origin first.
+   */
+  public List<Chunk> getChunks(ChunkPosition origin, Collection<ChunkPosition> positions) {
+    if (client == null) {
+      return getChunks(positions);
+    }
+    return getChunks(client, origin, positions);
+  }
+
   @Override
-  public void registerWorldEdits(List<WorldEdit> edits) {
+  public List<Chunk> getChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    return decode(getEncodedChunks(client, origin, positions));
+  }
+
+  @Override
+  public List<byte[]> getEncodedChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    if (stream != null) {
+      return getStreamedChunks(origin, positions);
+    }
     try {
-      remoteServer.registerWorldEdits(edits);
+      return remoteServer.getEncodedChunks(client, origin, positions);
     } catch (RemoteException e) {
       throw connectionError(e);
     }
+  }
+
+  @Override
+  public void requestChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    try {
+      if (stream != null) {
+        stream.requestPushedChunks(origin, positions);
+      } else {
+        remoteServer.requestChunks(client, origin, positions);
+      }
+    } catch (IOException e) {
+      throw connectionError(e);
+    }
+  }
+
+  /**
+   * Requests chunks to be pushed to the logged in client as they become ready, nearest to the origin first.
+   */
+  public void requestChunks(ChunkPosition origin, Collection<ChunkPosition> positions) {
+    if (client == null) {
+      throw new IllegalStateException("Not logged in");
+    }
+    requestChunks(client, origin, positions);
+  }
+
+  /**
+   * Cancels requests of the logged in client for chunks that have not been pushed yet.
+   */
+  public void cancelChunks(Collection<ChunkPosition> positions) {
+    if (client == null) {
+      throw new IllegalStateException("Not logged in");
+    }
+    cancelChunks(client, positions);
+  }
+
+  @Override
+  public void cancelChunks(Client client, Collection<ChunkPosition> positions) {
+    try {
+      if (stream != null) {
+        stream.cancelChunks(positions);
+      } else {
+        remoteServer.cancelChunks(client, positions);
+      }
+    } catch (IOException e) {
+      throw connectionError(e);
+    }
+  }
+
+  @Override
+  public void registerWorldEdits(List<WorldEdit> edits) {
+    try {
+      if (stream != null) {
+        stream.registerWorldEdits(edits);
+      } else {
+        remoteServer.registerWorldEdits(edits);
+      }
+    } catch (IOException e) {
+      throw connectionError(e);
+    }
 
   }
 
   @Override
   public void disconnect(Client client) {
+    if (stream != null) {
+      stream.close();
+      return;
+    }
     try {
       remoteServer.disconnect(client);
     } catch (RemoteException e) {
@@ -94,6 +226,23 @@ public class ServerConnector implements Server {
     }
   }
 
+  private List<byte[]> getStreamedChunks(ChunkPosition origin, Collection<ChunkPosition> positions) {
+    try {
+      ListenableFuture<List<byte[]>> chunks = stream.requestChunks(origin, positions);
+      return Futures.get(chunks, IOException.class);
+    } catch (IOException e) {
+      throw connectionError(e);
+    }
+  }
+
+  private static List<Chunk> decode(List<byte[]> encoded) {
+    List<Chunk> chunks = Lists.newArrayListWithCapacity(encoded.size());
+    for (byte[] data : encoded) {
+      chunks.add(ChunkCodec.decode(data));
+    }
+    return chunks;
+  }
+
   private RuntimeException connectionError(Exception e) {
     return new RuntimeException(e);
   }
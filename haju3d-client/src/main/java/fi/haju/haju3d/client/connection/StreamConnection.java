@@ -0,0 +1,238 @@
+package fi.haju.haju3d.client.connection;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import fi.haju.haju3d.protocol.Client;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.stream.FrameReader;
+import fi.haju.haju3d.protocol.stream.StreamProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection to the stream server of the server, using the binary {@link StreamProtocol}.
+ * <p/>
+ * Chunk requests are sent without waiting for earlier ones to complete. Incoming frames are handled by a thread of
+ * the connection, which collects the encoded chunks of each request and passes the pushed chunks, the chunks that
+ * failed and the edits of the server to the logged in client.
+ */
+public class StreamConnection {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamConnection.class);
+
+  private final SocketChannel channel;
+  private final FrameReader reader;
+  private final AtomicInteger requestIds = new AtomicInteger();
+  private final ConcurrentMap<Integer, Request> requests = new ConcurrentHashMap<>();
+  private volatile Client client;
+  private volatile boolean closed;
+
+  private static final class Request {
+    private final List<byte[]> chunks = Collections.synchronizedList(Lists.<byte[]>newArrayList());
+    private final SettableFuture<List<byte[]>> done = SettableFuture.create();
+  }
+
+  private StreamConnection(SocketChannel channel, FrameReader reader) {
+    this.channel = channel;
+    this.reader = reader;
+  }
+
+  /**
+   * Connects to the server and checks that it speaks the same version of the protocol.
+   */
+  public static StreamConnection open(String host, int port) throws IOException {
+    SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+    try {
+      channel.socket().setTcpNoDelay(true);
+      write(channel, StreamProtocol.hello());
+      FrameReader reader = new FrameReader();
+      ByteBuffer frame;
+      while ((frame = reader.next()) == null) {
+        if (!reader.read(channel)) {
+          throw new IOException("Connection closed by the server");
+        }
+      }
+      if (frame.get() != StreamProtocol.HELLO || !StreamProtocol.isCompatible(frame)) {
+        throw new IOException("Incompatible server");
+      }
+      StreamConnection connection = new StreamConnection(channel, reader);
+      connection.startReading();
+      return connection;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Logs in the client, which then receives the edits to the chunks it asks for.
+   */
+  public void login(Client client) throws IOException {
+    this.client = client;
+    send(StreamProtocol.message(StreamProtocol.LOGIN));
+  }
+
+  public void logout() throws IOException {
+    send(StreamProtocol.message(StreamProtocol.LOGOUT));
+    client = null;
+  }
+
+  /**
+   * Requests the chunks, nearest to the origin first if there is one. The future completes with the chunks that
+   * were not cancelled, encoded with ChunkCodec, once all of them have arrived.
+   */
+  public ListenableFuture<List<byte[]>> requestChunks(ChunkPosition origin, Collection<ChunkPosition> positions)
+      throws IOException {
+    int requestId = requestIds.incrementAndGet();
+    Request request = new Request();
+    requests.put(requestId, request);
+    try {
+      if (closed) {
+        throw new IOException("Connection closed");
+      }
+      send(StreamProtocol.getChunks(requestId, origin, positions));
+    } catch (IOException e) {
+      requests.remove(requestId);
+      throw e;
+    }
+    return request.done;
+  }
+
+  /**
+   * Requests the chunks to be pushed to the logged in client as they become ready, nearest to the origin first.
+   */
+  public void requestPushedChunks(ChunkPosition origin, Collection<ChunkPosition> positions) throws IOException {
+    send(StreamProtocol.requestChunks(origin, positions));
+  }
+
+  public void cancelChunks(Collection<ChunkPosition> positions) throws IOException {
+    send(StreamProtocol.cancelChunks(positions));
+  }
+
+  public void registerWorldEdits(List<WorldEdit> edits) throws IOException {
+    send(StreamProtocol.worldEdits(edits));
+  }
+
+  public void close() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing the stream connection", e);
+    }
+  }
+
+  private void send(ByteBuffer frame) throws IOException {
+    synchronized (channel) {
+      write(channel, frame);
+    }
+  }
+
+  private static void write(SocketChannel channel, ByteBuffer frame) throws IOException {
+    while (frame.hasRemaining()) {
+      channel.write(frame);
+    }
+  }
+
+  private void startReading() {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readFrames();
+      }
+    }, "stream-reader");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void readFrames() {
+    try {
+      do {
+        ByteBuffer frame;
+        while ((frame = reader.next()) != null) {
+          receive(frame);
+        }
+      } while (reader.read(channel));
+    } catch (IOException | RuntimeException e) {
+      if (!closed) {
+        LOGGER.error("Lost the connection to the server", e);
+      }
+    } finally {
+      closed = true;
+      for (Integer requestId : requests.keySet()) {
+        Request request = requests.remove(requestId);
+        if (request != null) {
+          request.done.setException(new IOException("Connection closed"));
+        }
+      }
+    }
+  }
+
+  private void receive(ByteBuffer frame) throws IOException {
+    byte type = frame.get();
+    switch (type) {
+      case StreamProtocol.CHUNK:
+        int requestId = frame.getInt();
+        if (requestId == StreamProtocol.PUSHED) {
+          Client receiver = client;
+          if (receiver != null) {
+            try {
+              receiver.receiveChunks(Collections.singletonList(StreamProtocol.readRemaining(frame)));
+            } catch (RemoteException | RuntimeException e) {
+              LOGGER.error("Error passing chunks to the client", e);
+            }
+          }
+          break;
+        }
+        Request request = requests.get(requestId);
+        if (request != null) {
+          request.chunks.add(StreamProtocol.readRemaining(frame));
+        }
+        break;
+      case StreamProtocol.CHUNKS_DONE:
+        Request done = requests.remove(frame.getInt());
+        if (done != null) {
+          done.done.set(Lists.newArrayList(done.chunks));
+        }
+        break;
+      case StreamProtocol.CHUNKS_FAILED:
+        List<ChunkPosition> failed = StreamProtocol.readPositions(frame);
+        Client failedReceiver = client;
+        if (failedReceiver != null) {
+          try {
+            failedReceiver.chunksFailed(failed);
+          } catch (RemoteException | RuntimeException e) {
+            LOGGER.error("Error passing failed chunks to the client", e);
+          }
+        }
+        break;
+      case StreamProtocol.WORLD_EDITS:
+        List<WorldEdit> edits = StreamProtocol.readWorldEdits(frame);
+        Client receiver = client;
+        if (receiver != null) {
+          try {
+            receiver.registerWorldEdits(edits);
+          } catch (RemoteException | RuntimeException e) {
+            LOGGER.error("Error passing edits to the client", e);
+          }
+        }
+        break;
+      default:
+        throw new IOException("Unknown message type " + type);
+    }
+  }
+
+}
@@ -47,6 +47,7 @@ public class WorldManager {
 
   private volatile boolean running;
   private volatile ChunkPosition position;
+  private ChunkPosition requestedPosition;
 
   private Runnable runnable = new Runnable() {
     @Override
@@ -149,8 +150,21 @@ public class WorldManager {
         }
       }
     });
+    if (!pos.equals(requestedPosition)) {
+      // the meshed chunks need the 3x3x3 chunks around them, the ones farther away are no longer waited for
+      chunkProvider.cancelFarRequests(pos, settings.getChunkRenderDistance() + 3);
+      // the server pushes the chunks nearest first, so meshing starts while the farther ones are generated
+      Set<ChunkPosition> needed = new LinkedHashSet<>();
+      for (ChunkPosition i : indexes) {
+        if (!chunkSpatials.containsKey(i)) {
+          needed.addAll(i.getSurroundingPositions());
+        }
+      }
+      chunkProvider.requestChunks(pos, needed);
+      requestedPosition = pos;
+    }
     for (ChunkPosition i : indexes) {
-      if (chunkSpatials.containsKey(i)) {
+      if (chunkSpatials.containsKey(i) || !isLoaded(i.getSurroundingPositions())) {
         continue;
       }
       makeChunkAt(i);
@@ -158,16 +172,27 @@ public class WorldManager {
     }
   }
 
+  private boolean isLoaded(List<ChunkPosition> positions) {
+    for (ChunkPosition p : positions) {
+      if (!chunkProvider.getChunkIfLoaded(p).isPresent()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public void rebuildChunkSpatial(ChunkSpatial spatial) {
     builder.rebuildChunkSpatial(world, spatial);
   }
 
   private void makeChunkAt(ChunkPosition chunkPosition) {
     // need 3x3 chunks around meshing area so that mesh borders can be handled correctly
-    List<Chunk> chunks = chunkProvider.getChunks(chunkPosition.getSurroundingPositions());
-    for (Chunk c : chunks) {
-      lightingManager.updateChunkLigh(c);
-      world.setChunk(c.getPosition(), c);
+    for (ChunkPosition p : chunkPosition.getSurroundingPositions()) {
+      if (!world.hasChunk(p)) {
+        Chunk c = chunkProvider.getChunkIfLoaded(p).get();
+        lightingManager.updateChunkLigh(c);
+        world.setChunk(p, c);
+      }
     }
     ChunkSpatial spatial = builder.makeChunkSpatial(world, chunkPosition);
     chunkSpatials.put(chunkPosition, spatial);
@@ -205,6 +230,18 @@ public class WorldManager {
     return chunkCoordinateSystem.getChunkSize();
   }
 
+  public void receiveChunks(List<byte[]> chunks) {
+    chunkProvider.receiveChunks(chunks);
+  }
+
+  /**
+   * Forgets the requests of chunks the server could not resolve, so that they are requested again when the
+   * position changes.
+   */
+  public void chunksFailed(List<ChunkPosition> positions) {
+    chunkProvider.chunksFailed(positions);
+  }
+
   public void registerWorldEdits(List<WorldEdit> edits) {
     Set<ChunkPosition> spatialsToUpdate = new HashSet<>();
     for (WorldEdit edit : edits) {
@@ -215,6 +252,11 @@ public class WorldManager {
       int y = tile.getTileWithinChunk().y;
       int z = tile.getTileWithinChunk().z;
 
+      if (chunk == null) {
+        // not meshed yet, it is lit when it is added to the world
+        chunkProvider.applyEdit(edit);
+        continue;
+      }
       chunk.set(x, y, z, edit.getNewTile());
       Set<ChunkPosition> toBeUpdated = Sets.newHashSet(tile.getChunkPosition());
 
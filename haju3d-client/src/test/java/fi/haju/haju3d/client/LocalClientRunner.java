@@ -16,14 +16,15 @@ public class LocalClientRunner {
     Injector serverInjector = Guice.createInjector(new ServerModule());
 
     final ServerImpl server = serverInjector.getInstance(ServerImpl.class);
-    clientInjector.getInstance(ServerConnector.class).setRemoteServer(server);
+    ServerConnector connector = clientInjector.getInstance(ServerConnector.class);
+    connector.setRemoteServer(server);
 
     server.start();
 
     ChunkRenderer app = clientInjector.getInstance(ChunkRenderer.class);
 
     Client client = new ClientImpl(app);
-    server.login(client);
+    connector.login(client);
     app.start();
   }
 }
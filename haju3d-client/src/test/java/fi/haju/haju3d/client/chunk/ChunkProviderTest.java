@@ -0,0 +1,97 @@
+package fi.haju.haju3d.client.chunk;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.client.connection.ServerConnector;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCodec;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ChunkProviderTest {
+  private static final ChunkPosition POSITION = new ChunkPosition(1, 0, 0);
+
+  private static class RecordingConnector extends ServerConnector {
+    private final List<ChunkPosition> requested = Lists.newArrayList();
+    private final List<ChunkPosition> cancelled = Lists.newArrayList();
+
+    @Override
+    public void requestChunks(ChunkPosition origin, Collection<ChunkPosition> positions) {
+      requested.addAll(positions);
+    }
+
+    @Override
+    public void cancelChunks(Collection<ChunkPosition> positions) {
+      cancelled.addAll(positions);
+    }
+  }
+
+  @Test
+  public void testEditsToRequestedChunksAreAppliedWhenTheyArrive() {
+    ChunkProvider provider = new ChunkProvider(new RecordingConnector());
+    provider.requestChunks(POSITION, Collections.singletonList(POSITION));
+    provider.applyEdit(edit(POSITION, Tile.BRICK));
+    provider.applyEdit(edit(new ChunkPosition(5, 0, 0), Tile.BRICK));
+
+    provider.receiveChunks(Collections.singletonList(ChunkCodec.encode(new Chunk(8, 0, POSITION))));
+    assertEquals(Tile.BRICK, provider.getChunkIfLoaded(POSITION).get().get(1, 2, 3));
+    assertFalse(provider.getChunkIfLoaded(new ChunkPosition(5, 0, 0)).isPresent());
+
+    provider.applyEdit(edit(POSITION, Tile.WOOD));
+    assertEquals(Tile.WOOD, provider.getChunkIfLoaded(POSITION).get().get(1, 2, 3));
+  }
+
+  @Test
+  public void testFailedChunksAreRequestedAgain() {
+    RecordingConnector server = new RecordingConnector();
+    ChunkProvider provider = new ChunkProvider(server);
+    provider.requestChunks(POSITION, Collections.singletonList(POSITION));
+    provider.requestChunks(POSITION, Collections.singletonList(POSITION));
+    assertEquals(Lists.newArrayList(POSITION), server.requested);
+
+    provider.chunksFailed(Collections.singletonList(POSITION));
+    provider.requestChunks(POSITION, Collections.singletonList(POSITION));
+    assertEquals(Lists.newArrayList(POSITION, POSITION), server.requested);
+  }
+
+  @Test
+  public void testEditsThatOvertakeAStaleChunkAreNotLost() {
+    ChunkProvider provider = new ChunkProvider(new RecordingConnector());
+    provider.requestChunks(POSITION, Collections.singletonList(POSITION));
+    // encoded by the server before the edits were made
+    byte[] stale = ChunkCodec.encode(new Chunk(8, 0, POSITION));
+    provider.applyEdit(edit(POSITION, Tile.BRICK));
+    provider.applyEdit(edit(POSITION, Tile.WOOD));
+    provider.receiveChunks(Collections.singletonList(stale));
+    assertEquals(Tile.WOOD, provider.getChunkIfLoaded(POSITION).get().get(1, 2, 3));
+  }
+
+  @Test
+  public void testFarRequestsAreCancelled() {
+    RecordingConnector server = new RecordingConnector();
+    ChunkProvider provider = new ChunkProvider(server);
+    ChunkPosition far = new ChunkPosition(5, 0, 0);
+    provider.requestChunks(POSITION, Lists.newArrayList(POSITION, far));
+    provider.cancelFarRequests(new ChunkPosition(0, 0, 0), 2);
+    assertEquals(Lists.newArrayList(far), server.cancelled);
+
+    // a cancelled chunk is requested again when it is needed
+    provider.requestChunks(far, Lists.newArrayList(POSITION, far));
+    assertEquals(Lists.newArrayList(POSITION, far, far), server.requested);
+  }
+
+  private static WorldEdit edit(ChunkPosition chunk, Tile tile) {
+    return new WorldEdit(new TilePosition(chunk, new LocalTilePosition(1, 2, 3)), tile);
+  }
+
+}
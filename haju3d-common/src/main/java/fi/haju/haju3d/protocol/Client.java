@@ -1,5 +1,6 @@
 package fi.haju.haju3d.protocol;
 
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
 import fi.haju.haju3d.protocol.interaction.WorldEdit;
 
 import java.rmi.Remote;
@@ -8,4 +9,16 @@ import java.util.List;
 
 public interface Client extends Remote {
   void registerWorldEdits(List<WorldEdit> edits) throws RemoteException;
+
+  /**
+   * Receives chunks requested with {@link Server#requestChunks} as they become ready, encoded with
+   * {@link fi.haju.haju3d.protocol.world.ChunkCodec}.
+   */
+  void receiveChunks(List<byte[]> chunks) throws RemoteException;
+
+  /**
+   * Told that chunks requested with {@link Server#requestChunks} could not be resolved and will not be sent, so
+   * that they can be requested again.
+   */
+  void chunksFailed(List<ChunkPosition> positions) throws RemoteException;
 }
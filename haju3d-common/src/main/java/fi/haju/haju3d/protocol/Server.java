@@ -18,6 +18,28 @@ public interface Server extends Remote {
 
   List<Chunk> getChunks(Collection<ChunkPosition> positions) throws RemoteException;
 
+  /**
+   * Returns the chunks at the given positions, generating the ones nearest to the origin (usually the chunk
+   * the player is in) first. Positions cancelled with {@link #cancelChunks} while waiting are left out.
+   */
+  List<Chunk> getChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions) throws RemoteException;
+
+  /**
+   * Like {@link #getChunks(Client, ChunkPosition, Collection)}, but returns the chunks encoded with
+   * {@link fi.haju.haju3d.protocol.world.ChunkCodec}, which is much smaller to send than the serialized chunks.
+   */
+  List<byte[]> getEncodedChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions)
+      throws RemoteException;
+
+  /**
+   * Resolves the chunks and returns without waiting for them. Each chunk is pushed to the client with
+   * {@link Client#receiveChunks} as soon as it is ready, nearest to the origin first, unless it is cancelled with
+   * {@link #cancelChunks} before that. The client must be logged in.
+   */
+  void requestChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions) throws RemoteException;
+
+  void cancelChunks(Client client, Collection<ChunkPosition> positions) throws RemoteException;
+
   void registerWorldEdits(List<WorldEdit> edits) throws RemoteException;
 
   void disconnect(Client client) throws RemoteException;
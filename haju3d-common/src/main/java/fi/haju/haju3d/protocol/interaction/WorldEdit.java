@@ -1,5 +1,6 @@
 package fi.haju.haju3d.protocol.interaction;
 
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
 import fi.haju.haju3d.protocol.coordinate.TilePosition;
 import fi.haju.haju3d.protocol.world.Tile;
 
@@ -24,4 +25,24 @@ public class WorldEdit implements Serializable {
   public Tile getNewTile() {
     return newTile;
   }
+
+  /**
+   * Whether the edit has a new tile and a position within a chunk of the given size.
+   */
+  public boolean isValid(int chunkSize) {
+    if (newTile == null || position == null || position.getChunkPosition() == null) {
+      return false;
+    }
+    LocalTilePosition tile = position.getTileWithinChunk();
+    return tile != null && tile.x >= 0 && tile.x < chunkSize && tile.y >= 0 && tile.y < chunkSize
+        && tile.z >= 0 && tile.z < chunkSize;
+  }
+
+  @Override
+  public String toString() {
+    if (position == null) {
+      return "edit to " + newTile;
+    }
+    return "edit of " + position.getTileWithinChunk() + " in chunk " + position.getChunkPosition() + " to " + newTile;
+  }
 }
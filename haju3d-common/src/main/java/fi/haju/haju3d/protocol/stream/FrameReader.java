@@ -0,0 +1,61 @@
+package fi.haju.haju3d.protocol.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the bytes read from a channel into the frames of the {@link StreamProtocol}.
+ */
+public final class FrameReader {
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+
+  // in write mode between calls
+  private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+  /**
+   * Reads what the channel has available. Returns false at the end of the stream.
+   */
+  public boolean read(ReadableByteChannel channel) throws IOException {
+    if (!buffer.hasRemaining()) {
+      grow();
+    }
+    return channel.read(buffer) >= 0;
+  }
+
+  /**
+   * Returns the next complete frame positioned at its message type, or null if it has not been read yet.
+   */
+  public ByteBuffer next() throws IOException {
+    buffer.flip();
+    try {
+      if (buffer.remaining() < 4) {
+        return null;
+      }
+      int length = buffer.getInt(buffer.position());
+      if (length < 1 || length > StreamProtocol.MAX_FRAME_BYTES) {
+        throw new IOException("Invalid frame length " + length);
+      }
+      if (buffer.remaining() < 4 + length) {
+        return null;
+      }
+      buffer.position(buffer.position() + 4);
+      byte[] frame = new byte[length];
+      buffer.get(frame);
+      return ByteBuffer.wrap(frame);
+    } finally {
+      buffer.compact();
+    }
+  }
+
+  private void grow() throws IOException {
+    if (buffer.capacity() >= StreamProtocol.MAX_FRAME_BYTES + 4) {
+      throw new IOException("Frame too large");
+    }
+    ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, StreamProtocol.MAX_FRAME_BYTES + 4));
+    buffer.flip();
+    larger.put(buffer);
+    buffer = larger;
+  }
+
+}
@@ -0,0 +1,222 @@
+package fi.haju.haju3d.protocol.stream;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.protocol.world.Tile;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary protocol for streaming chunks over a socket, as an alternative to RMI.
+ * <p/>
+ * Every message is a frame (big endian):
+ * <pre>
+ * int     length of the rest of the frame
+ * byte    message type
+ * ...     payload of the type
+ * </pre>
+ * The client starts with {@link #HELLO} and the server answers with one. After that messages can be sent in any
+ * order without waiting for answers. Chunk requests carry an id chosen by the client; the server sends a
+ * {@link #CHUNK} for each chunk as soon as it is ready, in no particular order, and {@link #CHUNKS_DONE} when the
+ * request is complete. Chunks cancelled while waiting are not sent. Chunks can also be requested to be pushed,
+ * which sends each of them with the request id {@link #PUSHED} and no {@link #CHUNKS_DONE}, and a
+ * {@link #CHUNKS_FAILED} for the pushed chunks that could not be resolved. Payloads:
+ * <pre>
+ * HELLO          int magic, int version
+ * LOGIN, LOGOUT  nothing; a logged in connection receives the edits to the chunks it asks for
+ * GET_CHUNKS     int request id, byte 1 if an origin follows, origin, int count, positions
+ * REQUEST_CHUNKS byte 1 if an origin follows, origin, int count, positions
+ * CANCEL_CHUNKS  int count, positions
+ * WORLD_EDITS    int count, edits: chunk position, byte x, y, z within the chunk, byte tile ordinal
+ * CHUNK          int request id, the chunk encoded with ChunkCodec
+ * CHUNKS_DONE    int request id
+ * CHUNKS_FAILED  int count, positions
+ * </pre>
+ * Positions are three ints. The server accepts edits only from logged in connections, and only within the chunk
+ * size of {@link ChunkCoordinateSystem#DEFAULT}.
+ */
+public final class StreamProtocol {
+  public static final int MAGIC = 0x484A3353;
+  public static final int VERSION = 1;
+  public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+  public static final byte HELLO = 1;
+  public static final byte LOGIN = 2;
+  public static final byte LOGOUT = 3;
+  public static final byte GET_CHUNKS = 4;
+  public static final byte CANCEL_CHUNKS = 5;
+  public static final byte WORLD_EDITS = 6;
+  public static final byte CHUNK = 7;
+  public static final byte CHUNKS_DONE = 8;
+  public static final byte REQUEST_CHUNKS = 9;
+  public static final byte CHUNKS_FAILED = 10;
+
+  /**
+   * The request id of pushed chunks.
+   */
+  public static final int PUSHED = 0;
+
+  private static final int HEADER_BYTES = 5;
+  private static final int POSITION_BYTES = 12;
+  private static final int EDIT_BYTES = POSITION_BYTES + 4;
+  private static final Tile[] TILES = Tile.values();
+
+  private StreamProtocol() {
+  }
+
+  public static ByteBuffer hello() {
+    return finish(frame(HELLO, 8).putInt(MAGIC).putInt(VERSION));
+  }
+
+  /**
+   * Whether the payload of a {@link #HELLO} is of this version of the protocol.
+   */
+  public static boolean isCompatible(ByteBuffer hello) {
+    return hello.remaining() == 8 && hello.getInt() == MAGIC && hello.getInt() == VERSION;
+  }
+
+  public static ByteBuffer message(byte type) {
+    return finish(frame(type, 0));
+  }
+
+  public static ByteBuffer getChunks(int requestId, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    ByteBuffer frame = frame(GET_CHUNKS, 4 + getRequestBytes(origin, positions));
+    frame.putInt(requestId);
+    return finish(putRequest(frame, origin, positions));
+  }
+
+  public static ByteBuffer requestChunks(ChunkPosition origin, Collection<ChunkPosition> positions) {
+    return finish(putRequest(frame(REQUEST_CHUNKS, getRequestBytes(origin, positions)), origin, positions));
+  }
+
+  public static ByteBuffer cancelChunks(Collection<ChunkPosition> positions) {
+    return finish(putPositions(frame(CANCEL_CHUNKS, 4 + positions.size() * POSITION_BYTES), positions));
+  }
+
+  public static ByteBuffer worldEdits(List<WorldEdit> edits) {
+    ByteBuffer frame = frame(WORLD_EDITS, 4 + edits.size() * EDIT_BYTES);
+    frame.putInt(edits.size());
+    for (WorldEdit edit : edits) {
+      putPosition(frame, edit.getPosition().getChunkPosition());
+      LocalTilePosition tile = edit.getPosition().getTileWithinChunk();
+      frame.put((byte) tile.x).put((byte) tile.y).put((byte) tile.z).put((byte) edit.getNewTile().ordinal());
+    }
+    return finish(frame);
+  }
+
+  /**
+   * A chunk sent for a request, already encoded with ChunkCodec. The frame is in two parts, the header and the
+   * encoded chunk as it is, so that a shared encoding does not need to be copied.
+   */
+  public static ByteBuffer[] chunk(int requestId, byte[] encoded) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 4);
+    header.putInt(1 + 4 + encoded.length).put(CHUNK).putInt(requestId);
+    return new ByteBuffer[] {finish(header), ByteBuffer.wrap(encoded)};
+  }
+
+  public static ByteBuffer chunksDone(int requestId) {
+    return finish(frame(CHUNKS_DONE, 4).putInt(requestId));
+  }
+
+  public static ByteBuffer chunksFailed(Collection<ChunkPosition> positions) {
+    return finish(putPositions(frame(CHUNKS_FAILED, 4 + positions.size() * POSITION_BYTES), positions));
+  }
+
+  public static ChunkPosition readPosition(ByteBuffer payload) {
+    return new ChunkPosition(payload.getInt(), payload.getInt(), payload.getInt());
+  }
+
+  public static List<ChunkPosition> readPositions(ByteBuffer payload) {
+    int count = readCount(payload, POSITION_BYTES);
+    List<ChunkPosition> positions = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      positions.add(readPosition(payload));
+    }
+    return positions;
+  }
+
+  public static List<WorldEdit> readWorldEdits(ByteBuffer payload) {
+    int count = readCount(payload, EDIT_BYTES);
+    List<WorldEdit> edits = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      ChunkPosition chunk = readPosition(payload);
+      LocalTilePosition tile = new LocalTilePosition(payload.get() & 0xff, payload.get() & 0xff, payload.get() & 0xff);
+      int ordinal = payload.get() & 0xff;
+      if (ordinal >= TILES.length) {
+        throw new IllegalArgumentException("Unknown tile " + ordinal);
+      }
+      WorldEdit edit = new WorldEdit(new TilePosition(chunk, tile), TILES[ordinal]);
+      if (!edit.isValid(ChunkCoordinateSystem.DEFAULT.getChunkSize())) {
+        throw new IllegalArgumentException("Invalid " + edit);
+      }
+      edits.add(edit);
+    }
+    return edits;
+  }
+
+  /**
+   * Reads the origin of a chunk request, or null if it has none.
+   */
+  public static ChunkPosition readOrigin(ByteBuffer payload) {
+    return payload.get() != 0 ? readPosition(payload) : null;
+  }
+
+  /**
+   * Reads the rest of the payload, such as the encoded chunk of a {@link #CHUNK}.
+   */
+  public static byte[] readRemaining(ByteBuffer payload) {
+    byte[] data = new byte[payload.remaining()];
+    payload.get(data);
+    return data;
+  }
+
+  private static int readCount(ByteBuffer payload, int bytesEach) {
+    int count = payload.getInt();
+    if (count < 0 || (long) count * bytesEach > payload.remaining()) {
+      throw new IllegalArgumentException("Invalid count " + count);
+    }
+    return count;
+  }
+
+  private static ByteBuffer frame(byte type, int payloadBytes) {
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+    frame.putInt(1 + payloadBytes).put(type);
+    return frame;
+  }
+
+  private static ByteBuffer finish(ByteBuffer frame) {
+    frame.flip();
+    return frame;
+  }
+
+  private static int getRequestBytes(ChunkPosition origin, Collection<ChunkPosition> positions) {
+    return 1 + (origin == null ? 0 : POSITION_BYTES) + 4 + positions.size() * POSITION_BYTES;
+  }
+
+  private static ByteBuffer putRequest(ByteBuffer frame, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    frame.put((byte) (origin == null ? 0 : 1));
+    if (origin != null) {
+      putPosition(frame, origin);
+    }
+    return putPositions(frame, positions);
+  }
+
+  private static void putPosition(ByteBuffer frame, ChunkPosition position) {
+    frame.putInt(position.x).putInt(position.y).putInt(position.z);
+  }
+
+  private static ByteBuffer putPositions(ByteBuffer frame, Collection<ChunkPosition> positions) {
+    frame.putInt(positions.size());
+    for (ChunkPosition position : positions) {
+      putPosition(frame, position);
+    }
+    return frame;
+  }
+
+}
@@ -24,6 +24,19 @@ public final class ByteArray3d implements Serializable {
     this.data = new byte[width * height * depth];
   }
 
+  /**
+   * Wraps existing data laid out as x + z * width + y * width * depth.
+   */
+  public ByteArray3d(int width, int height, int depth, byte[] data) {
+    if (data.length != width * height * depth) {
+      throw new IllegalArgumentException("Expected " + width * height * depth + " values, got " + data.length);
+    }
+    this.width = width;
+    this.height = height;
+    this.depth = depth;
+    this.data = data;
+  }
+
   public void set(GetValue getValue) {
     for (int x = 0; x < width; x++) {
       for (int y = 0; y < height; y++) {
@@ -14,11 +14,14 @@ public final class Chunk implements Serializable {
   private static final long serialVersionUID = 5L;
 
   private ByteArray3d tiles;
+  // allocated on the first color set, all colors are zero until then
   private ByteArray3d colors;
   private final int seed;
   private final ChunkPosition position;
   private Tile tile;
   private final int size;
+  // counts the changes made with the setters, so that encoded copies of the chunk can be told apart
+  private transient int version;
 
   private final static Map<Byte, Tile> byteToTile = new HashMap<>();
   private final static Map<Tile, Byte> tileToByte = new HashMap<>();
@@ -38,7 +41,19 @@ public final class Chunk implements Serializable {
     this.seed = seed;
     this.position = position;
     this.tiles = new ByteArray3d(size, size, size);
-    this.colors = new ByteArray3d(size, size, size);
+    this.colors = null;
+    this.tile = null;
+    this.size = size;
+  }
+
+  /**
+   * Chunk that takes ownership of the given tile and color arrays. Colors can be null if they are all zero.
+   */
+  public Chunk(int size, int seed, ChunkPosition position, ByteArray3d tiles, ByteArray3d colors) {
+    this.seed = seed;
+    this.position = position;
+    this.tiles = tiles;
+    this.colors = colors;
     this.tile = null;
     this.size = size;
   }
@@ -68,15 +83,16 @@ public final class Chunk implements Serializable {
   public void set(int x, int y, int z, Tile value) {
     if (tiles == null) { //Changing a constant chunk -> convert
       this.tiles = new ByteArray3d(size, size, size);
-      this.colors = new ByteArray3d(size, size, size);
       tiles.fill(tileToByte.get(tile));
       tile = null;
     }
     tiles.set(x, y, z, tileToByte.get(value));
+    version++;
   }
 
   public void setColor(int x, int y, int z, float color) {
-    colors.set(x, y, z, (byte) (color * 127f));
+    getOrCreateColors().set(x, y, z, (byte) (color * 127f));
+    version++;
   }
 
   public boolean isInside(int x, int y, int z) {
@@ -99,7 +115,7 @@ public final class Chunk implements Serializable {
   }
 
   public float getColor(int x, int y, int z) {
-    return tile != null ? 0.0f : colors.get(x, y, z) / 127f;
+    return tile != null || colors == null ? 0.0f : colors.get(x, y, z) / 127f;
   }
 
   public boolean hasLight() {
@@ -118,6 +134,13 @@ public final class Chunk implements Serializable {
     return position;
   }
 
+  /**
+   * Returns the number of changes made to the chunk with the setters since it was created.
+   */
+  public int getVersion() {
+    return version;
+  }
+
   public List<LocalTilePosition> getNeighbours(LocalTilePosition pos) {
     if (!isWithin(pos)) {
       throw new IllegalArgumentException(pos + " is not within the chunk, chunkSize = " + size);
@@ -142,4 +165,18 @@ public final class Chunk implements Serializable {
   public ByteArray3d getTiles() {
     return tiles;
   }
+
+  /**
+   * Returns the colors, or null if the chunk is constant or no color has been set.
+   */
+  public ByteArray3d getColors() {
+    return colors;
+  }
+
+  public ByteArray3d getOrCreateColors() {
+    if (colors == null) {
+      colors = new ByteArray3d(size, size, size);
+    }
+    return colors;
+  }
 }
@@ -0,0 +1,304 @@
+package fi.haju.haju3d.protocol.world;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of chunks.
+ * <p/>
+ * Layout (version 1, big endian):
+ * <pre>
+ * short   magic 0x4843
+ * byte    version
+ * byte    flags: 1 = constant, 2 = has colors
+ * int     size, seed, x, y, z
+ * constant chunks:
+ *   byte  tile ordinal
+ * other chunks:
+ *   byte  palette length, followed by the tile ordinals of the palette
+ *   runs of tiles in the ByteArray3d order: varint run length, byte palette index
+ *   runs of colors if the chunk has colors: varint run length, byte color
+ * </pre>
+ * The encoding is not compressed beyond the runs; callers storing or sending it can compress it further.
+ */
+public final class ChunkCodec {
+  public static final int VERSION = 1;
+
+  private static final int MAGIC = 0x4843;
+  private static final int FLAG_CONSTANT = 1;
+  private static final int FLAG_COLORS = 2;
+  private static final Tile[] TILES = Tile.values();
+  private static final int FILLED_LENGTH = 64;
+  // arrays filled with each byte value, to copy short runs from
+  private static final byte[][] FILLED = new byte[256][FILLED_LENGTH];
+
+  static {
+    for (int i = 0; i < FILLED.length; i++) {
+      Arrays.fill(FILLED[i], (byte) i);
+    }
+  }
+
+  private ChunkCodec() {
+  }
+
+  /**
+   * Whether the data starts like an encoded chunk of any version.
+   */
+  public static boolean isEncodedChunk(byte[] data) {
+    return data.length >= 2 && (((data[0] & 0xff) << 8) | (data[1] & 0xff)) == MAGIC;
+  }
+
+  public static byte[] encode(Chunk chunk) {
+    int size = chunk.getSize();
+    ChunkPosition position = chunk.getPosition();
+    ByteArray3d tiles = chunk.getTiles();
+    ByteArray3d colors = chunk.getColors();
+    boolean constant = tiles == null;
+    boolean hasColors = !constant && colors != null && !isZero(colors.getData());
+    Writer out = new Writer(constant ? 32 : 1024);
+    out.writeShort(MAGIC);
+    out.writeByte(VERSION);
+    out.writeByte((constant ? FLAG_CONSTANT : 0) | (hasColors ? FLAG_COLORS : 0));
+    out.writeInt(size);
+    out.writeInt(chunk.getSeed());
+    out.writeInt(position.x);
+    out.writeInt(position.y);
+    out.writeInt(position.z);
+    if (constant) {
+      out.writeByte(chunk.get(0, 0, 0).ordinal());
+      return out.toByteArray();
+    }
+    byte[] tileData = tiles.getData();
+    // the palette is known only after the runs have been found
+    int[] runEnds = findRuns(tileData);
+    byte[] paletteIndex = new byte[TILES.length];
+    Arrays.fill(paletteIndex, (byte) -1);
+    byte[] palette = new byte[TILES.length];
+    int paletteLength = 0;
+    for (int run = 0, start = 0; run < runEnds.length; start = runEnds[run++]) {
+      byte tile = tileData[start];
+      if (paletteIndex[tile] < 0) {
+        paletteIndex[tile] = (byte) paletteLength;
+        palette[paletteLength++] = tile;
+      }
+    }
+    out.writeByte(paletteLength);
+    for (int i = 0; i < paletteLength; i++) {
+      out.writeByte(palette[i]);
+    }
+    writeRuns(out, tileData, runEnds, paletteIndex);
+    if (hasColors) {
+      byte[] colorData = colors.getData();
+      writeRuns(out, colorData, findRuns(colorData), null);
+    }
+    return out.toByteArray();
+  }
+
+  public static Chunk decode(byte[] data) {
+    Reader in = new Reader(data);
+    if (in.readShort() != MAGIC) {
+      throw new IllegalArgumentException("Not an encoded chunk");
+    }
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported chunk encoding version " + version);
+    }
+    int flags = in.readByte();
+    int size = in.readInt();
+    int seed = in.readInt();
+    ChunkPosition position = new ChunkPosition(in.readInt(), in.readInt(), in.readInt());
+    if ((flags & FLAG_CONSTANT) != 0) {
+      return new Chunk(size, seed, position, getTile(in.readByte()));
+    }
+    int paletteLength = in.readByte();
+    byte[] palette = new byte[paletteLength];
+    for (int i = 0; i < paletteLength; i++) {
+      palette[i] = (byte) getTile(in.readByte()).ordinal();
+    }
+    ByteArray3d tiles = new ByteArray3d(size, size, size);
+    readRuns(in, tiles.getData(), palette);
+    ByteArray3d colors = null;
+    if ((flags & FLAG_COLORS) != 0) {
+      colors = new ByteArray3d(size, size, size);
+      readRuns(in, colors.getData(), null);
+    }
+    return new Chunk(size, seed, position, tiles, colors);
+  }
+
+  /**
+   * Returns the end index of each run of equal values.
+   */
+  private static int[] findRuns(byte[] values) {
+    ByteBuffer words = ByteBuffer.wrap(values);
+    int[] ends = new int[256];
+    int count = 0;
+    int start = 0;
+    while (start < values.length) {
+      byte value = values[start];
+      long pattern = (value & 0xffL) * 0x0101010101010101L;
+      int end = start + 1;
+      // skip over long runs eight values at a time
+      while (end + 8 <= values.length && words.getLong(end) == pattern) {
+        end += 8;
+      }
+      while (end < values.length && values[end] == value) {
+        end++;
+      }
+      if (count == ends.length) {
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      ends[count++] = end;
+      start = end;
+    }
+    return Arrays.copyOf(ends, count);
+  }
+
+  private static void writeRuns(Writer out, byte[] values, int[] runEnds, byte[] mapping) {
+    int start = 0;
+    for (int run = 0; run < runEnds.length; run++) {
+      int end = runEnds[run];
+      byte value = values[start];
+      out.writeVarInt(end - start);
+      out.writeByte(mapping == null ? value : mapping[value]);
+      start = end;
+    }
+  }
+
+  /**
+   * Reads runs into a newly allocated array.
+   */
+  private static void readRuns(Reader in, byte[] target, byte[] mapping) {
+    // reads straight from the array, the per-byte checks of the reader dominate decoding otherwise
+    byte[] data = in.data;
+    int position = in.position;
+    int i = 0;
+    try {
+      while (i < target.length) {
+        int length = data[position++];
+        if (length < 0) {
+          length &= 0x7f;
+          for (int shift = 7; ; shift += 7) {
+            int b = data[position++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+              break;
+            }
+            if (shift >= 28) {
+              throw new IllegalArgumentException("Invalid run length");
+            }
+          }
+        }
+        int index = data[position++] & 0xff;
+        if (length <= 0 || i + length > target.length) {
+          throw new IllegalArgumentException("Invalid run of " + length + " at " + i);
+        }
+        byte value;
+        if (mapping == null) {
+          value = (byte) index;
+        } else if (index < mapping.length) {
+          value = mapping[index];
+        } else {
+          throw new IllegalArgumentException("Invalid palette index " + index);
+        }
+        // the target is new and all zeros, so the runs of air and of zero colors need no writing; the rest are
+        // mostly short, and copying them from a filled array is faster than Arrays.fill
+        if (value != 0 && length <= FILLED_LENGTH) {
+          System.arraycopy(FILLED[value & 0xff], 0, target, i, length);
+        } else if (value != 0) {
+          Arrays.fill(target, i, i + length, value);
+        }
+        i += length;
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Encoded chunk ends too early");
+    }
+    in.position = position;
+  }
+
+  private static Tile getTile(int ordinal) {
+    if (ordinal < 0 || ordinal >= TILES.length) {
+      throw new IllegalArgumentException("Invalid tile " + ordinal);
+    }
+    return TILES[ordinal];
+  }
+
+  private static boolean isZero(byte[] data) {
+    for (byte b : data) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static final class Writer {
+    private byte[] buffer;
+    private int position;
+
+    public Writer(int capacity) {
+      buffer = new byte[capacity];
+    }
+
+    public void writeByte(int value) {
+      ensure(1);
+      buffer[position++] = (byte) value;
+    }
+
+    public void writeShort(int value) {
+      writeByte(value >> 8);
+      writeByte(value);
+    }
+
+    public void writeInt(int value) {
+      writeByte(value >> 24);
+      writeByte(value >> 16);
+      writeByte(value >> 8);
+      writeByte(value);
+    }
+
+    public void writeVarInt(int value) {
+      while ((value & ~0x7f) != 0) {
+        writeByte((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      writeByte(value);
+    }
+
+    public byte[] toByteArray() {
+      return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensure(int bytes) {
+      if (position + bytes > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+      }
+    }
+  }
+
+  private static final class Reader {
+    private final byte[] data;
+    private int position;
+
+    public Reader(byte[] data) {
+      this.data = data;
+    }
+
+    public int readByte() {
+      if (position >= data.length) {
+        throw new IllegalArgumentException("Encoded chunk ends too early");
+      }
+      return data[position++] & 0xff;
+    }
+
+    public int readShort() {
+      return (readByte() << 8) | readByte();
+    }
+
+    public int readInt() {
+      return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+package fi.haju.haju3d.protocol.world;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes a chunk as the tiles that differ from another version of it, typically the one generated from the seed.
+ * <p/>
+ * Layout (version 1, big endian):
+ * <pre>
+ * short   magic 0x4844
+ * byte    version
+ * int     size
+ * int     number of changed tiles
+ * per changed tile in the ByteArray3d order:
+ *   varint  number of unchanged tiles skipped since the previous changed tile
+ *   byte    tile ordinal
+ * </pre>
+ * Colors are not part of the delta; the chunk gets the colors of the base.
+ */
+public final class ChunkDelta {
+  public static final int VERSION = 1;
+
+  private static final int MAGIC = 0x4844;
+  private static final Tile[] TILES = Tile.values();
+
+  private ChunkDelta() {
+  }
+
+  public static boolean isDelta(byte[] data) {
+    return data.length >= 2 && (((data[0] & 0xff) << 8) | (data[1] & 0xff)) == MAGIC;
+  }
+
+  /**
+   * Returns the tiles of the chunk that differ from the base, or null if there are none.
+   */
+  public static byte[] encode(Chunk base, Chunk chunk) {
+    int size = chunk.getSize();
+    if (base.getSize() != size) {
+      throw new IllegalArgumentException("Chunk sizes differ: " + base.getSize() + " and " + size);
+    }
+    byte[] baseTiles = getTileData(base);
+    byte[] tiles = getTileData(chunk);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int changed = 0;
+    int previous = -1;
+    for (int i = 0; i < tiles.length; i++) {
+      if (tiles[i] == baseTiles[i]) {
+        continue;
+      }
+      writeVarInt(out, i - previous - 1);
+      out.write(tiles[i]);
+      previous = i;
+      changed++;
+    }
+    if (changed == 0) {
+      return null;
+    }
+    byte[] runs = out.toByteArray();
+    ByteBuffer buffer = ByteBuffer.allocate(11 + runs.length);
+    buffer.putShort((short) MAGIC).put((byte) VERSION).putInt(size).putInt(changed).put(runs);
+    return buffer.array();
+  }
+
+  /**
+   * Returns a copy of the base with the changed tiles of the delta.
+   */
+  public static Chunk apply(Chunk base, byte[] delta) {
+    if (!isDelta(delta)) {
+      throw new IllegalArgumentException("Not a chunk delta");
+    }
+    ByteBuffer in = ByteBuffer.wrap(delta);
+    in.getShort();
+    int version = in.get();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported chunk delta version " + version);
+    }
+    int size = in.getInt();
+    if (size != base.getSize()) {
+      throw new IllegalArgumentException(
+          "Delta of a chunk of size " + size + " for a chunk of size " + base.getSize());
+    }
+    int changed = in.getInt();
+    byte[] tiles = getTileData(base).clone();
+    int index = -1;
+    for (int i = 0; i < changed; i++) {
+      index += readVarInt(in) + 1;
+      int tile = in.get() & 0xff;
+      if (index >= tiles.length || tile >= TILES.length) {
+        throw new IllegalArgumentException("Invalid change of tile " + index + " to " + tile);
+      }
+      tiles[index] = (byte) tile;
+    }
+    ByteArray3d colors = base.getColors();
+    return new Chunk(size, base.getSeed(), base.getPosition(), new ByteArray3d(size, size, size, tiles),
+        colors == null ? null : new ByteArray3d(size, size, size, colors.getData().clone()));
+  }
+
+  private static byte[] getTileData(Chunk chunk) {
+    ByteArray3d tiles = chunk.getTiles();
+    if (tiles != null) {
+      return tiles.getData();
+    }
+    int size = chunk.getSize();
+    byte[] data = new byte[size * size * size];
+    byte tile = (byte) chunk.get(0, 0, 0).ordinal();
+    if (tile != 0) {
+      Arrays.fill(data, tile);
+    }
+    return data;
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Invalid varint");
+  }
+
+}
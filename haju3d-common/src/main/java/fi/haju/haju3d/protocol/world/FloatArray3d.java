@@ -108,4 +108,8 @@ public final class FloatArray3d implements Serializable {
     return depth;
   }
 
+  public float[] getData() {
+    return data;
+  }
+
 }
@@ -41,6 +41,10 @@ public final class World implements Serializable {
     chunks.put(position, chunk);
   }
 
+  public synchronized void removeChunk(ChunkPosition position) {
+    chunks.remove(position);
+  }
+
   public synchronized Chunk getChunk(ChunkPosition position) {
     return chunks.get(position);
   }
@@ -40,18 +40,22 @@ public class ProfileInterceptor implements MethodInterceptor {
     long start = System.currentTimeMillis();
     Object result = invocation.proceed();
     long end = System.currentTimeMillis();
+    record(method, end - start);
+    return result;
+  }
+
+  private synchronized void record(String method, long time) {
     if(profiles.containsKey(method)) {
       MethodProfile prof = profiles.get(method);
       prof.calls++;
-      prof.time += end - start;
+      prof.time += time;
     } else {
-      profiles.put(method, new MethodProfile(method, end - start));
+      profiles.put(method, new MethodProfile(method, time));
     }
     if(System.currentTimeMillis() > lastSaveTime + SAVE_INTERVAL) {
       saveProfiles();
       lastSaveTime = System.currentTimeMillis();
     }
-    return result;
   }
 
   private void saveProfiles() {
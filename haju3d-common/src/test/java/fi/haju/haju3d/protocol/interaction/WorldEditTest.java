@@ -0,0 +1,29 @@
+package fi.haju.haju3d.protocol.interaction;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorldEditTest {
+
+  @Test
+  public void testEditsOutsideTheChunkOrWithoutATileAreInvalid() {
+    assertTrue(edit(0, 0, 0, Tile.ROCK).isValid(64));
+    assertTrue(edit(63, 63, 63, Tile.AIR).isValid(64));
+    assertFalse(edit(64, 0, 0, Tile.ROCK).isValid(64));
+    assertFalse(edit(0, 255, 0, Tile.ROCK).isValid(64));
+    assertFalse(edit(0, 0, -1, Tile.ROCK).isValid(64));
+    assertFalse(edit(0, 0, 0, null).isValid(64));
+    assertFalse(new WorldEdit(null, Tile.ROCK).isValid(64));
+  }
+
+  private static WorldEdit edit(int x, int y, int z, Tile tile) {
+    return new WorldEdit(new TilePosition(new ChunkPosition(1, -2, 3), new LocalTilePosition(x, y, z)), tile);
+  }
+
+}
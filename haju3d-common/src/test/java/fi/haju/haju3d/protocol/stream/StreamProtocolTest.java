@@ -0,0 +1,97 @@
+package fi.haju.haju3d.protocol.stream;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamProtocolTest {
+
+  @Test
+  public void testFramesSplitAcrossReads() throws IOException {
+    List<ChunkPosition> positions = Lists.newArrayList();
+    for (int i = 0; i < 10000; i++) {
+      positions.add(new ChunkPosition(i, -i, 7));
+    }
+    List<WorldEdit> edits = Lists.newArrayList(
+        new WorldEdit(new TilePosition(new ChunkPosition(-1, 2, -3), new LocalTilePosition(0, 31, 5)), Tile.BRICK));
+    ByteBuffer stream = ByteBuffer.allocate(1024 * 1024);
+    stream.put(StreamProtocol.hello());
+    stream.put(StreamProtocol.getChunks(42, new ChunkPosition(1, 2, 3), positions));
+    stream.put(StreamProtocol.worldEdits(edits));
+    stream.put(StreamProtocol.chunksDone(42));
+    stream.flip();
+
+    FrameReader reader = new FrameReader();
+    List<ByteBuffer> frames = Lists.newArrayList();
+    // a few bytes at a time, so that the frames are split and larger than the buffer
+    byte[] data = new byte[stream.remaining()];
+    stream.get(data);
+    for (int offset = 0; offset < data.length; offset += 777) {
+      ReadableByteChannel channel = Channels.newChannel(
+          new ByteArrayInputStream(data, offset, Math.min(777, data.length - offset)));
+      while (reader.read(channel)) {
+        ByteBuffer frame;
+        while ((frame = reader.next()) != null) {
+          frames.add(frame);
+        }
+      }
+    }
+    assertEquals(4, frames.size());
+
+    ByteBuffer hello = frames.get(0);
+    assertEquals(StreamProtocol.HELLO, hello.get());
+    assertTrue(StreamProtocol.isCompatible(hello));
+
+    ByteBuffer request = frames.get(1);
+    assertEquals(StreamProtocol.GET_CHUNKS, request.get());
+    assertEquals(42, request.getInt());
+    assertEquals(new ChunkPosition(1, 2, 3), StreamProtocol.readOrigin(request));
+    assertEquals(positions, StreamProtocol.readPositions(request));
+    assertFalse(request.hasRemaining());
+
+    ByteBuffer edit = frames.get(2);
+    assertEquals(StreamProtocol.WORLD_EDITS, edit.get());
+    WorldEdit read = StreamProtocol.readWorldEdits(edit).get(0);
+    assertEquals(new ChunkPosition(-1, 2, -3), read.getPosition().getChunkPosition());
+    assertEquals(31, read.getPosition().getTileWithinChunk().y);
+    assertEquals(Tile.BRICK, read.getNewTile());
+
+    ByteBuffer done = frames.get(3);
+    assertEquals(StreamProtocol.CHUNKS_DONE, done.get());
+    assertEquals(42, done.getInt());
+    assertNull(reader.next());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEditsOutsideTheChunkAreRejected() {
+    ByteBuffer frame = StreamProtocol.worldEdits(Lists.newArrayList(
+        new WorldEdit(new TilePosition(new ChunkPosition(0, 0, 0), new LocalTilePosition(64, 0, 0)), Tile.BRICK)));
+    frame.getInt();
+    assertEquals(StreamProtocol.WORLD_EDITS, frame.get());
+    StreamProtocol.readWorldEdits(frame);
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidFrameLength() throws IOException {
+    FrameReader reader = new FrameReader();
+    reader.read(Channels.newChannel(new ByteArrayInputStream(new byte[] {-1, -1, -1, -1, 0})));
+    reader.next();
+  }
+
+}
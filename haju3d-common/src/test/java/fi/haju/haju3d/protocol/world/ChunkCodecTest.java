@@ -0,0 +1,79 @@
+package fi.haju.haju3d.protocol.world;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkCodecTest {
+
+  @Test
+  public void testMixedChunkRoundTrip() {
+    Chunk chunk = new Chunk(16, 1234, new ChunkPosition(-3, 7, 2));
+    for (int x = 0; x < 16; x++) {
+      for (int z = 0; z < 16; z++) {
+        int height = (x * 7 + z * 3) % 16;
+        for (int y = 0; y < height; y++) {
+          chunk.set(x, y, z, y < 4 ? Tile.ROCK : Tile.GROUND);
+        }
+      }
+    }
+    chunk.set(5, 15, 5, Tile.BRICK);
+    chunk.setColor(1, 2, 3, 0.5f);
+
+    byte[] encoded = ChunkCodec.encode(chunk);
+    assertTrue(ChunkCodec.isEncodedChunk(encoded));
+    Chunk decoded = ChunkCodec.decode(encoded);
+    assertEquals(16, decoded.getSize());
+    assertEquals(1234, decoded.getSeed());
+    assertEquals(chunk.getPosition(), decoded.getPosition());
+    assertArrayEquals(chunk.getTiles().getData(), decoded.getTiles().getData());
+    assertArrayEquals(chunk.getColors().getData(), decoded.getColors().getData());
+  }
+
+  @Test
+  public void testConstantChunkAndChunkWithoutColors() {
+    Chunk constant = ChunkCodec.decode(ChunkCodec.encode(new Chunk(64, 5, new ChunkPosition(0, 3, 0), Tile.AIR)));
+    assertNull(constant.getTiles());
+    assertEquals(Tile.AIR, constant.get(10, 10, 10));
+    assertEquals(5, constant.getSeed());
+
+    Chunk plain = new Chunk(64, 5, new ChunkPosition(0, 0, 0));
+    plain.set(0, 0, 0, Tile.ROCK);
+    Chunk decoded = ChunkCodec.decode(ChunkCodec.encode(plain));
+    assertNull(decoded.getColors());
+    assertEquals(Tile.ROCK, decoded.get(0, 0, 0));
+    assertEquals(Tile.AIR, decoded.get(63, 63, 63));
+  }
+
+  @Test
+  public void testRunsOfAllLengthsRoundTrip() {
+    int size = 64;
+    byte[] tiles = new byte[size * size * size];
+    byte[] colors = new byte[tiles.length];
+    for (int i = 0, length = 1; i < tiles.length; i += length, length = length % 200 + 1) {
+      int end = Math.min(tiles.length, i + length);
+      Arrays.fill(tiles, i, end, (byte) (length % Tile.values().length));
+      Arrays.fill(colors, i, end, (byte) (length * 37));
+    }
+    Chunk chunk = new Chunk(size, 0, new ChunkPosition(1, 2, 3),
+        new ByteArray3d(size, size, size, tiles), new ByteArray3d(size, size, size, colors));
+    Chunk decoded = ChunkCodec.decode(ChunkCodec.encode(chunk));
+    assertArrayEquals(tiles, decoded.getTiles().getData());
+    assertArrayEquals(colors, decoded.getColors().getData());
+  }
+
+  @Test
+  public void testJavaSerializedChunkIsNotMistakenForEncodedChunk() {
+    byte[] serialized = SerializationUtils.serialize(new Chunk(4, 0, new ChunkPosition(0, 0, 0), Tile.ROCK));
+    assertFalse(ChunkCodec.isEncodedChunk(serialized));
+  }
+
+}
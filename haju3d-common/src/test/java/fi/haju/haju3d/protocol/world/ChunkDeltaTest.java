@@ -0,0 +1,47 @@
+package fi.haju.haju3d.protocol.world;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkDeltaTest {
+
+  @Test
+  public void testOnlyChangedTilesAreStored() {
+    Chunk base = new Chunk(16, 42, new ChunkPosition(1, 0, -1));
+    for (int x = 0; x < 16; x++) {
+      for (int z = 0; z < 16; z++) {
+        for (int y = 0; y < 8; y++) {
+          base.set(x, y, z, Tile.ROCK);
+        }
+      }
+    }
+    Chunk edited = ChunkCodec.decode(ChunkCodec.encode(base));
+    assertNull(ChunkDelta.encode(base, edited));
+
+    edited.set(0, 0, 0, Tile.AIR);
+    edited.set(15, 15, 15, Tile.BRICK);
+    byte[] delta = ChunkDelta.encode(base, edited);
+    assertTrue(ChunkDelta.isDelta(delta));
+    assertTrue(delta.length < 20);
+    Chunk applied = ChunkDelta.apply(base, delta);
+    assertEquals(base.getPosition(), applied.getPosition());
+    assertArrayEquals(edited.getTiles().getData(), applied.getTiles().getData());
+  }
+
+  @Test
+  public void testDeltaOfAConstantBase() {
+    Chunk base = new Chunk(8, 42, new ChunkPosition(0, -3, 0), Tile.ROCK);
+    Chunk edited = new Chunk(8, 42, new ChunkPosition(0, -3, 0), Tile.ROCK);
+    assertNull(ChunkDelta.encode(base, edited));
+    edited.set(3, 4, 5, Tile.AIR);
+    Chunk applied = ChunkDelta.apply(base, ChunkDelta.encode(base, edited));
+    assertEquals(Tile.AIR, applied.get(3, 4, 5));
+    assertEquals(Tile.ROCK, applied.get(3, 4, 6));
+  }
+
+}
@@ -0,0 +1,148 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pre-generates a ring of chunks just outside the area each client is asking for.
+ * <p/>
+ * The ring covers the chunks whose distance from the client's position is at most {@code pregenerationRadius}
+ * beyond the farthest chunk the client has asked for around that position. Once the client moves, the ring only
+ * covers the half ahead of it and to its sides, as it asked for the chunks behind it on the way, and the chunks
+ * nearest the point it is heading to are queued first. The work runs in the background tier of the
+ * {@link ChunkResolver}, so client requests always take precedence, and ring positions the client has moved away
+ * from are cancelled.
+ * <p/>
+ * The statistics count a request as joining work in progress only if the background work had started; queued
+ * background work that a request promotes counts as resolved on demand.
+ */
+@Singleton
+public class BackgroundGenerator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundGenerator.class);
+
+  @Inject
+  private ChunkResolver resolver;
+
+  @Inject
+  private ServerSettings settings;
+
+  private final Map<Object, ClientSession> sessions = new HashMap<>();
+
+  private static final class ClientSession {
+    private ChunkPosition origin;
+    private ChunkPosition previousOrigin;
+    private int reach = 0;
+    private Set<ChunkPosition> ring = Sets.newHashSet();
+  }
+
+  /**
+   * Records a chunk request of a client and queues any ring positions the request uncovers.
+   */
+  public void update(Object client, ChunkPosition origin, Collection<ChunkPosition> requested) {
+    int radius = settings.getPregenerationRadius();
+    if (radius <= 0 || origin == null) {
+      return;
+    }
+    int reach = 0;
+    for (ChunkPosition position : requested) {
+      reach = Math.max(reach, origin.distanceTo(position));
+    }
+    ClientSession session;
+    ChunkPosition ahead;
+    Set<ChunkPosition> dropped;
+    List<ChunkPosition> added = Lists.newArrayList();
+    synchronized (sessions) {
+      session = sessions.get(client);
+      if (session == null) {
+        session = new ClientSession();
+        sessions.put(client, session);
+      }
+      if (origin.equals(session.origin) && reach <= session.reach) {
+        return;
+      }
+      if (!origin.equals(session.origin)) {
+        session.previousOrigin = session.origin;
+        session.origin = origin;
+      }
+      // the requested area only grows, the nearest chunks are requested first after a move
+      session.reach = Math.max(session.reach, reach);
+      ahead = getAheadPosition(session, radius);
+      Set<ChunkPosition> ring = makeRing(origin, ahead, session.reach, radius);
+      dropped = Sets.newHashSet(Sets.difference(session.ring, ring));
+      for (ChunkPosition position : ring) {
+        if (!session.ring.contains(position)) {
+          added.add(position);
+        }
+      }
+      session.ring = ring;
+    }
+    resolver.cancel(session, dropped);
+    for (ChunkPosition position : added) {
+      resolver.pregenerate(session, ahead, position);
+    }
+    LOGGER.debug("Pre-generation ring of " + client + " around " + origin + ": " + added.size() + " added, "
+        + dropped.size() + " dropped");
+  }
+
+  public void remove(Object client) {
+    ClientSession session;
+    synchronized (sessions) {
+      session = sessions.remove(client);
+    }
+    if (session != null) {
+      resolver.cancelAll(session);
+    }
+  }
+
+  public void logStatistics() {
+    long hits = resolver.getPregeneratedHits();
+    long joins = resolver.getPregeneratedJoins();
+    long misses = resolver.getOnDemandMisses();
+    long total = hits + joins + misses;
+    double hitRate = total == 0 ? 0.0 : (double) hits / total;
+    LOGGER.info(String.format("Pre-generation: %d requests served from pre-generated chunks, %d joined work in progress,"
+        + " %d resolved on demand (hit rate %.1f%%)", hits, joins, misses, hitRate * 100));
+  }
+
+  private static Set<ChunkPosition> makeRing(ChunkPosition origin, ChunkPosition ahead, int reach, int radius) {
+    Set<ChunkPosition> ring = Sets.newHashSet();
+    for (ChunkPosition position : origin.getPositionsAtMaxDistance(reach + radius)) {
+      if (origin.distanceTo(position) > reach && !isBehind(origin, ahead, position)) {
+        ring.add(position);
+      }
+    }
+    return ring;
+  }
+
+  private static boolean isBehind(ChunkPosition origin, ChunkPosition ahead, ChunkPosition position) {
+    return (position.x - origin.x) * (ahead.x - origin.x) + (position.y - origin.y) * (ahead.y - origin.y)
+        + (position.z - origin.z) * (ahead.z - origin.z) < 0;
+  }
+
+  /**
+   * Extrapolates the client's movement by the ring radius. Ring positions are queued nearest to this point first.
+   */
+  private static ChunkPosition getAheadPosition(ClientSession session, int radius) {
+    ChunkPosition origin = session.origin;
+    ChunkPosition previous = session.previousOrigin;
+    if (previous == null) {
+      return origin;
+    }
+    return origin.add(
+        Integer.signum(origin.x - previous.x) * radius,
+        Integer.signum(origin.y - previous.y) * radius,
+        Integer.signum(origin.z - previous.z) * radius);
+  }
+
+}
@@ -0,0 +1,100 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import fi.haju.haju3d.protocol.Client;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the chunks each client holds, so that an edit is sent only to the clients holding its chunk.
+ * <p/>
+ * A client holds the chunks it has asked for, from the time it asks so that no edit made while the chunk is on its
+ * way is missed. Clients keep the chunks they have received, so they are held until the client leaves. The chunks
+ * are indexed by position, so routing edits costs as much as the clients near them, not all clients.
+ */
+public final class ChunkInterest {
+  // guarded by this
+  private final Map<Client, Set<ChunkPosition>> held = new HashMap<>();
+  private final Map<ChunkPosition, Set<Client>> holders = new HashMap<>();
+
+  /**
+   * Starts tracking the client.
+   */
+  public synchronized void register(Client client) {
+    if (!held.containsKey(client)) {
+      held.put(client, Sets.<ChunkPosition>newHashSet());
+    }
+  }
+
+  /**
+   * Stops tracking the client and forgets its chunks.
+   */
+  public synchronized void remove(Client client) {
+    Set<ChunkPosition> positions = held.remove(client);
+    if (positions == null) {
+      return;
+    }
+    for (ChunkPosition position : positions) {
+      Set<Client> clients = holders.get(position);
+      clients.remove(client);
+      if (clients.isEmpty()) {
+        holders.remove(position);
+      }
+    }
+  }
+
+  /**
+   * Records that the client holds the chunks, if it is tracked.
+   */
+  public synchronized void add(Client client, Collection<ChunkPosition> positions) {
+    Set<ChunkPosition> clientPositions = held.get(client);
+    if (clientPositions == null) {
+      return;
+    }
+    for (ChunkPosition position : positions) {
+      if (clientPositions.add(position)) {
+        Set<Client> clients = holders.get(position);
+        if (clients == null) {
+          clients = Sets.newHashSet();
+          holders.put(position, clients);
+        }
+        clients.add(client);
+      }
+    }
+  }
+
+  public synchronized int getHeldCount(Client client) {
+    Set<ChunkPosition> positions = held.get(client);
+    return positions == null ? 0 : positions.size();
+  }
+
+  /**
+   * Returns the edits each client should get, in their original order.
+   */
+  public synchronized Map<Client, List<WorldEdit>> route(List<WorldEdit> edits) {
+    Map<Client, List<WorldEdit>> routed = new HashMap<>();
+    for (WorldEdit edit : edits) {
+      Set<Client> clients = holders.get(edit.getPosition().getChunkPosition());
+      if (clients == null) {
+        continue;
+      }
+      for (Client client : clients) {
+        List<WorldEdit> clientEdits = routed.get(client);
+        if (clientEdits == null) {
+          clientEdits = Lists.newArrayList();
+          routed.put(client, clientEdits);
+        }
+        clientEdits.add(edit);
+      }
+    }
+    return routed;
+  }
+
+}
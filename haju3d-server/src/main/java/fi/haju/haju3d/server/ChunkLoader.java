@@ -0,0 +1,171 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads chunks stored by the {@link WorldSaver} without blocking the caller.
+ * <p/>
+ * The stored data is read on a small pool of I/O threads and decompressed and decoded on a pool sized to the
+ * available cores, so decoding does not hold up the disk. Concurrent loads of the same chunk share one future.
+ * <p/>
+ * Chunks can be prefetched when they are likely to be asked for soon, which reads their data ahead into the cache
+ * of the saver. Prefetching is skipped while the I/O threads have loads waiting.
+ */
+@Singleton
+public class ChunkLoader {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChunkLoader.class);
+  private static final int MAX_PREFETCH_BACKLOG = 64;
+
+  @Inject
+  private WorldSaver saver;
+
+  @Inject
+  private ServerSettings settings;
+
+  private final ConcurrentMap<ChunkPosition, ListenableFuture<Optional<Chunk>>> loading = new ConcurrentHashMap<>();
+  private final Set<ChunkPosition> prefetching = Collections.newSetFromMap(
+      new ConcurrentHashMap<ChunkPosition, Boolean>());
+  private ThreadPoolExecutor readers;
+  private ListeningExecutorService reading;
+  private ListeningExecutorService decoding;
+
+  /**
+   * Returns the stored chunk, or absent if it has not been stored.
+   */
+  public ListenableFuture<Optional<Chunk>> load(final ChunkPosition position) {
+    ListenableFuture<Optional<Chunk>> existing = loading.get(position);
+    if (existing != null) {
+      return existing;
+    }
+    final SettableFuture<Optional<Chunk>> future = SettableFuture.create();
+    existing = loading.putIfAbsent(position, future);
+    if (existing != null) {
+      return existing;
+    }
+    ListenableFuture<Optional<WorldSaver.StoredChunk>> read = getReading().submit(
+        new Callable<Optional<WorldSaver.StoredChunk>>() {
+          @Override
+          public Optional<WorldSaver.StoredChunk> call() {
+            return saver.readStoredChunk(position);
+          }
+        });
+    ListenableFuture<Optional<Chunk>> decoded = Futures.transform(read,
+        new Function<Optional<WorldSaver.StoredChunk>, Optional<Chunk>>() {
+          @Override
+          public Optional<Chunk> apply(Optional<WorldSaver.StoredChunk> stored) {
+            return stored.isPresent() ? saver.decodeStoredChunk(position, stored.get()) : Optional.<Chunk>absent();
+          }
+        }, getDecoding());
+    Futures.addCallback(decoded, new FutureCallback<Optional<Chunk>>() {
+      @Override
+      public void onSuccess(Optional<Chunk> chunk) {
+        loading.remove(position, future);
+        future.set(chunk);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        loading.remove(position, future);
+        future.setException(t);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Reads the stored data of the chunk ahead of a load, if the I/O threads are not busy.
+   */
+  public void prefetch(final ChunkPosition position) {
+    ThreadPoolExecutor executor = getReaders();
+    if (executor.getQueue().size() >= MAX_PREFETCH_BACKLOG || loading.containsKey(position)
+        || !prefetching.add(position)) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          saver.prefetchStoredChunk(position);
+        } catch (RuntimeException e) {
+          LOGGER.warn("Error prefetching chunk " + position, e);
+        } finally {
+          prefetching.remove(position);
+        }
+      }
+    });
+  }
+
+  public synchronized void shutdown() {
+    if (readers != null) {
+      reading.shutdown();
+      decoding.shutdown();
+      readers = null;
+      reading = null;
+      decoding = null;
+    }
+  }
+
+  private synchronized ThreadPoolExecutor getReaders() {
+    if (readers == null) {
+      int threads = Math.max(1, settings.getLoadThreads());
+      readers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new NamedThreadFactory("chunk-reader"));
+      reading = MoreExecutors.listeningDecorator(readers);
+      int cores = Runtime.getRuntime().availableProcessors();
+      decoding = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(cores, cores, 0, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("chunk-decoder")));
+    }
+    return readers;
+  }
+
+  private synchronized ListeningExecutorService getReading() {
+    getReaders();
+    return reading;
+  }
+
+  private synchronized ListeningExecutorService getDecoding() {
+    getReaders();
+    return decoding;
+  }
+
+  private static final class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public NamedThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
@@ -0,0 +1,329 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.ByteArray3d;
+import fi.haju.haju3d.protocol.world.Chunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the chunks in memory within a budget by evicting the least recently used ones.
+ * <p/>
+ * The budget is a number of chunks and an estimate of the bytes of their tiles and colors, and either can be
+ * unlimited. Only chunks without unsaved changes are evicted, so that they load again as they were, and chunks
+ * within the reach of a client are kept. Once {@link #start() started}, eviction runs on its own thread once a
+ * second and whenever a chunk added goes over the budget. Edits hold the {@link #getEditLock() edit lock} while
+ * they change chunks, so that a chunk is not evicted between being changed and being queued for saving.
+ * <p/>
+ * A chunk added again after it was evicted counts as a reload; evicted positions are remembered up to a limit.
+ */
+public final class ChunkResidency {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChunkResidency.class);
+  private static final long CHUNK_OVERHEAD_BYTES = 128;
+  private static final int MAX_REMEMBERED_EVICTIONS = 65536;
+  private static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+  /**
+   * Where the chunks are kept.
+   */
+  public interface Store {
+    /**
+     * Whether the chunk has no changes that are not saved yet.
+     */
+    boolean isSaved(ChunkPosition position);
+
+    /**
+     * Drops the chunk from memory.
+     */
+    void remove(ChunkPosition position, Chunk chunk);
+  }
+
+  private final Store store;
+  private final int maxChunks;
+  private final long maxBytes;
+  // in access order, guarded by itself
+  private final LinkedHashMap<ChunkPosition, Chunk> resident = new LinkedHashMap<>(16, 0.75f, true);
+  private long residentBytes = 0;
+  private final Map<Object, Reach> reaches = new HashMap<>();
+  private final Cache<ChunkPosition, Boolean> evicted =
+      CacheBuilder.newBuilder().maximumSize(MAX_REMEMBERED_EVICTIONS).build();
+  private final ReadWriteLock editLock = new ReentrantReadWriteLock();
+  private final AtomicBoolean evictionRequested = new AtomicBoolean();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong reloads = new AtomicLong();
+  private ScheduledExecutorService evictor;
+
+  private static final class Reach {
+    private final ChunkPosition origin;
+    private final int distance;
+
+    public Reach(ChunkPosition origin, int distance) {
+      this.origin = origin;
+      this.distance = distance;
+    }
+  }
+
+  /**
+   * @param maxChunks the most chunks to keep, or 0 for no limit
+   * @param maxBytes the most bytes of chunk data to keep, or 0 for no limit
+   */
+  public ChunkResidency(Store store, int maxChunks, long maxBytes) {
+    this.store = store;
+    this.maxChunks = maxChunks;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Starts evicting chunks on a thread of its own, if there is a budget.
+   */
+  public synchronized void start() {
+    if ((maxChunks <= 0 && maxBytes <= 0) || evictor != null) {
+      return;
+    }
+    evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "chunk-evictor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        evictSafely();
+      }
+    }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Records a chunk put in memory.
+   */
+  public void add(ChunkPosition position, Chunk chunk) {
+    boolean over;
+    synchronized (resident) {
+      Chunk previous = resident.put(position, chunk);
+      if (previous != null) {
+        residentBytes -= estimateBytes(previous);
+      }
+      residentBytes += estimateBytes(chunk);
+      over = isOverBudget();
+    }
+    if (evicted.asMap().remove(position) != null) {
+      reloads.incrementAndGet();
+    }
+    if (over && evictionRequested.compareAndSet(false, true)) {
+      requestEviction();
+    }
+  }
+
+  private synchronized void requestEviction() {
+    if (evictor == null) {
+      evictionRequested.set(false);
+      return;
+    }
+    evictor.execute(new Runnable() {
+      @Override
+      public void run() {
+        evictionRequested.set(false);
+        evictSafely();
+      }
+    });
+  }
+
+  /**
+   * Records a use of a chunk in memory.
+   */
+  public void touch(ChunkPosition position) {
+    synchronized (resident) {
+      resident.get(position);
+    }
+  }
+
+  /**
+   * Keeps the chunks within the distance of the origin in memory for the client, until the next update.
+   */
+  public void setReach(Object client, ChunkPosition origin, int distance) {
+    synchronized (reaches) {
+      reaches.put(client, new Reach(origin, distance));
+    }
+  }
+
+  public void removeReach(Object client) {
+    synchronized (reaches) {
+      reaches.remove(client);
+    }
+  }
+
+  /**
+   * Held while chunks are changed and queued for saving.
+   */
+  public Lock getEditLock() {
+    return editLock.readLock();
+  }
+
+  /**
+   * Evicts the least recently used chunks that can be evicted until the chunks are within the budget. Returns the
+   * number of chunks evicted.
+   * <p/>
+   * The chunks to evict are picked without the edit lock, which is then held only to check them again and remove
+   * them, so that edits are not held up while all resident chunks are gone through.
+   */
+  public int evict() {
+    List<Reach> reachList;
+    synchronized (reaches) {
+      reachList = Lists.newArrayList(reaches.values());
+    }
+    List<Map.Entry<ChunkPosition, Chunk>> entries;
+    long excessBytes;
+    int excessChunks;
+    synchronized (resident) {
+      // the chunks have changed since they were added
+      residentBytes = 0;
+      for (Chunk chunk : resident.values()) {
+        residentBytes += estimateBytes(chunk);
+      }
+      if (!isOverBudget()) {
+        return 0;
+      }
+      entries = Lists.newArrayListWithCapacity(resident.size());
+      for (Map.Entry<ChunkPosition, Chunk> entry : resident.entrySet()) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+      }
+      excessBytes = maxBytes > 0 ? residentBytes - maxBytes : 0;
+      excessChunks = maxChunks > 0 ? resident.size() - maxChunks : 0;
+    }
+    List<Map.Entry<ChunkPosition, Chunk>> candidates = Lists.newArrayList();
+    for (Map.Entry<ChunkPosition, Chunk> entry : entries) {
+      if (excessBytes <= 0 && excessChunks <= 0) {
+        break;
+      }
+      if (isWithinReach(entry.getKey(), reachList) || !store.isSaved(entry.getKey())) {
+        continue;
+      }
+      candidates.add(entry);
+      excessBytes -= estimateBytes(entry.getValue());
+      excessChunks--;
+    }
+    if (candidates.isEmpty()) {
+      return 0;
+    }
+    int count = 0;
+    editLock.writeLock().lock();
+    try {
+      synchronized (resident) {
+        for (Map.Entry<ChunkPosition, Chunk> candidate : candidates) {
+          ChunkPosition position = candidate.getKey();
+          if (!isOverBudget()) {
+            break;
+          }
+          // changed or replaced since it was picked
+          if (!resident.containsKey(position) || !store.isSaved(position)) {
+            continue;
+          }
+          Chunk chunk = resident.remove(position);
+          if (chunk != candidate.getValue()) {
+            resident.put(position, chunk);
+            continue;
+          }
+          store.remove(position, chunk);
+          residentBytes -= estimateBytes(chunk);
+          evicted.put(position, Boolean.TRUE);
+          count++;
+        }
+      }
+    } finally {
+      editLock.writeLock().unlock();
+    }
+    evictions.addAndGet(count);
+    return count;
+  }
+
+  public int getResidentCount() {
+    synchronized (resident) {
+      return resident.size();
+    }
+  }
+
+  public long getResidentBytes() {
+    synchronized (resident) {
+      return residentBytes;
+    }
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getReloads() {
+    return reloads.get();
+  }
+
+  public void logStatistics() {
+    LOGGER.info(String.format("Residency: %d chunks in memory (about %d MB), %d evicted, %d loaded again",
+        getResidentCount(), getResidentBytes() >> 20, getEvictions(), getReloads()));
+  }
+
+  public synchronized void shutdown() {
+    if (evictor != null) {
+      evictor.shutdownNow();
+      evictor = null;
+    }
+  }
+
+  private void evictSafely() {
+    try {
+      int count = evict();
+      if (count > 0) {
+        LOGGER.debug("Evicted " + count + " chunks");
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Error evicting chunks", e);
+    }
+  }
+
+  private boolean isOverBudget() {
+    return (maxChunks > 0 && resident.size() > maxChunks) || (maxBytes > 0 && residentBytes > maxBytes);
+  }
+
+  private static boolean isWithinReach(ChunkPosition position, List<Reach> reaches) {
+    for (Reach reach : reaches) {
+      if (reach.origin.distanceTo(position) <= reach.distance) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long estimateBytes(Chunk chunk) {
+    long bytes = CHUNK_OVERHEAD_BYTES;
+    ByteArray3d tiles = chunk.getTiles();
+    if (tiles != null) {
+      bytes += tiles.getData().length;
+    }
+    ByteArray3d colors = chunk.getColors();
+    if (colors != null) {
+      bytes += colors.getData().length;
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,376 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.protocol.world.World;
+import fi.haju.haju3d.server.world.WorldGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Resolves chunks from memory, disk or the world generator.
+ * <p/>
+ * Chunks that are not in memory are first loaded by the {@link ChunkLoader}, which also prefetches the stored
+ * neighbours of the requested chunks. Only the chunks that have not been stored are generated, on a
+ * {@link GenerationScheduler} sized to the available cores. Concurrent requests for the same position share a
+ * single future, and chunks already in memory are returned without queuing.
+ * <p/>
+ * The chunks in memory are kept within the budget of a {@link ChunkResidency}. Code that changes chunks must hold
+ * {@link #getEditLock()} until the changed chunks are queued for saving.
+ * <p/>
+ * Chunks can also be resolved ahead of time at low priority. The resolver counts how many of the chunks that
+ * clients ask for were already resolved in the background, joined background work in progress, or had to be
+ * resolved on demand.
+ */
+@Singleton
+public class ChunkResolver {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChunkResolver.class);
+  private static final Object ANONYMOUS = new Object();
+
+  @Inject
+  private WorldGenerator generator;
+
+  @Inject
+  private WorldSaver saver;
+
+  @Inject
+  private ChunkLoader loader;
+
+  @Inject
+  private ServerSettings settings;
+
+  private final ChunkCoordinateSystem chunkCoordinateSystem = ChunkCoordinateSystem.DEFAULT;
+  private final World world = new World(chunkCoordinateSystem);
+  private final GenerationScheduler scheduler = new GenerationScheduler(Runtime.getRuntime().availableProcessors());
+  // positions resolved in the background that no client has asked for yet
+  private final Set<ChunkPosition> pregenerated = Collections.newSetFromMap(new ConcurrentHashMap<ChunkPosition, Boolean>());
+  private final AtomicLong pregeneratedHits = new AtomicLong();
+  private final AtomicLong pregeneratedJoins = new AtomicLong();
+  private final AtomicLong onDemandMisses = new AtomicLong();
+  // requests waiting for a load, so that cancelling them also prevents the generation after it
+  private final ConcurrentMap<ChunkPosition, List<Request>> loadRequests = new ConcurrentHashMap<>();
+  private volatile ChunkResidency residency;
+
+  public Chunk getChunk(ChunkPosition position) {
+    return Futures.getUnchecked(getChunkAsync(ANONYMOUS, null, position));
+  }
+
+  public List<Chunk> getChunks(Collection<ChunkPosition> positions) {
+    return getChunks(ANONYMOUS, null, positions);
+  }
+
+  /**
+   * Resolves a batch of chunks in parallel, nearest to the origin first. Positions the owner cancels while
+   * waiting are left out of the result.
+   */
+  public List<Chunk> getChunks(Object owner, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    List<ListenableFuture<Chunk>> futures = Lists.newArrayList();
+    for (ChunkPosition position : positions) {
+      futures.add(getChunkAsync(owner, origin, position));
+    }
+    List<Chunk> chunks = Lists.newArrayList();
+    for (ListenableFuture<Chunk> future : futures) {
+      try {
+        chunks.add(Futures.getUnchecked(future));
+      } catch (CancellationException e) {
+        continue;
+      }
+    }
+    return chunks;
+  }
+
+  public ListenableFuture<Chunk> getChunkAsync(Object owner, ChunkPosition origin, final ChunkPosition position) {
+    Chunk chunk = world.getChunk(position);
+    if (chunk != null) {
+      getResidency().touch(position);
+      if (pregenerated.remove(position)) {
+        pregeneratedHits.incrementAndGet();
+      }
+      return Futures.immediateFuture(chunk);
+    }
+    int distance = origin == null ? 0 : origin.distanceTo(position);
+    // background work that has not started yet is only promoted, and is done on demand like any other
+    final boolean started = scheduler.isStarted(position);
+    ListenableFuture<Chunk> future = resolve(owner, position, distance, false);
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        // set when the chunk was resolved by background work that this request joined
+        if (pregenerated.remove(position)) {
+          if (started) {
+            pregeneratedJoins.incrementAndGet();
+          } else {
+            onDemandMisses.incrementAndGet();
+          }
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return future;
+  }
+
+  /**
+   * Resolves a chunk ahead of time at low priority, unless it is already in memory.
+   */
+  public void pregenerate(Object owner, ChunkPosition origin, ChunkPosition position) {
+    if (world.getChunk(position) != null) {
+      return;
+    }
+    resolve(owner, position, origin.distanceTo(position), true);
+  }
+
+  /**
+   * Loads the chunk, or generates it on the scheduler if it has not been stored.
+   */
+  private ListenableFuture<Chunk> resolve(final Object owner, final ChunkPosition position, final int distance,
+      final boolean background) {
+    final Request request = new Request(owner);
+    addLoadRequest(position, request);
+    prefetchNeighbours(position);
+    return Futures.transform(loader.load(position), new AsyncFunction<Optional<Chunk>, Chunk>() {
+      @Override
+      public ListenableFuture<Chunk> apply(Optional<Chunk> loaded) {
+        removeLoadRequest(position, request);
+        if (loaded.isPresent()) {
+          return Futures.immediateFuture(publish(position, loaded.get(), background));
+        }
+        if (request.cancelled) {
+          return Futures.immediateCancelledFuture();
+        }
+        Generate generate = new Generate(position, background);
+        return background
+            ? scheduler.scheduleBackground(owner, position, distance, generate)
+            : scheduler.schedule(owner, position, distance, generate);
+      }
+    });
+  }
+
+  private void prefetchNeighbours(ChunkPosition position) {
+    for (int x = -1; x <= 1; x++) {
+      for (int y = -1; y <= 1; y++) {
+        for (int z = -1; z <= 1; z++) {
+          ChunkPosition neighbour = position.add(x, y, z);
+          if ((x != 0 || y != 0 || z != 0) && !world.hasChunk(neighbour)) {
+            loader.prefetch(neighbour);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Puts the chunk in the world unless another instance of it got there first, and returns the one in the world.
+   */
+  private Chunk publish(ChunkPosition position, Chunk chunk, boolean background) {
+    synchronized (world) {
+      Chunk published = world.getChunk(position);
+      if (published != null) {
+        return published;
+      }
+      world.setChunk(position, chunk);
+    }
+    getResidency().add(position, chunk);
+    if (background) {
+      pregenerated.add(position);
+    } else {
+      onDemandMisses.incrementAndGet();
+    }
+    return chunk;
+  }
+
+  private void addLoadRequest(ChunkPosition position, Request request) {
+    List<Request> requests = loadRequests.get(position);
+    while (true) {
+      if (requests == null) {
+        List<Request> added = new CopyOnWriteArrayList<>(Collections.singletonList(request));
+        requests = loadRequests.putIfAbsent(position, added);
+        if (requests == null) {
+          return;
+        }
+      }
+      synchronized (requests) {
+        // a list emptied by the last remove has been dropped from the map
+        if (!requests.isEmpty()) {
+          requests.add(request);
+          return;
+        }
+      }
+      requests = loadRequests.get(position);
+    }
+  }
+
+  private void removeLoadRequest(ChunkPosition position, Request request) {
+    List<Request> requests = loadRequests.get(position);
+    if (requests == null) {
+      return;
+    }
+    synchronized (requests) {
+      requests.remove(request);
+      if (requests.isEmpty()) {
+        loadRequests.remove(position, requests);
+      }
+    }
+  }
+
+  private void cancelLoadRequests(Object owner, Collection<ChunkPosition> positions) {
+    for (ChunkPosition position : positions) {
+      List<Request> requests = loadRequests.get(position);
+      if (requests != null) {
+        for (Request request : requests) {
+          if (request.owner == owner) {
+            request.cancelled = true;
+          }
+        }
+      }
+    }
+  }
+
+  public long getPregeneratedHits() {
+    return pregeneratedHits.get();
+  }
+
+  public long getPregeneratedJoins() {
+    return pregeneratedJoins.get();
+  }
+
+  public long getOnDemandMisses() {
+    return onDemandMisses.get();
+  }
+
+  public int getQueuedCount() {
+    return scheduler.getQueuedCount();
+  }
+
+  public void cancel(Object owner, Collection<ChunkPosition> positions) {
+    cancelLoadRequests(owner, positions);
+    scheduler.cancel(owner, positions);
+  }
+
+  public void cancelAll(Object owner) {
+    cancelLoadRequests(owner, loadRequests.keySet());
+    scheduler.cancelAll(owner);
+  }
+
+  /**
+   * Keeps the chunks the owner asked for around the origin in memory, and those pre-generated beyond them.
+   */
+  public void setReach(Object owner, ChunkPosition origin, Collection<ChunkPosition> requested) {
+    int distance = 0;
+    for (ChunkPosition position : requested) {
+      distance = Math.max(distance, origin.distanceTo(position));
+    }
+    getResidency().setReach(owner, origin, distance + Math.max(0, settings.getPregenerationRadius()));
+  }
+
+  public void removeReach(Object owner) {
+    getResidency().removeReach(owner);
+  }
+
+  public Lock getEditLock() {
+    return getResidency().getEditLock();
+  }
+
+  public ChunkResidency getResidency() {
+    ChunkResidency current = residency;
+    if (current != null) {
+      return current;
+    }
+    synchronized (this) {
+      if (residency == null) {
+        residency = new ChunkResidency(new ChunkResidency.Store() {
+          @Override
+          public boolean isSaved(ChunkPosition position) {
+            return saver.isSaved(position);
+          }
+
+          @Override
+          public void remove(ChunkPosition position, Chunk chunk) {
+            synchronized (world) {
+              if (world.getChunk(position) == chunk) {
+                world.removeChunk(position);
+              }
+            }
+            pregenerated.remove(position);
+          }
+        }, settings.getMaxResidentChunks(), (long) settings.getMaxResidentMegabytes() << 20);
+        residency.start();
+      }
+      return residency;
+    }
+  }
+
+  /**
+   * Returns the chunk if it is in memory, without loading or generating it.
+   */
+  public Optional<Chunk> getChunkIfResident(ChunkPosition position) {
+    return Optional.fromNullable(world.getChunk(position));
+  }
+
+  public ChunkCoordinateSystem getChunkCoordinateSystem() {
+    return chunkCoordinateSystem;
+  }
+
+  public void shutdown() {
+    scheduler.shutdown();
+    loader.shutdown();
+    getResidency().shutdown();
+  }
+
+  private static final class Request {
+    private final Object owner;
+    private volatile boolean cancelled;
+
+    public Request(Object owner) {
+      this.owner = owner;
+    }
+  }
+
+  private final class Generate implements Callable<Chunk> {
+    private final ChunkPosition position;
+    private final boolean background;
+
+    public Generate(ChunkPosition position, boolean background) {
+      this.position = position;
+      this.background = background;
+    }
+
+    @Override
+    public Chunk call() {
+      // The chunk may have been published after the lookup that scheduled this work
+      Chunk resolved = world.getChunk(position);
+      if (resolved != null) {
+        return resolved;
+      }
+      return publish(position, generate(position), background);
+    }
+  }
+
+  private Chunk generate(ChunkPosition position) {
+    LOGGER.info("generating chunk " + position);
+    int sizeLog2 = chunkCoordinateSystem.getChunkSizeLog2();
+    Chunk newChunk = generator.generateChunk(position, sizeLog2);
+    saver.saveGenerated(newChunk);
+    return newChunk;
+  }
+
+}
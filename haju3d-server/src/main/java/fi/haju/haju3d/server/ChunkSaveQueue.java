@@ -0,0 +1,363 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.server.storage.RegionStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes changed chunks to disk behind the game on a pool of writer threads.
+ * <p/>
+ * A chunk is written once it has been dirty for the maximum age, or right away when more chunks than the flush
+ * threshold are dirty. Saving a chunk again before it has been written does not queue another write. Writers take
+ * the oldest dirty chunk together with the other dirty chunks of its region, so a region is written in batches.
+ * When the capacity is reached, saving blocks until the writers have caught up.
+ * <p/>
+ * Chunks that could not be written are retried after a delay that doubles with each failure in a row, and do not
+ * count towards the flush threshold or a flush until then. Shutting down tries them once more.
+ * <p/>
+ * A chunk is never written by two writers at once, so an older state cannot overwrite a newer one.
+ */
+public class ChunkSaveQueue {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChunkSaveQueue.class);
+  private static final long DEFAULT_RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int MAX_RETRY_DOUBLINGS = 6;
+
+  /**
+   * Writes a batch of chunks of the same region.
+   */
+  public interface Writer {
+    void write(List<Chunk> chunks);
+  }
+
+  private final Writer writer;
+  private final int capacity;
+  private final int flushThreshold;
+  private final long maxAgeNanos;
+  private final int batchSize;
+  private final long retryDelayNanos;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition workAvailable = lock.newCondition();
+  private final Condition changed = lock.newCondition();
+  // iteration order is the order in which the chunks became dirty
+  private final LinkedHashMap<ChunkPosition, Dirty> dirty = new LinkedHashMap<>();
+  private final Map<ChunkPosition, Chunk> writing = new HashMap<>();
+  private final List<Thread> writers = Lists.newArrayList();
+  private int unsaved = 0;
+  // dirty chunks waiting to be retried after a failed write
+  private int retrying = 0;
+  private int failures = 0;
+  private int flushing = 0;
+  private boolean draining = false;
+  private boolean running = true;
+
+  private static final class Dirty {
+    private final Chunk chunk;
+    private final long since;
+    private final boolean retry;
+    private final long retryAt;
+
+    public Dirty(Chunk chunk, long since) {
+      this(chunk, since, false, 0);
+    }
+
+    public Dirty(Chunk chunk, long since, boolean retry, long retryAt) {
+      this.chunk = chunk;
+      this.since = since;
+      this.retry = retry;
+      this.retryAt = retryAt;
+    }
+
+    private long getDue(long maxAgeNanos) {
+      return retry ? retryAt : since + maxAgeNanos;
+    }
+  }
+
+  public ChunkSaveQueue(Writer writer, int threads, int capacity, int flushThreshold, long maxAge, TimeUnit unit,
+      int batchSize) {
+    this(writer, threads, capacity, flushThreshold, maxAge, unit, batchSize, DEFAULT_RETRY_DELAY_NANOS);
+  }
+
+  ChunkSaveQueue(Writer writer, int threads, int capacity, int flushThreshold, long maxAge, TimeUnit unit,
+      int batchSize, long retryDelayNanos) {
+    this.writer = writer;
+    this.retryDelayNanos = retryDelayNanos;
+    this.capacity = capacity;
+    this.flushThreshold = flushThreshold;
+    this.maxAgeNanos = unit.toNanos(maxAge);
+    this.batchSize = batchSize;
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          List<Chunk> batch;
+          while ((batch = take()) != null) {
+            write(batch);
+          }
+        }
+      }, "chunk-saver-" + i);
+      thread.setDaemon(true);
+      writers.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Marks the chunk dirty, blocking while the queue is full.
+   */
+  public void add(Chunk chunk) {
+    lock.lock();
+    try {
+      ChunkPosition position = chunk.getPosition();
+      Dirty previous = dirty.get(position);
+      if (previous != null) {
+        // keep the age of the first change and any retry delay
+        dirty.put(position, new Dirty(chunk, previous.since, previous.retry, previous.retryAt));
+        return;
+      }
+      while (running && !draining && dirty.size() >= capacity) {
+        changed.awaitUninterruptibly();
+      }
+      dirty.put(position, new Dirty(chunk, System.nanoTime()));
+      workAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the chunk at the position if it is waiting to be written or being written.
+   */
+  public Optional<Chunk> getPending(ChunkPosition position) {
+    lock.lock();
+    try {
+      Dirty pending = dirty.get(position);
+      if (pending != null) {
+        return Optional.of(pending.chunk);
+      }
+      return Optional.fromNullable(writing.get(position));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getPendingCount() {
+    lock.lock();
+    try {
+      return dirty.size() + writing.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the chunks that are dirty now without waiting for them to age, and waits until they have been written.
+   * Returns the number of them that could not be written within the timeout.
+   */
+  public int flush(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    lock.lock();
+    try {
+      Set<ChunkPosition> positions = Sets.newHashSet(dirty.keySet());
+      positions.addAll(writing.keySet());
+      flushing++;
+      workAvailable.signalAll();
+      try {
+        long remaining;
+        while (running && countPending(positions) > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+          changed.awaitNanos(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        flushing--;
+      }
+      return countPending(positions);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes all dirty chunks on all writers and stops them. Returns the number of chunks that could not be written
+   * within the timeout.
+   */
+  public int shutdown(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    lock.lock();
+    try {
+      draining = true;
+      workAvailable.signalAll();
+      changed.signalAll();
+      long remaining;
+      while (!(dirty.isEmpty() && writing.isEmpty()) && (remaining = deadline - System.nanoTime()) > 0) {
+        changed.awaitNanos(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      running = false;
+      workAvailable.signalAll();
+      lock.unlock();
+    }
+    lock.lock();
+    try {
+      return dirty.size() + writing.size() + unsaved;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private List<Chunk> take() {
+    lock.lock();
+    try {
+      while (running) {
+        long wait = getWaitNanos();
+        if (wait == 0) {
+          List<Chunk> batch = takeBatch();
+          if (!batch.isEmpty()) {
+            return batch;
+          }
+          // everything dirty is being written by the other writers
+          workAvailable.awaitUninterruptibly();
+        } else if (wait < 0) {
+          workAvailable.awaitUninterruptibly();
+        } else {
+          workAvailable.awaitNanos(wait);
+        }
+      }
+      return null;
+    } catch (InterruptedException e) {
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns 0 when there is a chunk to write, the time until the next chunk is due, or -1 when nothing is dirty.
+   */
+  private long getWaitNanos() {
+    if (dirty.isEmpty()) {
+      return -1;
+    }
+    if (draining) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    if (retrying == 0) {
+      if (flushing > 0 || dirty.size() >= flushThreshold) {
+        return 0;
+      }
+      return Math.max(0, dirty.values().iterator().next().getDue(maxAgeNanos) - now);
+    }
+    int ready = 0;
+    long wait = Long.MAX_VALUE;
+    for (Dirty pending : dirty.values()) {
+      if (!pending.retry || pending.retryAt - now <= 0) {
+        ready++;
+      }
+      wait = Math.min(wait, pending.getDue(maxAgeNanos) - now);
+    }
+    if (ready > 0 && (flushing > 0 || ready >= flushThreshold)) {
+      return 0;
+    }
+    return Math.max(0, wait);
+  }
+
+  private int countPending(Set<ChunkPosition> positions) {
+    int count = 0;
+    for (ChunkPosition position : positions) {
+      if (dirty.containsKey(position) || writing.containsKey(position)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private List<Chunk> takeBatch() {
+    List<Chunk> batch = Lists.newArrayList();
+    ChunkPosition region = null;
+    long now = System.nanoTime();
+    Iterator<Map.Entry<ChunkPosition, Dirty>> it = dirty.entrySet().iterator();
+    while (it.hasNext() && batch.size() < batchSize) {
+      Map.Entry<ChunkPosition, Dirty> entry = it.next();
+      ChunkPosition position = entry.getKey();
+      if (writing.containsKey(position)) {
+        continue;
+      }
+      Dirty pending = entry.getValue();
+      if (pending.retry && pending.retryAt - now > 0 && !draining) {
+        continue;
+      }
+      if (region == null) {
+        region = RegionStorage.getRegionPosition(position);
+      } else if (!region.equals(RegionStorage.getRegionPosition(position))) {
+        continue;
+      }
+      batch.add(pending.chunk);
+      writing.put(position, pending.chunk);
+      it.remove();
+      if (pending.retry) {
+        retrying--;
+      }
+    }
+    return batch;
+  }
+
+  private void write(List<Chunk> batch) {
+    boolean written = false;
+    try {
+      writer.write(batch);
+      written = true;
+    } catch (RuntimeException e) {
+      LOGGER.error("Error saving " + batch.size() + " chunks of region "
+          + RegionStorage.getRegionPosition(batch.get(0).getPosition()) + ", retrying later", e);
+    }
+    lock.lock();
+    try {
+      long now = System.nanoTime();
+      long retryAt = 0;
+      if (written) {
+        failures = 0;
+      } else {
+        failures++;
+        retryAt = now + (retryDelayNanos << Math.min(failures - 1, MAX_RETRY_DOUBLINGS));
+      }
+      for (Chunk chunk : batch) {
+        ChunkPosition position = chunk.getPosition();
+        writing.remove(position);
+        if (written || dirty.containsKey(position)) {
+          continue;
+        }
+        if (draining) {
+          unsaved++;
+        } else {
+          dirty.put(position, new Dirty(chunk, now, true, retryAt));
+          retrying++;
+        }
+      }
+      changed.signalAll();
+      workAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,217 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.Client;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the edits, chunks and chunk failures for one client in the order they were queued, on a thread of its own, so that a slow
+ * client does not hold up the server or the other clients.
+ * <p/>
+ * Edits queued within the batch delay of each other are merged into one call, as are chunks and failures queued
+ * while the client is busy. The queue is bounded by an estimate of its bytes; a client that falls further behind than that is
+ * given up on, and so is a client that cannot be reached.
+ */
+public final class ClientOutbox {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClientOutbox.class);
+  private static final long EDIT_BYTES = 32;
+  private static final long POSITION_BYTES = 16;
+
+  /**
+   * Told when the outbox gives up on its client.
+   */
+  public interface Listener {
+    void failed(Client client, String reason);
+  }
+
+  private final Client client;
+  private final long maxBytes;
+  private final long editBatchMillis;
+  private final Listener listener;
+  private final ScheduledExecutorService sender;
+  // guarded by this
+  private final Deque<Message> queue = new ArrayDeque<>();
+  private long queuedBytes = 0;
+  private boolean scheduled = false;
+  private boolean closed = false;
+
+  private static final class Message {
+    private final List<WorldEdit> edits;
+    private final List<byte[]> chunks;
+    private final List<ChunkPosition> failed;
+    private long bytes;
+
+    public Message(List<WorldEdit> edits, List<byte[]> chunks, List<ChunkPosition> failed) {
+      this.edits = edits;
+      this.chunks = chunks;
+      this.failed = failed;
+    }
+
+    private void send(Client client) throws RemoteException {
+      if (edits != null) {
+        client.registerWorldEdits(edits);
+      } else if (chunks != null) {
+        client.receiveChunks(chunks);
+      } else {
+        client.chunksFailed(failed);
+      }
+    }
+  }
+
+  /**
+   * @param maxBytes the most bytes to queue before giving up on the client
+   * @param editBatchMillis how long to wait for more edits before sending them
+   */
+  public ClientOutbox(Client client, long maxBytes, long editBatchMillis, Listener listener) {
+    this.client = client;
+    this.maxBytes = maxBytes;
+    this.editBatchMillis = editBatchMillis;
+    this.listener = listener;
+    this.sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "client-sender");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void sendEdits(List<WorldEdit> edits) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      Message last = queue.peekLast();
+      if (last == null || last.edits == null) {
+        last = new Message(Lists.<WorldEdit>newArrayList(), null, null);
+        queue.add(last);
+      }
+      last.edits.addAll(edits);
+      last.bytes += edits.size() * EDIT_BYTES;
+      queuedBytes += edits.size() * EDIT_BYTES;
+      if (queuedBytes <= maxBytes) {
+        schedule(editBatchMillis);
+        return;
+      }
+    }
+    overflow();
+  }
+
+  /**
+   * Queues a chunk encoded with ChunkCodec.
+   */
+  public void sendChunk(byte[] chunk) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      Message last = queue.peekLast();
+      if (last == null || last.chunks == null) {
+        last = new Message(null, Lists.<byte[]>newArrayList(), null);
+        queue.add(last);
+      }
+      last.chunks.add(chunk);
+      last.bytes += chunk.length;
+      queuedBytes += chunk.length;
+      if (queuedBytes <= maxBytes) {
+        schedule(0);
+        return;
+      }
+    }
+    overflow();
+  }
+
+  /**
+   * Queues a notice that a requested chunk will not be sent.
+   */
+  public void sendFailed(ChunkPosition position) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      Message last = queue.peekLast();
+      if (last == null || last.failed == null) {
+        last = new Message(null, null, Lists.<ChunkPosition>newArrayList());
+        queue.add(last);
+      }
+      last.failed.add(position);
+      last.bytes += POSITION_BYTES;
+      queuedBytes += POSITION_BYTES;
+      if (queuedBytes <= maxBytes) {
+        schedule(0);
+        return;
+      }
+    }
+    overflow();
+  }
+
+  public synchronized long getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  /**
+   * Drops what is queued and stops the sender.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      queue.clear();
+      queuedBytes = 0;
+    }
+    sender.shutdown();
+  }
+
+  private void schedule(long delayMillis) {
+    if (scheduled) {
+      return;
+    }
+    scheduled = true;
+    sender.schedule(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void drain() {
+    while (true) {
+      Message message;
+      synchronized (this) {
+        message = queue.poll();
+        if (message == null || closed) {
+          scheduled = false;
+          return;
+        }
+        queuedBytes -= message.bytes;
+      }
+      try {
+        message.send(client);
+      } catch (RemoteException | RuntimeException e) {
+        close();
+        LOGGER.warn("Error sending to client " + client + ": " + e);
+        listener.failed(client, "it could not be reached");
+        return;
+      }
+    }
+  }
+
+  private void overflow() {
+    close();
+    listener.failed(client, "more than " + (maxBytes >> 10) + " KB was queued for it");
+  }
+
+}
@@ -0,0 +1,98 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the chunks sent to clients encoded with {@link ChunkCodec}, so that a chunk many clients ask for is encoded
+ * once instead of once for each of them.
+ * <p/>
+ * An entry belongs to the chunk in memory, so it goes away when the chunk is evicted, and is only used for the
+ * version of the chunk it was encoded from. Edits invalidate the entries of the chunks they change. The entries are
+ * limited to {@code encodedCacheMegabytes} of encoded data.
+ */
+@Singleton
+public class EncodedChunkCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(EncodedChunkCache.class);
+  private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+  @Inject
+  private ServerSettings settings;
+
+  private Cache<Chunk, Entry> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private static final class Entry {
+    private final int version;
+    private final byte[] data;
+
+    public Entry(int version, byte[] data) {
+      this.version = version;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Returns the chunk encoded with {@link ChunkCodec}. The returned array is shared and must not be changed.
+   */
+  public byte[] getEncoded(Chunk chunk) {
+    Cache<Chunk, Entry> cache = getEntries();
+    Entry entry = cache.getIfPresent(chunk);
+    synchronized (chunk) {
+      if (entry != null && entry.version == chunk.getVersion()) {
+        hits.incrementAndGet();
+        return entry.data;
+      }
+      entry = new Entry(chunk.getVersion(), ChunkCodec.encode(chunk));
+    }
+    misses.incrementAndGet();
+    cache.put(chunk, entry);
+    return entry.data;
+  }
+
+  public void invalidate(Chunk chunk) {
+    getEntries().invalidate(chunk);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public void logStatistics() {
+    long total = Math.max(1, hits.get() + misses.get());
+    LOGGER.info(String.format("Encoded chunks: %d sent from the cache, %d encoded (hit rate %.1f%%)",
+        hits.get(), misses.get(), 100.0 * hits.get() / total));
+  }
+
+  private synchronized Cache<Chunk, Entry> getEntries() {
+    if (entries == null) {
+      // weak keys compare the chunks by identity, so a chunk loaded again does not find the entry of the old one
+      entries = CacheBuilder.newBuilder()
+          .weakKeys()
+          .maximumWeight((long) settings.getEncodedCacheMegabytes() << 20)
+          .weigher(new Weigher<Chunk, Entry>() {
+            @Override
+            public int weigh(Chunk chunk, Entry entry) {
+              return entry.data.length + ENTRY_OVERHEAD_BYTES;
+            }
+          })
+          .build();
+    }
+    return entries;
+  }
+
+}
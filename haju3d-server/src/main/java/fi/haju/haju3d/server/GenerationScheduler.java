@@ -0,0 +1,294 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs chunk resolution work on a pool of worker threads.
+ * <p/>
+ * Work is queued per owner (typically a logged in client) and ordered by distance to the owner's position.
+ * Workers serve the owners in turn, so one client exploring new terrain cannot starve the others. Work for a
+ * position is shared between all owners that asked for it, and is cancelled once none of them needs it any more.
+ * <p/>
+ * Background work is only started when no foreground work is waiting. Scheduling foreground work for a position
+ * that is queued in the background promotes it to the foreground queue of the new owner.
+ */
+public class GenerationScheduler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GenerationScheduler.class);
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition workAvailable = lock.newCondition();
+  private final Map<ChunkPosition, Task> tasks = new HashMap<>();
+  // iteration order is the round robin order of the owners
+  private final LinkedHashMap<Object, PriorityQueue<QueueEntry>> queues = new LinkedHashMap<>();
+  private final LinkedHashMap<Object, PriorityQueue<QueueEntry>> backgroundQueues = new LinkedHashMap<>();
+  private final List<Thread> workers = Lists.newArrayList();
+  private long sequence = 0;
+  private boolean running = true;
+
+  private final class Task {
+    private final ChunkPosition position;
+    private final Callable<Chunk> work;
+    private final SettableFuture<Chunk> future = SettableFuture.create();
+    private final Set<Object> owners = new HashSet<>();
+    private boolean started = false;
+
+    public Task(ChunkPosition position, Callable<Chunk> work) {
+      this.position = position;
+      this.work = work;
+    }
+  }
+
+  private static final class QueueEntry implements Comparable<QueueEntry> {
+    private final Task task;
+    private final Object owner;
+    private final int distance;
+    private final long sequence;
+
+    public QueueEntry(Task task, Object owner, int distance, long sequence) {
+      this.task = task;
+      this.owner = owner;
+      this.distance = distance;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(QueueEntry o) {
+      if (distance != o.distance) {
+        return distance < o.distance ? -1 : 1;
+      }
+      return sequence < o.sequence ? -1 : (sequence > o.sequence ? 1 : 0);
+    }
+  }
+
+  public GenerationScheduler(int threads) {
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Task task;
+          while ((task = take()) != null) {
+            execute(task);
+          }
+        }
+      }, "chunk-worker-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Queues work for a position on behalf of an owner. If the position is already queued or running the
+   * existing future is returned and the owner is added to the ones waiting for it.
+   */
+  public ListenableFuture<Chunk> schedule(Object owner, ChunkPosition position, int distance, Callable<Chunk> work) {
+    return schedule(queues, owner, position, distance, work);
+  }
+
+  /**
+   * Queues low priority work that is only started when there is no foreground work waiting.
+   */
+  public ListenableFuture<Chunk> scheduleBackground(Object owner, ChunkPosition position, int distance, Callable<Chunk> work) {
+    return schedule(backgroundQueues, owner, position, distance, work);
+  }
+
+  private ListenableFuture<Chunk> schedule(Map<Object, PriorityQueue<QueueEntry>> tier, Object owner,
+      ChunkPosition position, int distance, Callable<Chunk> work) {
+    lock.lock();
+    try {
+      Task task = tasks.get(position);
+      if (task == null) {
+        task = new Task(position, work);
+        tasks.put(position, task);
+      }
+      if (task.owners.add(owner) && !task.started) {
+        getQueue(tier, owner).add(new QueueEntry(task, owner, distance, sequence++));
+        workAvailable.signal();
+      }
+      return task.future;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Withdraws the owner's interest in the given positions. Work that nobody waits for any more is cancelled
+   * unless it has already started.
+   */
+  public void cancel(Object owner, Collection<ChunkPosition> positions) {
+    List<Task> cancelled = Lists.newArrayList();
+    lock.lock();
+    try {
+      for (ChunkPosition position : positions) {
+        Task task = tasks.get(position);
+        if (task != null && task.owners.remove(owner) && task.owners.isEmpty() && !task.started) {
+          tasks.remove(position);
+          cancelled.add(task);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (Task task : cancelled) {
+      task.future.cancel(false);
+    }
+  }
+
+  public void cancelAll(Object owner) {
+    List<ChunkPosition> positions = Lists.newArrayList();
+    lock.lock();
+    try {
+      for (Task task : tasks.values()) {
+        if (task.owners.contains(owner)) {
+          positions.add(task.position);
+        }
+      }
+      queues.remove(owner);
+      backgroundQueues.remove(owner);
+    } finally {
+      lock.unlock();
+    }
+    cancel(owner, positions);
+  }
+
+  /**
+   * Whether work for the position has been started and has not finished yet.
+   */
+  public boolean isStarted(ChunkPosition position) {
+    lock.lock();
+    try {
+      Task task = tasks.get(position);
+      return task != null && task.started;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueuedCount() {
+    lock.lock();
+    try {
+      return tasks.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void shutdown() {
+    lock.lock();
+    try {
+      running = false;
+      workAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static PriorityQueue<QueueEntry> getQueue(Map<Object, PriorityQueue<QueueEntry>> tier, Object owner) {
+    PriorityQueue<QueueEntry> queue = tier.get(owner);
+    if (queue == null) {
+      queue = new PriorityQueue<>();
+      tier.put(owner, queue);
+    }
+    return queue;
+  }
+
+  private Task take() {
+    lock.lock();
+    try {
+      while (running) {
+        Task task = pollNext(queues);
+        if (task == null) {
+          task = pollNext(backgroundQueues);
+        }
+        if (task != null) {
+          task.started = true;
+          return task;
+        }
+        workAvailable.awaitUninterruptibly();
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the nearest runnable entry of the first owner that has one and moves that owner to the back of the
+   * round robin order.
+   */
+  private Task pollNext(Map<Object, PriorityQueue<QueueEntry>> tier) {
+    Iterator<Map.Entry<Object, PriorityQueue<QueueEntry>>> it = tier.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Object, PriorityQueue<QueueEntry>> entry = it.next();
+      PriorityQueue<QueueEntry> queue = entry.getValue();
+      QueueEntry next = pollRunnable(queue);
+      if (next == null) {
+        it.remove();
+        continue;
+      }
+      it.remove();
+      if (!queue.isEmpty()) {
+        tier.put(entry.getKey(), queue);
+      }
+      return next.task;
+    }
+    return null;
+  }
+
+  private QueueEntry pollRunnable(PriorityQueue<QueueEntry> queue) {
+    while (!queue.isEmpty()) {
+      QueueEntry entry = queue.poll();
+      Task task = entry.task;
+      if (!task.started && task.owners.contains(entry.owner) && tasks.get(task.position) == task) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private void execute(Task task) {
+    try {
+      Chunk chunk = task.work.call();
+      finish(task);
+      task.future.set(chunk);
+    } catch (Throwable e) {
+      // errors too, or the waiting clients would never hear of the chunk
+      LOGGER.error("Error resolving chunk " + task.position, e);
+      finish(task);
+      // the future rethrows errors it is failed with, which would end the worker
+      task.future.setException(e instanceof Error ? new RuntimeException(e) : e);
+    }
+  }
+
+  private void finish(Task task) {
+    lock.lock();
+    try {
+      if (tasks.get(task.position) == task) {
+        tasks.remove(task.position);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,36 @@
+package fi.haju.haju3d.server;
+
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the chunk files of the configured world, saved one file per chunk by older versions, into region files.
+ * The tool is safe to run again if it is interrupted.
+ */
+public class SaveMigrator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SaveMigrator.class);
+
+  @Inject
+  private ServerSettings settings;
+
+  @Inject
+  private WorldSaver saver;
+
+  public static void main(String[] args) {
+    Injector injector = Guice.createInjector(new ServerModule());
+    injector.getInstance(SaveMigrator.class).run();
+  }
+
+  public void run() {
+    settings.init();
+    long start = System.currentTimeMillis();
+    LOGGER.info("Migrating chunk files of world " + settings.getWorldName() + " in " + settings.getSavePath());
+    int migrated = saver.migrateLegacyChunkFiles();
+    saver.shutdown();
+    LOGGER.info("Migrated " + migrated + " chunk files in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+}
@@ -1,7 +1,9 @@
 package fi.haju.haju3d.server;
 
-import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import fi.haju.haju3d.protocol.Client;
@@ -10,15 +12,15 @@ import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
 import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
 import fi.haju.haju3d.protocol.interaction.WorldEdit;
 import fi.haju.haju3d.protocol.world.Chunk;
-import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
-import fi.haju.haju3d.protocol.world.World;
 import fi.haju.haju3d.server.world.WorldGenerator;
-import fi.haju.haju3d.server.world.WorldInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 @Singleton
 public class ServerImpl implements Server {
@@ -30,116 +32,249 @@ public class ServerImpl implements Server {
   @Inject
   private WorldSaver saver;
 
+  @Inject
+  private ChunkResolver resolver;
+
+  @Inject
+  private BackgroundGenerator backgroundGenerator;
+
   @Inject
   private ServerSettings settings;
 
-  private List<Client> loggedInClients = Collections.synchronizedList(new ArrayList<Client>());
-  private ChunkCoordinateSystem chunkCoordinateSystem = ChunkCoordinateSystem.DEFAULT;
-  private World world = new World(chunkCoordinateSystem);
+  @Inject
+  private WorldSnapshots snapshots;
 
-  private interface AsyncClientCall {
-    void run() throws RemoteException;
-  }
+  @Inject
+  private EncodedChunkCache encodedChunks;
+
+  // the outboxes of the logged in clients
+  private final Map<Client, ClientOutbox> outboxes = new ConcurrentHashMap<>();
+  private final ChunkInterest interest = new ChunkInterest();
 
   public void start() {
     LOGGER.info("Starting the server");
     settings.init();
-    Optional<WorldInfo> opt = saver.loadInfoIfOnDisk();
-    if (!opt.isPresent()) {
-      int seed = new Random().nextInt();
-      String name = settings.getWorldName();
-      WorldInfo info = new WorldInfo(name, seed);
-      opt = Optional.of(info);
-      saver.saveWorldInfo(info);
-    }
-    generator.setSeed(opt.get().getSeed());
+    generator.setSeed(saver.loadOrCreateWorldInfo().getSeed());
+    replayJournal();
+    snapshots.start();
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       @Override
       public void run() {
         LOGGER.info("Shutting down the server");
+        backgroundGenerator.logStatistics();
+        generator.logStatistics();
+        resolver.getResidency().logStatistics();
+        encodedChunks.logStatistics();
+        snapshots.shutdown();
+        resolver.shutdown();
         saver.shutdown();
       }
     }));
   }
 
+  private void replayJournal() {
+    List<WorldEdit> edits = saver.readJournal();
+    if (edits.isEmpty()) {
+      return;
+    }
+    LOGGER.info("Replaying " + edits.size() + " edits from the journal");
+    int chunkSize = resolver.getChunkCoordinateSystem().getChunkSize();
+    List<WorldEdit> valid = Lists.newArrayList();
+    for (WorldEdit edit : edits) {
+      if (edit.isValid(chunkSize)) {
+        valid.add(edit);
+      } else {
+        LOGGER.warn("Skipping journaled " + edit + " as it cannot be applied");
+      }
+    }
+    try {
+      applyEdits(valid);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Replaying the edits together failed, replaying them one by one", e);
+      for (WorldEdit edit : valid) {
+        try {
+          applyEdits(Collections.singletonList(edit));
+        } catch (RuntimeException editError) {
+          LOGGER.warn("Skipping journaled " + edit + " as it cannot be applied", editError);
+        }
+      }
+    }
+    saver.checkpoint();
+  }
+
   @Override
   public synchronized void login(Client client) {
     LOGGER.info("Client " + client + " logged in");
-    loggedInClients.add(client);
+    ClientOutbox outbox = new ClientOutbox(client, (long) settings.getMaxClientQueueMegabytes() << 20,
+        settings.getEditBatchMillis(), new ClientOutbox.Listener() {
+          @Override
+          public void failed(Client client, String reason) {
+            LOGGER.warn("Giving up on client " + client + " as " + reason);
+            disconnect(client);
+          }
+        });
+    ClientOutbox previous = outboxes.put(client, outbox);
+    if (previous != null) {
+      previous.close();
+    }
+    interest.register(client);
   }
 
   @Override
   public synchronized void logout(Client client) {
-    loggedInClients.remove(client);
+    closeOutbox(client);
+    resolver.cancelAll(client);
+    resolver.removeReach(client);
+    backgroundGenerator.remove(client);
+    backgroundGenerator.logStatistics();
   }
 
   @Override
   public Chunk getChunk(ChunkPosition position) throws RemoteException {
-    return getOrGenerateChunk(position);
+    return resolver.getChunk(position);
   }
 
-  private synchronized Chunk getOrGenerateChunk(ChunkPosition position) {
-    if (world.hasChunk(position)) {
-      return world.getChunk(position);
-    } else {
-      Optional<Chunk> opt = saver.loadChunkIfOnDisk(position);
-      if (opt.isPresent()) {
-        world.setChunk(position, opt.get());
-        return opt.get();
-      }
-      LOGGER.info("generating chunk " + position);
-      int sizeLog2 = chunkCoordinateSystem.getChunkSizeLog2();
-      Chunk newChunk = generator.generateChunk(position, sizeLog2);
-      world.setChunk(position, newChunk);
-      saver.save(newChunk);
-      return newChunk;
-    }
+  @Override
+  public List<Chunk> getChunks(Collection<ChunkPosition> positions) throws RemoteException {
+    return resolver.getChunks(positions);
   }
 
   @Override
-  public List<Chunk> getChunks(Collection<ChunkPosition> positions) throws RemoteException {
-    List<Chunk> chunks = Lists.newArrayList();
-    for (ChunkPosition pos : positions) {
-      chunks.add(getChunk(pos));
+  public List<Chunk> getChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    interest.add(client, positions);
+    backgroundGenerator.update(client, origin, positions);
+    resolver.setReach(client, origin, positions);
+    return resolver.getChunks(client, origin, positions);
+  }
+
+  @Override
+  public List<byte[]> getEncodedChunks(Client client, ChunkPosition origin, Collection<ChunkPosition> positions) {
+    List<byte[]> encoded = Lists.newArrayList();
+    for (Chunk chunk : getChunks(client, origin, positions)) {
+      encoded.add(encodedChunks.getEncoded(chunk));
     }
-    return chunks;
+    return encoded;
   }
 
   @Override
-  public void registerWorldEdits(final List<WorldEdit> edits) {
-    for (WorldEdit edit : edits) {
-      Chunk chunk = getOrGenerateChunk(edit.getPosition().getChunkPosition());
-      LocalTilePosition p = edit.getPosition().getTileWithinChunk();
-      chunk.set(p.x, p.y, p.z, edit.getNewTile());
-      saver.save(chunk);
+  public void requestChunks(final Client client, final ChunkPosition origin, Collection<ChunkPosition> positions) {
+    List<ChunkPosition> nearestFirst = Lists.newArrayList(positions);
+    if (origin != null) {
+      // the chunks in memory are pushed right away in this order
+      Collections.sort(nearestFirst, new Comparator<ChunkPosition>() {
+        @Override
+        public int compare(ChunkPosition a, ChunkPosition b) {
+          return Integer.compare(a.distanceTo(origin), b.distanceTo(origin));
+        }
+      });
     }
-    for (final Client client : loggedInClients) {
-      asyncCall(client, new AsyncClientCall() {
-        public void run() throws RemoteException {
-          client.registerWorldEdits(edits);
+    List<ListenableFuture<Chunk>> futures = getChunksAsync(client, origin, nearestFirst);
+    for (int i = 0; i < futures.size(); i++) {
+      final ChunkPosition position = nearestFirst.get(i);
+      Futures.addCallback(futures.get(i), new FutureCallback<Chunk>() {
+        @Override
+        public void onSuccess(Chunk chunk) {
+          ClientOutbox outbox = outboxes.get(client);
+          if (outbox != null) {
+            outbox.sendChunk(encodedChunks.getEncoded(chunk));
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          if (t instanceof CancellationException) {
+            return;
+          }
+          LOGGER.error("Error resolving a chunk for " + client, t);
+          // so that the client can ask for it again
+          ClientOutbox outbox = outboxes.get(client);
+          if (outbox != null) {
+            outbox.sendFailed(position);
+          }
         }
       });
     }
   }
 
-  private void asyncCall(final Client client, final AsyncClientCall call) {
-    new Thread(new Runnable() {
+  /**
+   * Starts resolving the chunks for the client without waiting for them, nearest to the origin first. Without an
+   * origin the chunks are only resolved.
+   */
+  public List<ListenableFuture<Chunk>> getChunksAsync(Client client, ChunkPosition origin,
+      Collection<ChunkPosition> positions) {
+    interest.add(client, positions);
+    if (origin != null) {
+      backgroundGenerator.update(client, origin, positions);
+      resolver.setReach(client, origin, positions);
+    }
+    List<ListenableFuture<Chunk>> futures = Lists.newArrayList();
+    for (ChunkPosition position : positions) {
+      futures.add(resolver.getChunkAsync(client, origin, position));
+    }
+    return futures;
+  }
+
+  @Override
+  public void cancelChunks(Client client, Collection<ChunkPosition> positions) {
+    resolver.cancel(client, positions);
+  }
+
+  @Override
+  public void registerWorldEdits(final List<WorldEdit> edits) {
+    saver.applyEdits(edits, new Runnable() {
       @Override
       public void run() {
-        try {
-          call.run();
-        } catch (RemoteException e) {
-          LOGGER.warn("Error communicating with client " + client + " disconnecting");
-          disconnect(client);
+        applyEdits(edits);
+      }
+    });
+    // only the clients holding the chunks need the edits
+    for (Map.Entry<Client, List<WorldEdit>> routed : interest.route(edits).entrySet()) {
+      ClientOutbox outbox = outboxes.get(routed.getKey());
+      if (outbox != null) {
+        outbox.sendEdits(routed.getValue());
+      }
+    }
+  }
+
+  private void applyEdits(List<WorldEdit> edits) {
+    Set<ChunkPosition> positions = new HashSet<>();
+    for (WorldEdit edit : edits) {
+      positions.add(edit.getPosition().getChunkPosition());
+    }
+    // resolved before taking the lock, so that eviction does not wait for loading or generation
+    resolver.getChunks(positions);
+    Lock editLock = resolver.getEditLock();
+    editLock.lock();
+    try {
+      for (WorldEdit edit : edits) {
+        Chunk chunk = resolver.getChunk(edit.getPosition().getChunkPosition());
+        LocalTilePosition p = edit.getPosition().getTileWithinChunk();
+        synchronized (chunk) {
+          chunk.set(p.x, p.y, p.z, edit.getNewTile());
         }
+        encodedChunks.invalidate(chunk);
+        saver.save(chunk);
       }
-    }).start();
+    } finally {
+      editLock.unlock();
+    }
+  }
+
+  private void closeOutbox(Client client) {
+    interest.remove(client);
+    ClientOutbox outbox = outboxes.remove(client);
+    if (outbox != null) {
+      outbox.close();
+    }
   }
 
   @Override
   public void disconnect(Client client) {
     LOGGER.info("Disconnecting " + client);
-    loggedInClients.remove(client);
+    closeOutbox(client);
+    resolver.cancelAll(client);
+    resolver.removeReach(client);
+    backgroundGenerator.remove(client);
   }
 
 }
@@ -3,10 +3,14 @@ package fi.haju.haju3d.server;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import fi.haju.haju3d.protocol.Server;
+import fi.haju.haju3d.server.net.StreamServer;
 import fi.haju.haju3d.server.world.WorldGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -27,15 +31,38 @@ public class ServerRunner {
       server.start();
 
       startServer(server);
+      injector.getInstance(StreamServer.class).start();
 
+      readCommands(injector);
+      // no console
       while (true) {
         Thread.sleep(100);
       }
-    } catch (RemoteException | InterruptedException e) {
+    } catch (IOException | InterruptedException e) {
       LOGGER.error("Error running Haju3D server", e);
     }
   }
 
+  private static void readCommands(Injector injector) throws IOException {
+    BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+    String line;
+    while ((line = console.readLine()) != null) {
+      String command = line.trim();
+      try {
+        if (command.equals("snapshot")) {
+          injector.getInstance(WorldSnapshots.class).takeSnapshot();
+        } else if (command.equals("check") || command.equals("repair")) {
+          injector.getInstance(StorageChecker.class).check(command.equals("repair"),
+              injector.getInstance(ChunkResolver.class));
+        } else if (!command.isEmpty()) {
+          LOGGER.info("Unknown command " + command + ", the commands are: snapshot, check, repair");
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error("Error running command " + command, e);
+      }
+    }
+  }
+
   private static void startServer(ServerImpl server) throws RemoteException {
     Registry registry = LocateRegistry.createRegistry(PORT);
     Server stub = (Server) UnicastRemoteObject.exportObject(server, PORT);
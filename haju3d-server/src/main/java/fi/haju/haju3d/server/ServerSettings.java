@@ -10,16 +10,58 @@ public class ServerSettings extends SettingsManager {
 
   private static final String WORLD_NAME_KEY = "worldName";
   private static final String SAVE_PATH_KEY = "savePath";
+  private static final String PREGENERATION_RADIUS_KEY = "pregenerationRadius";
+  private static final String SAVE_THREADS_KEY = "saveThreads";
+  private static final String MAX_DIRTY_CHUNKS_KEY = "maxDirtyChunks";
+  private static final String SAVE_DELAY_SECONDS_KEY = "saveDelaySeconds";
+  private static final String STORAGE_MODE_KEY = "storageMode";
+  private static final String LOAD_THREADS_KEY = "loadThreads";
+  private static final String SNAPSHOT_PATH_KEY = "snapshotPath";
+  private static final String SNAPSHOT_INTERVAL_MINUTES_KEY = "snapshotIntervalMinutes";
+  private static final String MAX_RESIDENT_CHUNKS_KEY = "maxResidentChunks";
+  private static final String MAX_RESIDENT_MEGABYTES_KEY = "maxResidentMegabytes";
+  private static final String STREAM_PORT_KEY = "streamPort";
+  private static final String ENCODED_CACHE_MEGABYTES_KEY = "encodedCacheMegabytes";
+  private static final String MAX_CLIENT_QUEUE_MEGABYTES_KEY = "maxClientQueueMegabytes";
+  private static final String EDIT_BATCH_MILLIS_KEY = "editBatchMillis";
 
   private static final String CONFIG_FILE_NAME = "haju3d-server.properties";
 
   private String worldName;
   private File savePath;
+  private int pregenerationRadius;
+  private int saveThreads;
+  private int maxDirtyChunks;
+  private int saveDelaySeconds;
+  private StorageMode storageMode;
+  private int loadThreads;
+  private File snapshotPath;
+  private int snapshotIntervalMinutes;
+  private int maxResidentChunks;
+  private int maxResidentMegabytes;
+  private int streamPort;
+  private int encodedCacheMegabytes;
+  private int maxClientQueueMegabytes;
+  private int editBatchMillis;
 
   @Override
   protected void loadSettings() {
     worldName = loadString(WORLD_NAME_KEY, "default");
     savePath = new File(loadString(SAVE_PATH_KEY, "./saves"));
+    pregenerationRadius = loadInt(PREGENERATION_RADIUS_KEY, 2);
+    saveThreads = loadInt(SAVE_THREADS_KEY, 2);
+    maxDirtyChunks = loadInt(MAX_DIRTY_CHUNKS_KEY, 4096);
+    saveDelaySeconds = loadInt(SAVE_DELAY_SECONDS_KEY, 300);
+    storageMode = StorageMode.valueOf(loadString(STORAGE_MODE_KEY, StorageMode.FULL.name()).toUpperCase());
+    loadThreads = loadInt(LOAD_THREADS_KEY, 2);
+    snapshotPath = new File(loadString(SNAPSHOT_PATH_KEY, "./snapshots"));
+    snapshotIntervalMinutes = loadInt(SNAPSHOT_INTERVAL_MINUTES_KEY, 0);
+    maxResidentChunks = loadInt(MAX_RESIDENT_CHUNKS_KEY, 0);
+    maxResidentMegabytes = loadInt(MAX_RESIDENT_MEGABYTES_KEY, 1024);
+    streamPort = loadInt(STREAM_PORT_KEY, 5252);
+    encodedCacheMegabytes = loadInt(ENCODED_CACHE_MEGABYTES_KEY, 64);
+    maxClientQueueMegabytes = loadInt(MAX_CLIENT_QUEUE_MEGABYTES_KEY, 32);
+    editBatchMillis = loadInt(EDIT_BATCH_MILLIS_KEY, 20);
   }
 
   @Override
@@ -35,4 +77,60 @@ public class ServerSettings extends SettingsManager {
     return savePath;
   }
 
+  public int getPregenerationRadius() {
+    return pregenerationRadius;
+  }
+
+  public int getSaveThreads() {
+    return saveThreads;
+  }
+
+  public int getMaxDirtyChunks() {
+    return maxDirtyChunks;
+  }
+
+  public int getSaveDelaySeconds() {
+    return saveDelaySeconds;
+  }
+
+  public StorageMode getStorageMode() {
+    return storageMode;
+  }
+
+  public int getLoadThreads() {
+    return loadThreads;
+  }
+
+  public File getSnapshotPath() {
+    return snapshotPath;
+  }
+
+  public int getSnapshotIntervalMinutes() {
+    return snapshotIntervalMinutes;
+  }
+
+  public int getMaxResidentChunks() {
+    return maxResidentChunks;
+  }
+
+  public int getMaxResidentMegabytes() {
+    return maxResidentMegabytes;
+  }
+
+  public int getStreamPort() {
+    return streamPort;
+  }
+
+  public int getEncodedCacheMegabytes() {
+    return encodedCacheMegabytes;
+  }
+
+  public int getMaxClientQueueMegabytes() {
+    return maxClientQueueMegabytes;
+  }
+
+  public int getEditBatchMillis() {
+    return editBatchMillis;
+  }
+
 }
@@ -0,0 +1,165 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.server.storage.RegionStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that every chunk stored for the configured world decodes. A repair also moves the chunks that do not into
+ * the {@code quarantine} directory of the world, where they are kept as chunk files, and compacts the region files.
+ * Quarantined chunks are generated again.
+ * <p/>
+ * The regions are checked in parallel on all cores. The checker runs on its own with {@code StorageChecker [repair]}
+ * or on a running server with its {@code check} and {@code repair} commands. On a running server the corrupt chunks
+ * that are in memory are saved again instead, and the ones waiting to be saved are left for the save to replace.
+ */
+@Singleton
+public class StorageChecker {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StorageChecker.class);
+
+  @Inject
+  private ServerSettings settings;
+
+  @Inject
+  private WorldSaver saver;
+
+  public static void main(String[] args) {
+    Injector injector = Guice.createInjector(new ServerModule());
+    StorageChecker checker = injector.getInstance(StorageChecker.class);
+    checker.settings.init();
+    try {
+      checker.check(args.length > 0 && args[0].equals("repair"));
+    } finally {
+      checker.saver.shutdown();
+    }
+  }
+
+  /**
+   * The outcome of a check.
+   */
+  public static final class Report {
+    public final int regions;
+    public final long chunks;
+    public final long corrupt;
+    public final long reclaimedBytes;
+
+    public Report(int regions, long chunks, long corrupt, long reclaimedBytes) {
+      this.regions = regions;
+      this.chunks = chunks;
+      this.corrupt = corrupt;
+      this.reclaimedBytes = reclaimedBytes;
+    }
+  }
+
+  public Report check(boolean repair) {
+    return check(repair, null);
+  }
+
+  /**
+   * @param resolver the chunks of the running server, or null if the server is not running
+   */
+  public Report check(final boolean repair, final ChunkResolver resolver) {
+    long start = System.currentTimeMillis();
+    final RegionStorage storage = saver.getStorage();
+    final File quarantine = new File(storage.getDirectory(), "quarantine");
+    final AtomicLong chunks = new AtomicLong();
+    final AtomicLong corrupt = new AtomicLong();
+    final AtomicLong quarantined = new AtomicLong();
+    final AtomicLong reclaimed = new AtomicLong();
+    List<ChunkPosition> regions = storage.getRegions();
+    LOGGER.info((repair ? "Repairing " : "Checking ") + regions.size() + " regions of world "
+        + settings.getWorldName());
+
+    ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "storage-checker-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      List<Future<?>> futures = Lists.newArrayList();
+      for (final ChunkPosition region : regions) {
+        futures.add(workers.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            for (ChunkPosition pos : storage.getChunks(region)) {
+              chunks.incrementAndGet();
+              try {
+                saver.verifyStoredChunk(pos);
+              } catch (IOException | RuntimeException e) {
+                corrupt.incrementAndGet();
+                LOGGER.error("Chunk " + pos + " is corrupt: " + e);
+                if (repair && repair(pos, quarantine, resolver)) {
+                  quarantined.incrementAndGet();
+                }
+              }
+            }
+            if (repair) {
+              reclaimed.addAndGet(storage.compact(region));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    } finally {
+      workers.shutdownNow();
+    }
+
+    long millis = Math.max(1, System.currentTimeMillis() - start);
+    LOGGER.info(String.format("Checked %d chunks in %d regions in %d ms (%d chunks/s): %d corrupt%s, %d KB reclaimed",
+        chunks.get(), regions.size(), millis, chunks.get() * 1000 / millis, corrupt.get(),
+        quarantined.get() > 0 ? ", " + quarantined.get() + " moved to " + quarantine : "", reclaimed.get() >> 10));
+    return new Report(regions.size(), chunks.get(), corrupt.get(), reclaimed.get());
+  }
+
+  /**
+   * Returns whether the chunk was quarantined.
+   */
+  private boolean repair(ChunkPosition pos, File quarantine, ChunkResolver resolver) throws IOException {
+    if (resolver != null) {
+      Optional<Chunk> resident = resolver.getChunkIfResident(pos);
+      if (resident.isPresent()) {
+        LOGGER.info("Chunk " + pos + " is in memory, saving it again");
+        saver.save(resident.get());
+        return false;
+      }
+      if (!saver.isSaved(pos)) {
+        LOGGER.info("Chunk " + pos + " is about to be saved, leaving it");
+        return false;
+      }
+    }
+    saver.quarantineChunk(pos, quarantine);
+    return true;
+  }
+
+}
@@ -0,0 +1,16 @@
+package fi.haju.haju3d.server;
+
+/**
+ * How chunks are stored on disk.
+ */
+public enum StorageMode {
+  /**
+   * Every chunk that has been generated is stored in full.
+   */
+  FULL,
+  /**
+   * Only the tiles of edited chunks that differ from the generated chunk are stored. Other chunks are generated
+   * again from the seed when they are loaded.
+   */
+  DELTA
+}
@@ -0,0 +1,153 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.server.world.WorldGenerator;
+import fi.haju.haju3d.server.world.WorldInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates a box of chunks of the configured world on all cores and writes them straight to disk.
+ * <p/>
+ * Chunks that are already on disk are skipped, so an interrupted run can be resumed by running it again with the
+ * same arguments. Chunks are generated nearest to the center of the box first.
+ * <p/>
+ * Usage: {@code WorldPregenerator width height depth [centerX centerY centerZ]}, sizes in chunks.
+ */
+public class WorldPregenerator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorldPregenerator.class);
+  private static final long PROGRESS_INTERVAL_SECONDS = 5;
+
+  @Inject
+  private ServerSettings settings;
+
+  @Inject
+  private WorldSaver saver;
+
+  @Inject
+  private WorldGenerator generator;
+
+  private final AtomicInteger generated = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  public static void main(String[] args) {
+    if (args.length != 3 && args.length != 6) {
+      System.err.println("Usage: WorldPregenerator width height depth [centerX centerY centerZ]");
+      System.exit(1);
+    }
+    ChunkPosition size = new ChunkPosition(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    ChunkPosition center = args.length == 6
+        ? new ChunkPosition(Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]))
+        : new ChunkPosition(0, 0, 0);
+    Injector injector = Guice.createInjector(new ServerModule());
+    injector.getInstance(WorldPregenerator.class).run(center, size);
+  }
+
+  public void run(ChunkPosition center, ChunkPosition size) {
+    settings.init();
+    if (settings.getStorageMode() == StorageMode.DELTA) {
+      LOGGER.info("Nothing to pre-generate, the world is stored as changes to generated chunks");
+      saver.shutdown();
+      return;
+    }
+    WorldInfo info = saver.loadOrCreateWorldInfo();
+    generator.setSeed(info.getSeed());
+    final List<ChunkPosition> positions = makeBox(center, size);
+    int threads = Runtime.getRuntime().availableProcessors();
+    LOGGER.info("Pre-generating " + positions.size() + " chunks around " + center + " of world " + info.getWorldName()
+        + " on " + threads + " threads");
+
+    final long start = System.nanoTime();
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        logProgress(positions.size(), start);
+      }
+    }, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    final int sizeLog2 = ChunkCoordinateSystem.DEFAULT.getChunkSizeLog2();
+    for (final ChunkPosition position : positions) {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          generate(position, sizeLog2);
+        }
+      });
+    }
+    workers.shutdown();
+    try {
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      reporter.shutdownNow();
+      saver.shutdown();
+    }
+    logProgress(positions.size(), start);
+    generator.logStatistics();
+    LOGGER.info("Pre-generation done");
+  }
+
+  private void generate(ChunkPosition position, int sizeLog2) {
+    try {
+      if (saver.isChunkOnDisk(position)) {
+        skipped.incrementAndGet();
+        return;
+      }
+      saver.saveImmediately(generator.generateChunk(position, sizeLog2));
+      generated.incrementAndGet();
+    } catch (RuntimeException e) {
+      LOGGER.error("Error pre-generating chunk " + position, e);
+      failed.incrementAndGet();
+    }
+  }
+
+  private void logProgress(int total, long start) {
+    int done = generated.get();
+    int resumed = skipped.get();
+    int errors = failed.get();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    double rate = seconds > 0 ? done / seconds : 0;
+    int remaining = total - done - resumed - errors;
+    String eta = rate > 0 ? String.format("%.0f s", remaining / rate) : "unknown";
+    LOGGER.info(String.format("%d / %d chunks (%.1f%%), %d generated, %d already on disk, %d failed, %.1f chunks/s, "
+        + "eta %s", total - remaining, total, 100.0 * (total - remaining) / total, done, resumed, errors, rate, eta));
+  }
+
+  private static List<ChunkPosition> makeBox(final ChunkPosition center, ChunkPosition size) {
+    List<ChunkPosition> positions = Lists.newArrayList();
+    ChunkPosition min = center.add(-size.x / 2, -size.y / 2, -size.z / 2);
+    for (int x = 0; x < size.x; x++) {
+      for (int y = 0; y < size.y; y++) {
+        for (int z = 0; z < size.z; z++) {
+          positions.add(min.add(x, y, z));
+        }
+      }
+    }
+    Collections.sort(positions, new Comparator<ChunkPosition>() {
+      @Override
+      public int compare(ChunkPosition o1, ChunkPosition o2) {
+        return Integer.compare(o1.distanceTo(center), o2.distanceTo(center));
+      }
+    });
+    return positions;
+  }
+
+}
@@ -1,11 +1,23 @@
 package fi.haju.haju3d.server;
 
 import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
 import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCodec;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.protocol.world.ChunkDelta;
+import fi.haju.haju3d.protocol.world.Tile;
+import fi.haju.haju3d.server.storage.EditJournal;
+import fi.haju.haju3d.server.storage.RegionFile;
+import fi.haju.haju3d.server.storage.RegionStorage;
+import fi.haju.haju3d.server.world.WorldGenerator;
 import fi.haju.haju3d.server.world.WorldInfo;
 import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
@@ -22,67 +34,530 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Loads and saves chunks and the world info.
+ * <p/>
+ * Changed chunks are written behind the game by a {@link ChunkSaveQueue} once they have not been saved for the
+ * configured delay. World edits are also appended to an {@link EditJournal} before they are applied, so the delay
+ * does not risk losing them. A checkpoint writes all changed chunks and drops the journaled edits; it runs at the
+ * save delay while there are journaled edits, sooner when the journal grows large, and on shutdown.
+ * <p/>
+ * In {@link StorageMode#DELTA} only the differences of edited chunks to the generated chunks are stored, and the
+ * generator must have the seed of the world. Chunks stored in full are still loaded in that mode.
+ * <p/>
+ * Loading is split into reading the stored data and decoding it, so that {@link ChunkLoader} can run the two on
+ * separate threads. The data of chunks that are likely to be loaded soon can be read ahead into a small cache.
+ */
 @Singleton
 public class WorldSaver {
   private static final LZ4Factory LZ_4_FACTORY = LZ4Factory.fastestInstance();
   private static final LZ4Compressor LZ_4_COMPRESSOR = LZ_4_FACTORY.fastCompressor();
   private static final LZ4FastDecompressor LZ_4_DECOMPRESSOR = LZ_4_FACTORY.fastDecompressor();
 
-  private static final long MIN_SAVE_INTERVAL = 30000;
+  private static final int SAVE_BATCH_SIZE = 64;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+  private static final long CHECKPOINT_TIMEOUT_SECONDS = 60;
+  private static final long MAX_JOURNAL_BYTES = 16 * 1024 * 1024;
+  private static final int PREFETCH_CACHE_SIZE = 1024;
   private static final Logger LOGGER = LoggerFactory.getLogger(WorldSaver.class);
 
-  private Map<ChunkPosition, Chunk> chunksToSave = new ConcurrentHashMap<ChunkPosition, Chunk>();
-  private Timer timer = new Timer();
+  private static final String LEGACY_CHUNK_PREFIX = "ch#";
+  private static final Tile[] TILES = Tile.values();
+
+  private ChunkSaveQueue queue;
+  private RegionStorage storage;
+  private EditJournal journal;
+  private ScheduledExecutorService checkpointer;
+  // held for reading while edits are journaled and applied, for writing while the journal is rotated
+  private final ReadWriteLock editLock = new ReentrantReadWriteLock();
+  private final Object checkpointLock = new Object();
+  private final AtomicBoolean checkpointRequested = new AtomicBoolean();
+  // read ahead and not loaded yet
+  private final Cache<ChunkPosition, StoredChunk> prefetched =
+      CacheBuilder.newBuilder().maximumSize(PREFETCH_CACHE_SIZE).build();
+  // bumped by writes for the positions hashing to each slot, so that data read ahead meanwhile is dropped;
+  // guarded by prefetched
+  private final int[] prefetchVersions = new int[PREFETCH_CACHE_SIZE];
+  // set when the world directory still has chunk files from before region storage
+  private volatile boolean hasLegacyChunkFiles;
 
   @Inject
   private ServerSettings settings;
 
-  public void save(final Chunk chunk) {
-    if (!chunksToSave.keySet().contains(chunk.getPosition())) {
-      chunksToSave.put(chunk.getPosition(), chunk);
-      timer.schedule(new TimerTask() {
-        @Override
-        public void run() {
-          saveChunkToDisk(chunk);
-          chunksToSave.remove(chunk.getPosition());
+  @Inject
+  private WorldGenerator generator;
+
+  /**
+   * Queues the chunk to be written to disk once it has not been saved for a while.
+   */
+  public void save(Chunk chunk) {
+    getQueue().add(chunk);
+  }
+
+  /**
+   * Queues a chunk that has just been generated, unless it can be generated again when it is loaded.
+   */
+  public void saveGenerated(Chunk chunk) {
+    if (settings.getStorageMode() != StorageMode.DELTA) {
+      save(chunk);
+    }
+  }
+
+  /**
+   * Journals the edits and then runs the application, which must apply them and pass the changed chunks to
+   * {@link #save(Chunk)}. The edits are on disk before the application runs. Edits that could not be applied are
+   * rejected with an IllegalArgumentException before anything is journaled.
+   */
+  public void applyEdits(List<WorldEdit> edits, Runnable application) {
+    int chunkSize = ChunkCoordinateSystem.DEFAULT.getChunkSize();
+    for (WorldEdit edit : edits) {
+      if (!edit.isValid(chunkSize)) {
+        throw new IllegalArgumentException("Invalid " + edit);
+      }
+    }
+    EditJournal edited = getJournal();
+    editLock.readLock().lock();
+    try {
+      edited.append(edits);
+      application.run();
+      if (edited.getSize() > MAX_JOURNAL_BYTES && checkpointRequested.compareAndSet(false, true)) {
+        getCheckpointer().execute(new Runnable() {
+          @Override
+          public void run() {
+            checkpointRequested.set(false);
+            checkpoint();
+          }
+        });
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      editLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the edits journaled by an earlier run that were not checkpointed, oldest first. They should be applied
+   * again and followed by a {@link #checkpoint()}.
+   */
+  public List<WorldEdit> readJournal() {
+    try {
+      return getJournal().readOldSegments();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes all changed chunks to disk and drops the journaled edits, which the chunks on disk now contain.
+   */
+  public void checkpoint() {
+    synchronized (checkpointLock) {
+      EditJournal edited = getJournal();
+      editLock.writeLock().lock();
+      try {
+        edited.rotate();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } finally {
+        editLock.writeLock().unlock();
+      }
+      ChunkSaveQueue saving;
+      synchronized (this) {
+        saving = queue;
+      }
+      if (saving != null) {
+        int unsaved = saving.flush(CHECKPOINT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (unsaved > 0) {
+          LOGGER.warn(unsaved + " chunks could not be saved for a checkpoint, keeping the journal");
+          return;
         }
-      }, MIN_SAVE_INTERVAL);
+      }
+      getStorage().flush();
+      edited.deleteOldSegments();
+      LOGGER.debug("Checkpoint done");
+    }
+  }
+
+  /**
+   * Copies the stored world into the target directory while the server keeps running. Regions that have not changed
+   * since the previous snapshot directory, if any, are linked from there. Returns the number of region files copied.
+   * <p/>
+   * Chunk saves go on during the copy, so a region can be newer than another, but the journal copied after the
+   * regions has every edit since the last checkpoint: replaying it when the snapshot is loaded makes it consistent.
+   */
+  public int snapshot(File target, File previous) {
+    RegionStorage regions = getStorage();
+    if (hasLegacyChunkFiles) {
+      throw new IllegalStateException("Cannot snapshot world " + settings.getWorldName() + " with chunk files from"
+          + " an older version, run " + SaveMigrator.class.getSimpleName() + " first");
+    }
+    // a checkpoint would delete journal segments that the regions copied so far may need
+    synchronized (checkpointLock) {
+      try {
+        int copied = regions.snapshot(target, previous);
+        getJournal().copyTo(target);
+        FileUtils.copyFileToDirectory(infoFile(), target);
+        return copied;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
     }
   }
 
   public void shutdown() {
-    timer.cancel();
-    LOGGER.info("Saving " + chunksToSave.size() + " chunks on shutdown");
-    for(Chunk chunk : chunksToSave.values()) {
-      saveChunkToDisk(chunk);
+    ChunkSaveQueue saving;
+    synchronized (this) {
+      saving = queue;
+      queue = null;
+      if (checkpointer != null) {
+        checkpointer.shutdownNow();
+        checkpointer = null;
+      }
+    }
+    int unsaved = 0;
+    if (saving != null) {
+      LOGGER.info("Saving " + saving.getPendingCount() + " chunks on shutdown");
+      unsaved = saving.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (unsaved > 0) {
+        LOGGER.error(unsaved + " chunks could not be saved on shutdown, keeping the journal");
+      }
     }
-  } 
+    synchronized (checkpointLock) {
+      editLock.writeLock().lock();
+      try {
+        closeStorage(unsaved == 0);
+      } finally {
+        editLock.writeLock().unlock();
+      }
+    }
+  }
+
+  private synchronized void closeStorage(boolean everythingSaved) {
+    if (storage != null) {
+      storage.close();
+      storage = null;
+    }
+    if (journal != null) {
+      try {
+        if (everythingSaved) {
+          journal.rotate();
+          journal.deleteOldSegments();
+        }
+        journal.close();
+      } catch (IOException e) {
+        LOGGER.error("Error closing the journal", e);
+      }
+      journal = null;
+    }
+  }
   
+  /**
+   * Writes the chunk to disk right away instead of batching it with the other recent changes.
+   */
+  public void saveImmediately(Chunk chunk) {
+    saveChunkToDisk(chunk);
+  }
+
   private void saveChunkToDisk(Chunk chunk) {
     LOGGER.debug("Saving chunk : " + chunk.getPosition());
-    writeObjectToFile(chunkFile(chunk.getPosition()), chunk);
+    byte[] data = encodeForStorage(chunk);
+    if (data != null) {
+      getStorage().write(chunk.getPosition(), data);
+    }
+    invalidatePrefetched(Collections.singleton(chunk.getPosition()));
+  }
+
+  private void saveChunksToDisk(List<Chunk> chunks) {
+    LOGGER.debug("Saving " + chunks.size() + " chunks of region "
+        + RegionStorage.getRegionPosition(chunks.get(0).getPosition()));
+    Map<ChunkPosition, byte[]> batch = new LinkedHashMap<>();
+    for (Chunk chunk : chunks) {
+      byte[] data = encodeForStorage(chunk);
+      if (data != null) {
+        batch.put(chunk.getPosition(), data);
+      }
+    }
+    getStorage().write(batch);
+    List<ChunkPosition> positions = Lists.newArrayList();
+    for (Chunk chunk : chunks) {
+      positions.add(chunk.getPosition());
+    }
+    invalidatePrefetched(positions);
+  }
+
+  private void invalidatePrefetched(Collection<ChunkPosition> positions) {
+    synchronized (prefetched) {
+      for (ChunkPosition pos : positions) {
+        prefetchVersions[getPrefetchSlot(pos)]++;
+      }
+      prefetched.invalidateAll(positions);
+    }
+  }
+
+  private static int getPrefetchSlot(ChunkPosition pos) {
+    return (pos.hashCode() & Integer.MAX_VALUE) % PREFETCH_CACHE_SIZE;
+  }
+
+  /**
+   * Returns the data to store for the chunk, or null if the chunk has been stored or deleted already.
+   */
+  private byte[] encodeForStorage(Chunk chunk) {
+    if (settings.getStorageMode() == StorageMode.DELTA) {
+      return encodeDelta(chunk);
+    }
+    byte[] encoded;
+    synchronized (chunk) {
+      if (chunk.getTiles() == null) {
+        writeConstant(chunk);
+        return null;
+      }
+      encoded = ChunkCodec.encode(chunk);
+    }
+    try {
+      return compress(encoded);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
   
+  private void writeConstant(Chunk chunk) {
+    getStorage().writeConstant(chunk.getPosition(), chunk.get(0, 0, 0).ordinal(), chunk.getSize(), chunk.getSeed());
+  }
+
+  private byte[] encodeDelta(Chunk chunk) {
+    ChunkPosition pos = chunk.getPosition();
+    Chunk generated = generator.generateChunk(pos, Integer.numberOfTrailingZeros(chunk.getSize()));
+    byte[] delta;
+    synchronized (chunk) {
+      delta = ChunkDelta.encode(generated, chunk);
+    }
+    if (delta == null) {
+      // the chunk is as generated, nothing needs to be stored
+      getStorage().delete(pos);
+      return null;
+    }
+    try {
+      return compress(delta);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void saveWorldInfo(WorldInfo info) {
     writeObjectToFile(infoFile(), info);
   }
 
+  /**
+   * Whether all changes to the chunk have been written to disk, or need not be.
+   */
+  public boolean isSaved(ChunkPosition pos) {
+    return !getPendingChunk(pos).isPresent();
+  }
+
+  public boolean isChunkOnDisk(ChunkPosition pos) {
+    RegionStorage regions = getStorage();
+    return getPendingChunk(pos).isPresent() || regions.contains(pos)
+        || (hasLegacyChunkFiles && chunkFile(pos).exists());
+  }
+
   public Optional<Chunk> loadChunkIfOnDisk(ChunkPosition pos) {
-    File file = chunkFile(pos);
-    if (!file.exists()) return Optional.absent();
-    LOGGER.debug("loading from disk : " + pos);
+    Optional<StoredChunk> stored = readStoredChunk(pos);
+    return stored.isPresent() ? decodeStoredChunk(pos, stored.get()) : Optional.<Chunk>absent();
+  }
+
+  /**
+   * Reads what is stored for the chunk without decompressing or decoding it. Data read ahead by
+   * {@link #prefetchStoredChunk(ChunkPosition)} is used once and then dropped.
+   */
+  Optional<StoredChunk> readStoredChunk(ChunkPosition pos) {
+    Optional<Chunk> pending = getPendingChunk(pos);
+    if (pending.isPresent()) {
+      // the version on disk is older
+      return Optional.of(new StoredChunk(pending.get(), null, null));
+    }
+    StoredChunk cached = prefetched.asMap().remove(pos);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
+    return readFromDisk(pos);
+  }
+
+  /**
+   * Reads what is stored for the chunk into the read ahead cache, unless it is there already. The data is dropped if
+   * the chunk is written while it is read.
+   */
+  void prefetchStoredChunk(ChunkPosition pos) {
+    if (prefetched.getIfPresent(pos) != null || getPendingChunk(pos).isPresent()) {
+      return;
+    }
+    int slot = getPrefetchSlot(pos);
+    int version;
+    synchronized (prefetched) {
+      version = prefetchVersions[slot];
+    }
+    Optional<StoredChunk> stored = readFromDisk(pos);
+    if (!stored.isPresent()) {
+      return;
+    }
+    synchronized (prefetched) {
+      if (prefetchVersions[slot] == version) {
+        prefetched.put(pos, stored.get());
+      }
+    }
+  }
+
+  /**
+   * Decompresses and decodes what was read for the chunk.
+   */
+  Optional<Chunk> decodeStoredChunk(ChunkPosition pos, StoredChunk stored) {
+    if (stored.chunk != null) {
+      return Optional.of(stored.chunk);
+    }
     try {
-      return Optional.of((Chunk) readObjectFromFile(file));
-    } catch (RuntimeException e) {
+      if (stored.constant != null) {
+        return Optional.of(toChunk(pos, stored.constant));
+      }
+      Chunk chunk = decodeChunk(pos, decompress(stored.data));
+      if (!pos.equals(chunk.getPosition())) {
+        throw new IOException("Chunk " + pos + " is stored as chunk " + chunk.getPosition());
+      }
+      return Optional.of(chunk);
+    } catch (RuntimeException | IOException e) {
+      LOGGER.error("Error loading chunk " + pos + ", generating it again; run "
+          + StorageChecker.class.getSimpleName() + " to find and quarantine the corrupt chunks", e);
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Checks that what is stored on disk for the chunk decodes into a chunk at its position, and throws if not. Deltas
+   * are applied to an empty chunk rather than the generated one.
+   */
+  void verifyStoredChunk(ChunkPosition pos) throws IOException {
+    RegionStorage regions = getStorage();
+    Optional<RegionFile.Constant> constant = regions.readConstant(pos);
+    if (constant.isPresent()) {
+      toChunk(pos, constant.get());
+      return;
+    }
+    Optional<byte[]> data = regions.read(pos);
+    if (!data.isPresent()) {
+      return;
+    }
+    byte[] bytes = decompress(data.get());
+    Chunk chunk;
+    if (ChunkDelta.isDelta(bytes)) {
+      chunk = ChunkDelta.apply(new Chunk(ChunkCoordinateSystem.DEFAULT.getChunkSize(), 0, pos, Tile.AIR), bytes);
+    } else {
+      chunk = decodeChunk(pos, bytes);
+    }
+    if (!pos.equals(chunk.getPosition())) {
+      throw new IOException("Chunk " + pos + " is stored as chunk " + chunk.getPosition());
+    }
+  }
+
+  /**
+   * Moves the data stored for the chunk into the directory as a chunk file and deletes the chunk from storage, so
+   * that it is generated again.
+   */
+  void quarantineChunk(ChunkPosition pos, File directory) throws IOException {
+    Optional<byte[]> data = getStorage().read(pos);
+    if (data.isPresent()) {
+      FileUtils.writeByteArrayToFile(
+          new File(directory, LEGACY_CHUNK_PREFIX + pos.x + "#" + pos.y + "#" + pos.z), data.get());
+    }
+    getStorage().delete(pos);
+    invalidatePrefetched(Collections.singleton(pos));
+  }
+
+  private Optional<StoredChunk> readFromDisk(ChunkPosition pos) {
+    try {
+      Optional<RegionFile.Constant> constant = getStorage().readConstant(pos);
+      if (constant.isPresent()) {
+        return Optional.of(new StoredChunk(null, constant.get(), null));
+      }
+      Optional<byte[]> data = getStorage().read(pos);
+      if (data.isPresent()) {
+        LOGGER.debug("loading from disk : " + pos);
+        return Optional.of(new StoredChunk(null, null, data.get()));
+      }
+      if (!hasLegacyChunkFiles) return Optional.absent();
+      File file = chunkFile(pos);
+      if (!file.exists()) return Optional.absent();
+      LOGGER.debug("loading legacy chunk file : " + pos);
+      return Optional.of(new StoredChunk(null, null, FileUtils.readFileToByteArray(file)));
+    } catch (RuntimeException | IOException e) {
+      LOGGER.error("Error loading chunk " + pos + ", generating it again; run "
+          + StorageChecker.class.getSimpleName() + " to find and quarantine the corrupt chunks", e);
       return Optional.absent();
     }
   }
 
+  /**
+   * Moves the chunk files of the world saved before region storage into region files and deletes them. Chunks made
+   * of a single tile are stored in the region header, the rest as is. Returns the number of chunks moved.
+   */
+  public int migrateLegacyChunkFiles() {
+    RegionStorage regions = getStorage();
+    File[] files = regions.getDirectory().listFiles();
+    int migrated = 0;
+    for (File file : files == null ? new File[0] : files) {
+      Optional<ChunkPosition> pos = parseLegacyChunkFile(file);
+      if (!pos.isPresent()) {
+        continue;
+      }
+      byte[] data;
+      try {
+        data = FileUtils.readFileToByteArray(file);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      Optional<Chunk> constant = decodeConstantChunk(pos.get(), data);
+      if (constant.isPresent()) {
+        writeConstant(constant.get());
+      } else {
+        regions.write(pos.get(), data);
+      }
+      FileUtils.deleteQuietly(file);
+      migrated++;
+      if (migrated % 1000 == 0) {
+        LOGGER.info("Migrated " + migrated + " chunk files");
+      }
+    }
+    synchronized (this) {
+      hasLegacyChunkFiles = false;
+    }
+    return migrated;
+  }
+
+  /**
+   * Loads the info of the configured world, creating a world with a random seed if there is none on disk yet.
+   */
+  public WorldInfo loadOrCreateWorldInfo() {
+    Optional<WorldInfo> opt = loadInfoIfOnDisk();
+    if (opt.isPresent()) {
+      return opt.get();
+    }
+    WorldInfo info = new WorldInfo(settings.getWorldName(), new Random().nextInt());
+    saveWorldInfo(info);
+    return info;
+  }
+
   public Optional<WorldInfo> loadInfoIfOnDisk() {
     File file = infoFile();
     if (!file.exists()) return Optional.absent();
@@ -93,6 +568,52 @@ public class WorldSaver {
     }
   }
 
+  /**
+   * Decodes a chunk written by {@link ChunkCodec} or {@link ChunkDelta}, or by Java serialization in older versions.
+   */
+  private Chunk decodeChunk(ChunkPosition pos, byte[] bytes) {
+    if (ChunkDelta.isDelta(bytes)) {
+      int sizeLog2 = ChunkCoordinateSystem.DEFAULT.getChunkSizeLog2();
+      return ChunkDelta.apply(generator.generateChunk(pos, sizeLog2), bytes);
+    }
+    if (ChunkCodec.isEncodedChunk(bytes)) {
+      return ChunkCodec.decode(bytes);
+    }
+    return (Chunk) SerializationUtils.deserialize(bytes);
+  }
+
+  private static Chunk toChunk(ChunkPosition pos, RegionFile.Constant constant) {
+    if (constant.tile >= TILES.length) {
+      throw new IllegalArgumentException("Invalid tile " + constant.tile + " stored for chunk " + pos);
+    }
+    return new Chunk(constant.size, constant.seed, pos, TILES[constant.tile]);
+  }
+
+  private Optional<Chunk> decodeConstantChunk(ChunkPosition pos, byte[] data) {
+    try {
+      Chunk chunk = decodeChunk(pos, decompress(data));
+      return chunk.getTiles() == null ? Optional.of(chunk) : Optional.<Chunk>absent();
+    } catch (RuntimeException | IOException e) {
+      // kept as is, loading reports it
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * What is stored for a chunk: a chunk waiting to be saved, a chunk made of a single tile, or compressed data.
+   */
+  static final class StoredChunk {
+    private final Chunk chunk;
+    private final RegionFile.Constant constant;
+    private final byte[] data;
+
+    private StoredChunk(Chunk chunk, RegionFile.Constant constant, byte[] data) {
+      this.chunk = chunk;
+      this.constant = constant;
+      this.data = data;
+    }
+  }
+
   private static void writeObjectToFile(File file, Serializable object) {
     try {
       FileUtils.writeByteArrayToFile(file, compress(SerializationUtils.serialize(object)));
@@ -118,10 +639,90 @@ public class WorldSaver {
   }
 
   private static byte[] decompress(byte[] bytes) throws IOException {
+    if (bytes.length < 4) {
+      throw new IOException("Compressed data of " + bytes.length + " bytes has no length");
+    }
     int length = ByteBuffer.wrap(bytes).getInt();
+    // LZ4 expands data at most 255 times
+    if (length < 0 || length > (bytes.length - 4) * 255L + 16) {
+      throw new IOException("Invalid decompressed length " + length + " of " + bytes.length + " bytes");
+    }
     return LZ_4_DECOMPRESSOR.decompress(bytes, 4, length);
   }
 
+  private synchronized Optional<Chunk> getPendingChunk(ChunkPosition pos) {
+    return queue == null ? Optional.<Chunk>absent() : queue.getPending(pos);
+  }
+
+  private synchronized ChunkSaveQueue getQueue() {
+    if (queue == null) {
+      queue = new ChunkSaveQueue(new ChunkSaveQueue.Writer() {
+        @Override
+        public void write(List<Chunk> chunks) {
+          saveChunksToDisk(chunks);
+        }
+      }, settings.getSaveThreads(), settings.getMaxDirtyChunks(), settings.getMaxDirtyChunks() / 2,
+          settings.getSaveDelaySeconds(), TimeUnit.SECONDS, SAVE_BATCH_SIZE);
+    }
+    return queue;
+  }
+
+  private synchronized EditJournal getJournal() {
+    if (journal == null) {
+      try {
+        journal = new EditJournal(new File(settings.getSavePath(), settings.getWorldName()));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      final EditJournal opened = journal;
+      long interval = settings.getSaveDelaySeconds();
+      getCheckpointer().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (opened.hasEdits()) {
+              checkpoint();
+            }
+          } catch (IOException | RuntimeException e) {
+            LOGGER.error("Error in a checkpoint", e);
+          }
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+    }
+    return journal;
+  }
+
+  private synchronized ScheduledExecutorService getCheckpointer() {
+    if (checkpointer == null) {
+      checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "checkpoint");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return checkpointer;
+  }
+
+  synchronized RegionStorage getStorage() {
+    if (storage == null) {
+      File chunkDir = new File(settings.getSavePath(), settings.getWorldName());
+      storage = new RegionStorage(chunkDir);
+      String[] names = chunkDir.list();
+      for (String name : names == null ? new String[0] : names) {
+        if (name.startsWith(LEGACY_CHUNK_PREFIX)) {
+          hasLegacyChunkFiles = true;
+          LOGGER.warn("World " + settings.getWorldName() + " has chunk files from an older version, run "
+              + SaveMigrator.class.getSimpleName() + " to move them into region files");
+          break;
+        }
+      }
+    }
+    return storage;
+  }
+
   private File infoFile() {
     File chunkDir = new File(settings.getSavePath(), settings.getWorldName());
     chunkDir.mkdirs();
@@ -130,7 +731,22 @@ public class WorldSaver {
 
   private File chunkFile(ChunkPosition position) {
     File chunkDir = new File(settings.getSavePath(), settings.getWorldName());
-    chunkDir.mkdirs();
-    return new File(chunkDir, "ch#" + position.x + "#" + position.y + "#" + position.z);
+    return new File(chunkDir, LEGACY_CHUNK_PREFIX + position.x + "#" + position.y + "#" + position.z);
+  }
+
+  private static Optional<ChunkPosition> parseLegacyChunkFile(File file) {
+    String name = file.getName();
+    if (!file.isFile() || !name.startsWith(LEGACY_CHUNK_PREFIX)) {
+      return Optional.absent();
+    }
+    String[] parts = name.substring(LEGACY_CHUNK_PREFIX.length()).split("#");
+    if (parts.length != 3) {
+      return Optional.absent();
+    }
+    try {
+      return Optional.of(new ChunkPosition(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+    } catch (NumberFormatException e) {
+      return Optional.absent();
+    }
   }
 }
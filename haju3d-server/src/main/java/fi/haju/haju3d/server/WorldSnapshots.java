@@ -0,0 +1,113 @@
+package fi.haju.haju3d.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes snapshots of the running world into directories named after the time under
+ * {@code snapshotPath/worldName}, on demand and every {@code snapshotIntervalMinutes} if set.
+ * <p/>
+ * Each snapshot is complete, but only the regions that changed since the previous snapshot are copied; the rest
+ * are hard links to the files of the previous one. A snapshot is written to a {@code .partial} directory that is
+ * renamed when it is done. To restore one, copy its files into the save directory of the world; the journaled edits
+ * in it are replayed when the server starts.
+ */
+@Singleton
+public class WorldSnapshots {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorldSnapshots.class);
+  private static final String PARTIAL_SUFFIX = ".partial";
+
+  @Inject
+  private WorldSaver saver;
+
+  @Inject
+  private ServerSettings settings;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Starts the automatic snapshots if they are configured.
+   */
+  public synchronized void start() {
+    final int interval = settings.getSnapshotIntervalMinutes();
+    if (interval <= 0 || scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "snapshot");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          takeSnapshot();
+        } catch (RuntimeException e) {
+          LOGGER.error("Error taking a snapshot", e);
+        }
+      }
+    }, interval, interval, TimeUnit.MINUTES);
+  }
+
+  public synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Takes a snapshot of the world and returns its directory.
+   */
+  public synchronized File takeSnapshot() {
+    File directory = new File(settings.getSnapshotPath(), settings.getWorldName());
+    long start = System.currentTimeMillis();
+    File previous = getLatest(directory);
+    String name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(start));
+    File target = new File(directory, name);
+    File partial = new File(directory, name + PARTIAL_SUFFIX);
+    if (target.exists()) {
+      throw new IllegalStateException("Snapshot " + target + " exists already");
+    }
+    FileUtils.deleteQuietly(partial);
+    int copied = saver.snapshot(partial, previous);
+    if (!partial.renameTo(target)) {
+      throw new RuntimeException("Could not rename " + partial + " to " + target);
+    }
+    LOGGER.info("Took snapshot " + target + " in " + (System.currentTimeMillis() - start) + " ms, copied "
+        + copied + " region files");
+    return target;
+  }
+
+  private static File getLatest(File directory) {
+    String[] names = directory.list();
+    if (names == null) {
+      return null;
+    }
+    Arrays.sort(names);
+    for (int i = names.length - 1; i >= 0; i--) {
+      File snapshot = new File(directory, names[i]);
+      if (!names[i].endsWith(PARTIAL_SUFFIX) && snapshot.isDirectory()) {
+        return snapshot;
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,169 @@
+package fi.haju.haju3d.server.net;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.Client;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.stream.FrameReader;
+import fi.haju.haju3d.protocol.stream.StreamProtocol;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client connected to the {@link StreamServer}. It stands for the client towards the server like the remote
+ * client of an RMI connection does, so edits are sent to it the same way.
+ * <p/>
+ * Frames can be sent from any thread; they are queued and written by the selector thread of the stream server. A
+ * client that does not read what is queued for it is disconnected once the queue grows over its limit.
+ */
+final class ClientConnection implements Client {
+  private final StreamServer server;
+  private final SocketChannel channel;
+  private final SelectionKey key;
+  private final SocketAddress address;
+  private final FrameReader reader = new FrameReader();
+  private final Queue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean writeRequested = new AtomicBoolean();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final long maxQueuedBytes;
+  private volatile boolean greeted;
+  private volatile boolean loggedIn;
+  private volatile boolean closed;
+
+  public ClientConnection(StreamServer server, SocketChannel channel, SelectionKey key, long maxQueuedBytes) {
+    this.server = server;
+    this.channel = channel;
+    this.key = key;
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.address = channel.socket().getRemoteSocketAddress();
+  }
+
+  @Override
+  public void registerWorldEdits(List<WorldEdit> edits) {
+    send(StreamProtocol.worldEdits(edits));
+  }
+
+  @Override
+  public void receiveChunks(List<byte[]> chunks) {
+    for (byte[] chunk : chunks) {
+      send(StreamProtocol.chunk(StreamProtocol.PUSHED, chunk));
+    }
+  }
+
+  @Override
+  public void chunksFailed(List<ChunkPosition> positions) {
+    send(StreamProtocol.chunksFailed(positions));
+  }
+
+  /**
+   * Queues the frame to be written. The frame can be in parts.
+   */
+  public void send(ByteBuffer... frame) {
+    if (closed) {
+      return;
+    }
+    if (queuedBytes.addAndGet(getBytes(frame)) > maxQueuedBytes) {
+      server.overflow(this);
+      return;
+    }
+    outbound.add(frame);
+    if (writeRequested.compareAndSet(false, true)) {
+      server.requestWrite(this);
+    }
+  }
+
+  /**
+   * Reads what is available and returns the complete frames in order. Returns null at the end of the stream.
+   */
+  List<ByteBuffer> read() throws IOException {
+    if (!reader.read(channel)) {
+      return null;
+    }
+    List<ByteBuffer> frames = Lists.newArrayList();
+    ByteBuffer frame;
+    while ((frame = reader.next()) != null) {
+      frames.add(frame);
+    }
+    return frames;
+  }
+
+  /**
+   * Called on the selector thread after a write was requested.
+   */
+  void enableWrites() {
+    if (key.isValid()) {
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Writes queued frames until the socket does not take more.
+   */
+  void write() throws IOException {
+    ByteBuffer[] frame;
+    while ((frame = outbound.peek()) != null) {
+      channel.write(frame);
+      if (frame[frame.length - 1].hasRemaining()) {
+        return;
+      }
+      outbound.poll();
+      queuedBytes.addAndGet(-getBytes(frame));
+    }
+    key.interestOps(SelectionKey.OP_READ);
+    writeRequested.set(false);
+    // a frame queued after the queue was found empty did not request a write
+    if (!outbound.isEmpty() && writeRequested.compareAndSet(false, true)) {
+      enableWrites();
+    }
+  }
+
+  private static long getBytes(ByteBuffer[] frame) {
+    long bytes = 0;
+    for (ByteBuffer part : frame) {
+      bytes += part.limit();
+    }
+    return bytes;
+  }
+
+  boolean isGreeted() {
+    return greeted;
+  }
+
+  void setGreeted() {
+    greeted = true;
+  }
+
+  boolean isLoggedIn() {
+    return loggedIn;
+  }
+
+  void setLoggedIn(boolean loggedIn) {
+    this.loggedIn = loggedIn;
+  }
+
+  void close() {
+    closed = true;
+    outbound.clear();
+    key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // closing anyway
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "stream client " + address;
+  }
+
+}
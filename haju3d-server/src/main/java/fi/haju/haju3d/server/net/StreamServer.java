@@ -0,0 +1,283 @@
+package fi.haju.haju3d.server.net;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.stream.StreamProtocol;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.server.EncodedChunkCache;
+import fi.haju.haju3d.server.ServerImpl;
+import fi.haju.haju3d.server.ServerSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves clients over the binary {@link StreamProtocol} on {@code streamPort}, next to RMI.
+ * <p/>
+ * All connections are handled by one selector thread. Chunk requests only start the resolving, so any number of
+ * them can be outstanding per connection, and each chunk is sent as soon as it is resolved instead of after the
+ * whole request like over RMI. Edits are applied on a thread of their own, as they can wait for chunks to load.
+ */
+@Singleton
+public class StreamServer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamServer.class);
+
+  @Inject
+  private ServerImpl server;
+
+  @Inject
+  private ServerSettings settings;
+
+  @Inject
+  private EncodedChunkCache encodedChunks;
+
+  private final Queue<ClientConnection> writeRequests = new ConcurrentLinkedQueue<>();
+  private volatile Selector selector;
+  private ServerSocketChannel serverChannel;
+  private ExecutorService editor;
+
+  /**
+   * Starts accepting connections, unless the port is set to 0.
+   */
+  public synchronized void start() throws IOException {
+    int port = settings.getStreamPort();
+    if (port <= 0 || selector != null) {
+      return;
+    }
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.configureBlocking(false);
+    serverChannel.socket().bind(new InetSocketAddress(port));
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    editor = Executors.newSingleThreadExecutor(new NamedThreadFactory("stream-edits"));
+    final Selector running = selector;
+    new NamedThreadFactory("stream-server").newThread(new Runnable() {
+      @Override
+      public void run() {
+        select(running);
+      }
+    }).start();
+    LOGGER.info("Started Haju3D stream server at " + port);
+  }
+
+  public synchronized void shutdown() {
+    if (selector == null) {
+      return;
+    }
+    try {
+      serverChannel.close();
+      selector.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing the stream server", e);
+    }
+    editor.shutdown();
+    selector = null;
+  }
+
+  void requestWrite(ClientConnection connection) {
+    writeRequests.add(connection);
+    Selector current = selector;
+    if (current != null) {
+      current.wakeup();
+    }
+  }
+
+  void overflow(ClientConnection connection) {
+    LOGGER.warn("Giving up on " + connection + " as it does not read what is sent to it");
+    close(connection);
+  }
+
+  private void select(Selector selector) {
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+        ClientConnection writing;
+        while ((writing = writeRequests.poll()) != null) {
+          writing.enableWrites();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept(selector);
+          } else {
+            handle(key, (ClientConnection) key.attachment());
+          }
+        }
+      } catch (ClosedSelectorException e) {
+        return;
+      } catch (IOException e) {
+        LOGGER.error("Error in the stream server", e);
+      }
+    }
+  }
+
+  private void accept(Selector selector) throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    ClientConnection connection = new ClientConnection(this, channel, key,
+        (long) settings.getMaxClientQueueMegabytes() << 20);
+    key.attach(connection);
+    LOGGER.info("Accepted " + connection);
+  }
+
+  private void handle(SelectionKey key, ClientConnection connection) {
+    try {
+      if (key.isReadable()) {
+        List<ByteBuffer> frames = connection.read();
+        if (frames == null) {
+          close(connection);
+          return;
+        }
+        for (ByteBuffer frame : frames) {
+          receive(connection, frame);
+        }
+      }
+      if (key.isValid() && key.isWritable()) {
+        connection.write();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Error communicating with " + connection + ", disconnecting: " + e);
+      close(connection);
+    }
+  }
+
+  private void receive(final ClientConnection connection, ByteBuffer frame) throws IOException {
+    byte type = frame.get();
+    if (!connection.isGreeted()) {
+      if (type != StreamProtocol.HELLO || !StreamProtocol.isCompatible(frame)) {
+        throw new IOException("Incompatible client");
+      }
+      connection.setGreeted();
+      connection.send(StreamProtocol.hello());
+      return;
+    }
+    switch (type) {
+      case StreamProtocol.LOGIN:
+        server.login(connection);
+        connection.setLoggedIn(true);
+        break;
+      case StreamProtocol.LOGOUT:
+        connection.setLoggedIn(false);
+        server.logout(connection);
+        break;
+      case StreamProtocol.GET_CHUNKS:
+        int requestId = frame.getInt();
+        ChunkPosition origin = StreamProtocol.readOrigin(frame);
+        sendChunks(connection, requestId, origin, StreamProtocol.readPositions(frame));
+        break;
+      case StreamProtocol.REQUEST_CHUNKS:
+        server.requestChunks(connection, StreamProtocol.readOrigin(frame), StreamProtocol.readPositions(frame));
+        break;
+      case StreamProtocol.CANCEL_CHUNKS:
+        server.cancelChunks(connection, StreamProtocol.readPositions(frame));
+        break;
+      case StreamProtocol.WORLD_EDITS:
+        if (!connection.isLoggedIn()) {
+          throw new IOException("Edits before login");
+        }
+        final List<WorldEdit> edits = StreamProtocol.readWorldEdits(frame);
+        editor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              server.registerWorldEdits(edits);
+            } catch (RuntimeException e) {
+              LOGGER.error("Error applying edits from " + connection, e);
+            }
+          }
+        });
+        break;
+      default:
+        throw new IOException("Unknown message type " + type);
+    }
+  }
+
+  private void sendChunks(final ClientConnection connection, final int requestId, ChunkPosition origin,
+      List<ChunkPosition> positions) {
+    List<ListenableFuture<Chunk>> futures = server.getChunksAsync(connection, origin, positions);
+    if (futures.isEmpty()) {
+      connection.send(StreamProtocol.chunksDone(requestId));
+      return;
+    }
+    final AtomicInteger remaining = new AtomicInteger(futures.size());
+    for (ListenableFuture<Chunk> future : futures) {
+      Futures.addCallback(future, new FutureCallback<Chunk>() {
+        @Override
+        public void onSuccess(Chunk chunk) {
+          try {
+            connection.send(StreamProtocol.chunk(requestId, encodedChunks.getEncoded(chunk)));
+          } finally {
+            countDown();
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          if (!(t instanceof CancellationException)) {
+            LOGGER.error("Error resolving a chunk for " + connection, t);
+          }
+          countDown();
+        }
+
+        private void countDown() {
+          if (remaining.decrementAndGet() == 0) {
+            connection.send(StreamProtocol.chunksDone(requestId));
+          }
+        }
+      });
+    }
+  }
+
+  private void close(ClientConnection connection) {
+    connection.close();
+    server.disconnect(connection);
+  }
+
+  private static final class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+
+    public NamedThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
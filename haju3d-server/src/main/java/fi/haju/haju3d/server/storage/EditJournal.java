@@ -0,0 +1,259 @@
+package fi.haju.haju3d.server.storage;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of world edits that have not yet been written to disk with their chunks.
+ * <p/>
+ * The journal is a series of segment files named {@code edits#n}. Edits are appended to the newest segment in
+ * batches of one int count, 16 bytes per edit and a CRC32 of the batch, and a batch is on disk when
+ * {@link #append(List)} returns. Threads appending at the same time share one fsync.
+ * <p/>
+ * Once the chunks changed by the edits in the older segments have been written, the owner rotates to a new segment
+ * with {@link #rotate()} and deletes the older ones with {@link #deleteOldSegments()}. The segments found when the
+ * journal is opened are read back with {@link #readOldSegments()}. A batch torn by a crash ends the replay.
+ */
+public final class EditJournal implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(EditJournal.class);
+  private static final String SEGMENT_PREFIX = "edits#";
+  private static final int EDIT_BYTES = 16;
+  private static final Tile[] TILES = Tile.values();
+
+  private final File directory;
+  private final Object syncLock = new Object();
+  private int segment;
+  private FileChannel channel;
+  private volatile long appended = 0;
+  private long synced = 0;
+
+  public EditJournal(File directory) throws IOException {
+    this.directory = directory;
+    directory.mkdirs();
+    List<Integer> segments = getSegments();
+    segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+    for (int old : segments) {
+      File file = getSegmentFile(old);
+      if (file.length() == 0) {
+        file.delete();
+      }
+    }
+    channel = open(segment);
+  }
+
+  /**
+   * Writes the edits to the newest segment and forces them to disk.
+   */
+  public void append(List<WorldEdit> edits) throws IOException {
+    if (edits.isEmpty()) {
+      return;
+    }
+    ByteBuffer batch = ByteBuffer.allocate(4 + edits.size() * EDIT_BYTES + 4);
+    batch.putInt(edits.size());
+    for (WorldEdit edit : edits) {
+      ChunkPosition chunk = edit.getPosition().getChunkPosition();
+      LocalTilePosition tile = edit.getPosition().getTileWithinChunk();
+      batch.putInt(chunk.x).putInt(chunk.y).putInt(chunk.z);
+      batch.put((byte) tile.x).put((byte) tile.y).put((byte) tile.z).put((byte) edit.getNewTile().ordinal());
+    }
+    CRC32 crc = new CRC32();
+    crc.update(batch.array(), 0, batch.position());
+    batch.putInt((int) crc.getValue());
+    batch.flip();
+    long sequence;
+    FileChannel target;
+    synchronized (this) {
+      target = channel;
+      while (batch.hasRemaining()) {
+        target.write(batch);
+      }
+      sequence = ++appended;
+    }
+    synchronized (syncLock) {
+      // a thread that synced while this one waited may have covered this batch already
+      if (synced < sequence) {
+        long covered = appended;
+        target.force(false);
+        synced = covered;
+      }
+    }
+  }
+
+  /**
+   * Whether there are edits in any segment.
+   */
+  public synchronized boolean hasEdits() throws IOException {
+    if (channel.size() > 0) {
+      return true;
+    }
+    for (int old : getSegments()) {
+      if (old < segment) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the size of the newest segment in bytes.
+   */
+  public synchronized long getSize() throws IOException {
+    return channel.size();
+  }
+
+  /**
+   * Starts a new segment for the following edits. The caller must make sure that no append is in progress.
+   */
+  public synchronized void rotate() throws IOException {
+    if (channel.size() == 0) {
+      return;
+    }
+    channel.force(false);
+    channel.close();
+    segment++;
+    channel = open(segment);
+  }
+
+  /**
+   * Deletes all segments but the newest one.
+   */
+  public synchronized void deleteOldSegments() {
+    for (int old : getSegments()) {
+      if (old < segment && !getSegmentFile(old).delete()) {
+        LOGGER.warn("Could not delete journal segment " + getSegmentFile(old));
+      }
+    }
+  }
+
+  /**
+   * Reads the edits of the segments older than the newest one, oldest first.
+   */
+  public synchronized List<WorldEdit> readOldSegments() throws IOException {
+    List<WorldEdit> edits = Lists.newArrayList();
+    for (int old : getSegments()) {
+      if (old < segment) {
+        readSegment(getSegmentFile(old), edits);
+      }
+    }
+    return edits;
+  }
+
+  /**
+   * Copies the segments into the target directory without stopping appends. The copy of the newest segment ends
+   * with the last batch appended before the call. The caller must make sure that no rotation is in progress.
+   */
+  public void copyTo(File target) throws IOException {
+    int newest;
+    long size;
+    synchronized (this) {
+      newest = segment;
+      size = channel.size();
+    }
+    target.mkdirs();
+    for (int number : getSegments()) {
+      if (number <= newest) {
+        copy(getSegmentFile(number), new File(target, SEGMENT_PREFIX + number), number == newest ? size : -1);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.force(false);
+    channel.close();
+  }
+
+  private void readSegment(File file, List<WorldEdit> edits) throws IOException {
+    ByteBuffer data;
+    try (FileInputStream in = new FileInputStream(file)) {
+      FileChannel input = in.getChannel();
+      data = ByteBuffer.allocate((int) input.size());
+      while (data.hasRemaining() && input.read(data) >= 0) {
+        // read it all
+      }
+    }
+    data.flip();
+    while (data.remaining() >= 4) {
+      int start = data.position();
+      int count = data.getInt();
+      if (count <= 0 || data.remaining() < (long) count * EDIT_BYTES + 4) {
+        LOGGER.warn("Journal segment " + file + " ends with an incomplete batch at " + start);
+        return;
+      }
+      List<WorldEdit> batch = Lists.newArrayList();
+      boolean valid = true;
+      for (int i = 0; i < count; i++) {
+        ChunkPosition chunk = new ChunkPosition(data.getInt(), data.getInt(), data.getInt());
+        LocalTilePosition tile = new LocalTilePosition(data.get() & 0xff, data.get() & 0xff, data.get() & 0xff);
+        int ordinal = data.get() & 0xff;
+        valid &= ordinal < TILES.length;
+        batch.add(new WorldEdit(new TilePosition(chunk, tile), valid ? TILES[ordinal] : null));
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data.array(), start, data.position() - start);
+      if (data.getInt() != (int) crc.getValue() || !valid) {
+        LOGGER.warn("Journal segment " + file + " has a corrupt batch at " + start);
+        return;
+      }
+      edits.addAll(batch);
+    }
+  }
+
+  private static void copy(File source, File target, long limit) throws IOException {
+    try (FileInputStream in = new FileInputStream(source); FileOutputStream out = new FileOutputStream(target)) {
+      FileChannel input = in.getChannel();
+      FileChannel output = out.getChannel();
+      long size = limit < 0 ? input.size() : limit;
+      long copied = 0;
+      while (copied < size) {
+        copied += input.transferTo(copied, size - copied, output);
+      }
+      output.force(false);
+    }
+  }
+
+  private List<Integer> getSegments() {
+    List<Integer> segments = Lists.newArrayList();
+    String[] names = directory.list();
+    for (String name : names == null ? new String[0] : names) {
+      if (name.startsWith(SEGMENT_PREFIX)) {
+        try {
+          segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private File getSegmentFile(int number) {
+    return new File(directory, SEGMENT_PREFIX + number);
+  }
+
+  private FileChannel open(int number) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(getSegmentFile(number), "rw");
+    file.seek(file.length());
+    return file.getChannel();
+  }
+
+}
@@ -0,0 +1,446 @@
+package fi.haju.haju3d.server.storage;
+
+import com.google.common.base.Optional;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A file holding the data of a cube of {@link #ENTRY_COUNT} chunks.
+ * <p/>
+ * The file starts with a header table of one entry per chunk: the first sector of the data and its length in
+ * bytes, or zeros for a chunk that has not been stored. The data follows in sectors of {@link #SECTOR_SIZE} bytes.
+ * Chunks made of a single tile take no sectors: their entry holds a negative marker with the tile and chunk size
+ * in place of the sector, and the seed in place of the length.
+ * Updated data is always written to free sectors and forced to disk before the header entry is switched over, and
+ * the sectors of the previous version are reused only once the switched entry is on disk too, so an interrupted
+ * write leaves either version readable. Reads are positional and run in parallel with each other.
+ * <p/>
+ * Rewritten entries leave free sectors behind, which later writes reuse after the next {@link #flush()} or rewrite;
+ * {@link #compact()} moves entries into the free sectors and truncates the file.
+ */
+public final class RegionFile implements Closeable {
+  public static final int SIZE_LOG2 = 4;
+  public static final int ENTRY_COUNT = 1 << (3 * SIZE_LOG2);
+  public static final int SECTOR_SIZE = 4096;
+
+  private static final int ENTRY_BYTES = 8;
+  private static final int HEADER_SECTORS = ENTRY_COUNT * ENTRY_BYTES / SECTOR_SIZE;
+  private static final int CONSTANT_TILE_BITS = 8;
+  private static final int CONSTANT_TILE_MASK = (1 << CONSTANT_TILE_BITS) - 1;
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+  private final int[] offsets = new int[ENTRY_COUNT];
+  private final int[] lengths = new int[ENTRY_COUNT];
+  private final BitSet usedSectors = new BitSet();
+  // sectors of replaced entries, still counted as used until the header that replaced them has been forced
+  private final BitSet pendingSectors = new BitSet();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * A chunk made of a single tile, stored in its header entry alone.
+   */
+  public static final class Constant {
+    public final int tile;
+    public final int size;
+    public final int seed;
+
+    public Constant(int tile, int size, int seed) {
+      this.tile = tile;
+      this.size = size;
+      this.seed = seed;
+    }
+  }
+
+  public RegionFile(File file) throws IOException {
+    this.file = file;
+    this.randomAccessFile = new RandomAccessFile(file, "rw");
+    this.channel = randomAccessFile.getChannel();
+    usedSectors.set(0, HEADER_SECTORS);
+    if (channel.size() < HEADER_SECTORS * SECTOR_SIZE) {
+      channel.write(ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE), 0);
+    }
+    readHeader();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public boolean contains(int index) {
+    lock.readLock().lock();
+    try {
+      return offsets[index] != 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reads the data of an entry. Entries of constant chunks have no data, see {@link #readConstant(int)}.
+   */
+  public Optional<byte[]> read(int index) throws IOException {
+    int offset;
+    int length;
+    lock.readLock().lock();
+    try {
+      offset = offsets[index];
+      length = lengths[index];
+      if (offset <= 0) {
+        return Optional.absent();
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      long position = (long) offset * SECTOR_SIZE;
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, position + buffer.position());
+        if (read < 0) {
+          throw new IOException("Entry " + index + " of " + file + " ends past the end of the file");
+        }
+      }
+      return Optional.of(buffer.array());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Optional<Constant> readConstant(int index) {
+    lock.readLock().lock();
+    try {
+      int offset = offsets[index];
+      if (offset >= 0) {
+        return Optional.absent();
+      }
+      int marker = -1 - offset;
+      return Optional.of(new Constant(marker & CONSTANT_TILE_MASK, marker >>> CONSTANT_TILE_BITS, lengths[index]));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public void write(int index, byte[] data) throws IOException {
+    if (data.length == 0) {
+      throw new IllegalArgumentException("Cannot store an empty entry");
+    }
+    int sectors = (data.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    lock.writeLock().lock();
+    try {
+      int offset = allocate(sectors);
+      writeFully(ByteBuffer.wrap(data), (long) offset * SECTOR_SIZE);
+      if (offsets[index] != 0) {
+        forceData();
+      }
+      replaceEntry(index, offset, data.length);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes several entries with a single write into consecutive free sectors, then switches their header entries.
+   */
+  public void write(Map<Integer, byte[]> entries) throws IOException {
+    int sectors = 0;
+    for (byte[] data : entries.values()) {
+      if (data.length == 0) {
+        throw new IllegalArgumentException("Cannot store an empty entry");
+      }
+      sectors += (data.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+    if (sectors == 0) {
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(sectors * SECTOR_SIZE);
+    lock.writeLock().lock();
+    try {
+      int offset = allocate(sectors);
+      for (byte[] data : entries.values()) {
+        buffer.position((buffer.position() + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE);
+        buffer.put(data);
+      }
+      buffer.flip();
+      writeFully(buffer, (long) offset * SECTOR_SIZE);
+      for (int index : entries.keySet()) {
+        if (offsets[index] != 0) {
+          forceData();
+          break;
+        }
+      }
+      for (Map.Entry<Integer, byte[]> entry : entries.entrySet()) {
+        int length = entry.getValue().length;
+        replaceEntry(entry.getKey(), offset, length);
+        offset += (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Stores a chunk made of a single tile in the header entry, freeing any data stored for it before.
+   */
+  public void writeConstant(int index, int tile, int size, int seed) throws IOException {
+    if (tile < 0 || tile > CONSTANT_TILE_MASK || size <= 0 || size > (Integer.MAX_VALUE >>> CONSTANT_TILE_BITS)) {
+      throw new IllegalArgumentException("Cannot store tile " + tile + " of a chunk of size " + size);
+    }
+    lock.writeLock().lock();
+    try {
+      replaceEntry(index, -1 - (tile | (size << CONSTANT_TILE_BITS)), seed);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void delete(int index) throws IOException {
+    lock.writeLock().lock();
+    try {
+      replaceEntry(index, 0, 0);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forces the written entries to disk, after which the sectors they replaced are reused.
+   */
+  public void flush() throws IOException {
+    BitSet released;
+    lock.writeLock().lock();
+    try {
+      released = (BitSet) pendingSectors.clone();
+      pendingSectors.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    boolean forced = false;
+    try {
+      channel.force(false);
+      forced = true;
+    } finally {
+      lock.writeLock().lock();
+      try {
+        if (forced) {
+          usedSectors.andNot(released);
+        } else {
+          pendingSectors.or(released);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the indexes of the stored entries.
+   */
+  public List<Integer> getEntries() {
+    List<Integer> entries = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      for (int i = 0; i < ENTRY_COUNT; i++) {
+        if (offsets[i] != 0) {
+          entries.add(i);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return entries;
+  }
+
+  /**
+   * Moves the entries at the end of the file into free sectors before them and truncates the file. Only one entry
+   * is moved at a time, so reads and writes go on in between. Returns the number of bytes the file shrunk by.
+   */
+  public long compact() throws IOException {
+    long length = channel.size();
+    // the sectors of replaced entries are free to move into once the replacing headers are on disk
+    flush();
+    int highest = Integer.MAX_VALUE;
+    while (true) {
+      lock.writeLock().lock();
+      try {
+        int index = findHighestEntryBelow(highest);
+        if (index < 0) {
+          break;
+        }
+        int offset = offsets[index];
+        highest = offset;
+        int sectors = (lengths[index] + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        // the first free run before the entry that fits it; the entry itself is in use, so there is a used sector
+        int target = usedSectors.nextClearBit(HEADER_SECTORS);
+        int used = usedSectors.nextSetBit(target);
+        while (target + sectors <= offset && used < target + sectors) {
+          target = usedSectors.nextClearBit(used);
+          used = usedSectors.nextSetBit(target);
+        }
+        if (target + sectors > offset) {
+          continue;
+        }
+        ByteBuffer data = ByteBuffer.allocate(lengths[index]);
+        while (data.hasRemaining()) {
+          if (channel.read(data, (long) offset * SECTOR_SIZE + data.position()) < 0) {
+            throw new IOException("Entry " + index + " of " + file + " ends past the end of the file");
+          }
+        }
+        data.flip();
+        usedSectors.set(target, target + sectors);
+        writeFully(data, (long) target * SECTOR_SIZE);
+        forceData();
+        replaceEntry(index, target, lengths[index]);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    lock.writeLock().lock();
+    try {
+      // the moved entries must be on disk before the sectors they were in are cut off
+      forceData();
+      int end = Math.max(usedSectors.length(), HEADER_SECTORS);
+      if (channel.size() > (long) end * SECTOR_SIZE) {
+        channel.truncate((long) end * SECTOR_SIZE);
+      }
+      return length - channel.size();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Copies the file as it is between writes to the target and gives the copy the modification time of the file.
+   * Reads go on while the copy is made; writes wait for it.
+   */
+  public void copyTo(File target) throws IOException {
+    lock.readLock().lock();
+    try {
+      long modified = file.lastModified();
+      try (FileOutputStream out = new FileOutputStream(target)) {
+        FileChannel output = out.getChannel();
+        long size = channel.size();
+        long copied = 0;
+        while (copied < size) {
+          copied += channel.transferTo(copied, size - copied, output);
+        }
+        output.force(false);
+      }
+      target.setLastModified(modified);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      channel.force(true);
+      randomAccessFile.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Converts chunk coordinates within the region, each in [0, 2^SIZE_LOG2), to an entry index.
+   */
+  public static int getIndex(int x, int y, int z) {
+    return x + (z << SIZE_LOG2) + (y << (2 * SIZE_LOG2));
+  }
+
+  private void readHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        break;
+      }
+    }
+    header.flip();
+    long fileSectors = (channel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      int offset = header.getInt();
+      int length = header.getInt();
+      if (offset < 0) {
+        // constant chunk, the length is the seed
+        offsets[i] = offset;
+        lengths[i] = length;
+        continue;
+      }
+      int sectors = (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+      if (offset < HEADER_SECTORS || length <= 0 || offset + sectors > fileSectors) {
+        // empty, or pointing outside the data area of the file
+        continue;
+      }
+      offsets[i] = offset;
+      lengths[i] = length;
+      usedSectors.set(offset, offset + sectors);
+    }
+  }
+
+  private int findHighestEntryBelow(int limit) {
+    int highest = -1;
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      if (offsets[i] > 0 && offsets[i] < limit && (highest < 0 || offsets[i] > offsets[highest])) {
+        highest = i;
+      }
+    }
+    return highest;
+  }
+
+  private int allocate(int sectors) {
+    int start = usedSectors.nextClearBit(HEADER_SECTORS);
+    while (true) {
+      int end = usedSectors.nextSetBit(start);
+      if (end < 0 || end - start >= sectors) {
+        usedSectors.set(start, start + sectors);
+        return start;
+      }
+      start = usedSectors.nextClearBit(end);
+    }
+  }
+
+  private void replaceEntry(int index, int offset, int length) throws IOException {
+    int oldOffset = offsets[index];
+    int oldSectors = (lengths[index] + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    setEntry(index, offset, length);
+    if (oldOffset > 0) {
+      pendingSectors.set(oldOffset, oldOffset + oldSectors);
+    }
+  }
+
+  /**
+   * Forces everything written so far, which also puts the switched header entries on disk, so the sectors they
+   * replaced can be reused. Called with the write lock held.
+   */
+  private void forceData() throws IOException {
+    channel.force(false);
+    usedSectors.andNot(pendingSectors);
+    pendingSectors.clear();
+  }
+
+  private void setEntry(int index, int offset, int length) throws IOException {
+    ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+    entry.putInt(offset).putInt(length).flip();
+    writeFully(entry, (long) index * ENTRY_BYTES);
+    offsets[index] = offset;
+    lengths[index] = length;
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+}
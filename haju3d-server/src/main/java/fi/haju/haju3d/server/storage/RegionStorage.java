@@ -0,0 +1,308 @@
+package fi.haju.haju3d.server.storage;
+
+import com.google.common.base.Optional;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stores chunk data in {@link RegionFile}s of 16x16x16 chunks in a directory.
+ * <p/>
+ * Region files are named {@code r#x#y#z} after their region coordinates and are opened on first use and kept
+ * open until the storage is closed. Whether a chunk is stored is answered from the region header in memory, as are
+ * chunks made of a single tile, which are kept in the header alone.
+ * <p/>
+ * The storage remembers which regions have been written since they were last copied by
+ * {@link #snapshot(File, File)}, so that a snapshot can take the unchanged regions from the previous one.
+ */
+public final class RegionStorage {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RegionStorage.class);
+  private static final int LOCAL_MASK = (1 << RegionFile.SIZE_LOG2) - 1;
+  private static final String REGION_PREFIX = "r#";
+
+  private final File directory;
+  private final ConcurrentMap<ChunkPosition, RegionFile> regions = new ConcurrentHashMap<>();
+  // regions written since their last snapshot
+  private final Set<ChunkPosition> changed = Collections.newSetFromMap(new ConcurrentHashMap<ChunkPosition, Boolean>());
+  private volatile boolean closed = false;
+
+  public RegionStorage(File directory) {
+    this.directory = directory;
+    directory.mkdirs();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public boolean contains(ChunkPosition position) {
+    RegionFile region = getRegion(position, false);
+    return region != null && region.contains(getIndex(position));
+  }
+
+  public Optional<byte[]> read(ChunkPosition position) {
+    RegionFile region = getRegion(position, false);
+    if (region == null) {
+      return Optional.absent();
+    }
+    try {
+      return region.read(getIndex(position));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public Optional<RegionFile.Constant> readConstant(ChunkPosition position) {
+    RegionFile region = getRegion(position, false);
+    if (region == null) {
+      return Optional.absent();
+    }
+    return region.readConstant(getIndex(position));
+  }
+
+  public void writeConstant(ChunkPosition position, int tile, int size, int seed) {
+    try {
+      getRegion(position, true).writeConstant(getIndex(position), tile, size, seed);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    changed.add(getRegionPosition(position));
+  }
+
+  public void write(ChunkPosition position, byte[] data) {
+    try {
+      getRegion(position, true).write(getIndex(position), data);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    changed.add(getRegionPosition(position));
+  }
+
+  /**
+   * Writes the data of several chunks with one write per region.
+   */
+  public void write(Map<ChunkPosition, byte[]> data) {
+    Map<ChunkPosition, Map<Integer, byte[]>> byRegion = new HashMap<>();
+    for (Map.Entry<ChunkPosition, byte[]> entry : data.entrySet()) {
+      ChunkPosition regionPosition = getRegionPosition(entry.getKey());
+      Map<Integer, byte[]> entries = byRegion.get(regionPosition);
+      if (entries == null) {
+        entries = new LinkedHashMap<>();
+        byRegion.put(regionPosition, entries);
+      }
+      entries.put(getIndex(entry.getKey()), entry.getValue());
+    }
+    for (Map.Entry<ChunkPosition, Map<Integer, byte[]>> entry : byRegion.entrySet()) {
+      try {
+        getRegionFile(entry.getKey(), true).write(entry.getValue());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      changed.add(entry.getKey());
+    }
+  }
+
+  public void delete(ChunkPosition position) {
+    RegionFile region = getRegion(position, false);
+    if (region == null) {
+      return;
+    }
+    try {
+      region.delete(getIndex(position));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    changed.add(getRegionPosition(position));
+  }
+
+  /**
+   * Returns the positions of the regions that have a file.
+   */
+  public List<ChunkPosition> getRegions() {
+    List<ChunkPosition> positions = new ArrayList<>();
+    File[] files = directory.listFiles();
+    for (File file : files == null ? new File[0] : files) {
+      Optional<ChunkPosition> regionPosition = parseRegionFile(file);
+      if (regionPosition.isPresent()) {
+        positions.add(regionPosition.get());
+      }
+    }
+    return positions;
+  }
+
+  /**
+   * Returns the positions of the chunks stored in the region.
+   */
+  public List<ChunkPosition> getChunks(ChunkPosition regionPosition) {
+    List<ChunkPosition> positions = new ArrayList<>();
+    RegionFile region = getRegionFile(regionPosition, false);
+    if (region == null) {
+      return positions;
+    }
+    int base = 1 << RegionFile.SIZE_LOG2;
+    for (int index : region.getEntries()) {
+      positions.add(new ChunkPosition(
+          regionPosition.x * base + (index & LOCAL_MASK),
+          regionPosition.y * base + (index >> (2 * RegionFile.SIZE_LOG2)),
+          regionPosition.z * base + ((index >> RegionFile.SIZE_LOG2) & LOCAL_MASK)));
+    }
+    return positions;
+  }
+
+  /**
+   * Compacts the file of the region, see {@link RegionFile#compact()}. Returns the number of bytes reclaimed.
+   */
+  public long compact(ChunkPosition regionPosition) {
+    RegionFile region = getRegionFile(regionPosition, false);
+    if (region == null) {
+      return 0;
+    }
+    try {
+      return region.compact();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Copies the region files into the target directory without stopping reads or writes, each file as it is
+   * between two writes. Regions that have not changed since the previous snapshot directory, if any, are hard
+   * linked from there instead. Returns the number of region files copied.
+   */
+  public int snapshot(File target, File previous) throws IOException {
+    target.mkdirs();
+    File[] files = directory.listFiles();
+    int copied = 0;
+    for (File file : files == null ? new File[0] : files) {
+      Optional<ChunkPosition> regionPosition = parseRegionFile(file);
+      if (!regionPosition.isPresent()) {
+        continue;
+      }
+      File copy = new File(target, file.getName());
+      // a write after this is copied by the next snapshot
+      boolean written = changed.remove(regionPosition.get());
+      File old = previous == null ? null : new File(previous, file.getName());
+      if (!written && old != null && old.length() == file.length() && old.lastModified() == file.lastModified()
+          && link(old, copy)) {
+        continue;
+      }
+      try {
+        getRegionFile(regionPosition.get(), false).copyTo(copy);
+      } catch (IOException | RuntimeException e) {
+        changed.add(regionPosition.get());
+        throw e;
+      }
+      copied++;
+    }
+    return copied;
+  }
+
+  private static boolean link(File existing, File link) {
+    try {
+      Files.createLink(link.toPath(), existing.toPath());
+      return true;
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      return false;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Forces everything written so far to disk.
+   */
+  public void flush() {
+    for (RegionFile region : regions.values()) {
+      try {
+        region.flush();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  public synchronized void close() {
+    closed = true;
+    for (RegionFile region : regions.values()) {
+      try {
+        region.close();
+      } catch (IOException e) {
+        LOGGER.error("Error closing region file " + region.getFile(), e);
+      }
+    }
+    regions.clear();
+  }
+
+  public static ChunkPosition getRegionPosition(ChunkPosition position) {
+    return new ChunkPosition(
+        position.x >> RegionFile.SIZE_LOG2, position.y >> RegionFile.SIZE_LOG2, position.z >> RegionFile.SIZE_LOG2);
+  }
+
+  private static int getIndex(ChunkPosition position) {
+    return RegionFile.getIndex(position.x & LOCAL_MASK, position.y & LOCAL_MASK, position.z & LOCAL_MASK);
+  }
+
+  private static Optional<ChunkPosition> parseRegionFile(File file) {
+    String name = file.getName();
+    if (!file.isFile() || !name.startsWith(REGION_PREFIX)) {
+      return Optional.absent();
+    }
+    String[] parts = name.substring(REGION_PREFIX.length()).split("#");
+    if (parts.length != 3) {
+      return Optional.absent();
+    }
+    try {
+      return Optional.of(
+          new ChunkPosition(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+    } catch (NumberFormatException e) {
+      return Optional.absent();
+    }
+  }
+
+  private RegionFile getRegion(ChunkPosition position, boolean create) {
+    return getRegionFile(getRegionPosition(position), create);
+  }
+
+  private RegionFile getRegionFile(ChunkPosition regionPosition, boolean create) {
+    RegionFile region = regions.get(regionPosition);
+    if (region != null) {
+      return region;
+    }
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Region storage in " + directory + " is closed");
+      }
+      region = regions.get(regionPosition);
+      if (region != null) {
+        return region;
+      }
+      File file = new File(directory,
+          REGION_PREFIX + regionPosition.x + "#" + regionPosition.y + "#" + regionPosition.z);
+      if (!create && !file.exists()) {
+        return null;
+      }
+      try {
+        region = new RegionFile(file);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      regions.put(regionPosition, region);
+      return region;
+    }
+  }
+
+}
@@ -1,85 +1,83 @@
 package fi.haju.haju3d.server.world;
 
 import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
-import fi.haju.haju3d.protocol.coordinate.Vector3i;
 import fi.haju.haju3d.protocol.world.Chunk;
-import fi.haju.haju3d.protocol.world.Tile;
-import fi.haju.haju3d.server.world.utils.FloodFiller;
+import fi.haju.haju3d.server.world.pipeline.DensityStage;
+import fi.haju.haju3d.server.world.pipeline.FloaterRemovalStage;
+import fi.haju.haju3d.server.world.pipeline.GenerationPhase;
+import fi.haju.haju3d.server.world.pipeline.GenerationPipeline;
+import fi.haju.haju3d.server.world.pipeline.MaterialStage;
 import fi.haju.haju3d.server.world.utils.PerlinNoiseGenerator;
 import fi.haju.haju3d.util.Profiled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class PerlinNoiseWorldGenerator implements WorldGenerator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PerlinNoiseWorldGenerator.class);
   
   private static final int TERRAIN_FEATURE_SIZE = 7;
   private static final int TERRAIN_SMOOTHNESS = 3;
   private static final int TERRAIN_THRESHOLD = 64;
+  private static final int DEFAULT_LEAF_SIZE = 16;
   
+  private final GenerationPipeline pipeline = new GenerationPipeline();
+  private final DensityStage density;
+  private final MaterialStage materials;
   private int seed;
-  private PerlinNoiseGenerator generator;
-  private PerlinNoiseGenerator typeGenerator;
+  private volatile PerlinNoiseGenerator terrainNoise;
+  private volatile PerlinNoiseGenerator typeNoise;
+
+  public PerlinNoiseWorldGenerator() {
+    this(DEFAULT_LEAF_SIZE);
+  }
+  
+  /**
+   * @param leafSize edge length below which blocks of mixed chunks are no longer split when looking for uniform areas
+   */
+  public PerlinNoiseWorldGenerator(int leafSize) {
+    density = new DensityStage(TERRAIN_THRESHOLD, leafSize);
+    materials = new MaterialStage(leafSize);
+    pipeline.addStage(GenerationPhase.DENSITY, density);
+    pipeline.addStage(GenerationPhase.MATERIALS, materials);
+    pipeline.addStage(GenerationPhase.FLOATER_REMOVAL, new FloaterRemovalStage());
+  }
 
   @Override
   @Profiled
   public Chunk generateChunk(ChunkPosition position, int sizeLog2) {
     int realseed = seed ^ (position.x + position.y * 123 + position.z * 12347);
-    return makeChunk(sizeLog2, realseed, position);
+    return pipeline.generate(position, sizeLog2, realseed);
   }
 
   @Override
   public void setSeed(int seed) {
     this.seed = seed;
-    this.generator = new PerlinNoiseGenerator(TERRAIN_FEATURE_SIZE, TERRAIN_SMOOTHNESS, seed);
-    this.typeGenerator = new PerlinNoiseGenerator(2, TERRAIN_SMOOTHNESS, seed);
+    terrainNoise = new PerlinNoiseGenerator(TERRAIN_FEATURE_SIZE, TERRAIN_SMOOTHNESS, seed);
+    typeNoise = new PerlinNoiseGenerator(2, TERRAIN_SMOOTHNESS, seed);
+    density.setNoise(terrainNoise);
+    materials.setNoise(typeNoise);
   }
 
-  private static Chunk filterFloaters(Chunk chunk) {
-    Chunk ground = new Chunk(chunk.getSize(), chunk.getSeed(), chunk.getPosition());
-    new FloodFiller(ground, chunk).fill();
-    return ground;
+  @Override
+  public void logStatistics() {
+    pipeline.logStatistics();
+    logCacheStatistics("terrain", terrainNoise);
+    logCacheStatistics("type", typeNoise);
   }
 
-  private Chunk makeChunk(int sizeLog2, int seed, ChunkPosition position) {
-    boolean onlyAir = true;
-    int size = 1 << sizeLog2;
-    Vector3i wp = position.mult(size);
-    float minVal = generator.getMinValue(wp, size); 
-    if(minVal + position.y*(size + 1) > TERRAIN_THRESHOLD) {
-      return new Chunk(size, seed, position, Tile.AIR);
+  private static void logCacheStatistics(String name, PerlinNoiseGenerator noise) {
+    if (noise == null) {
+      return;
     }
-    float maxVal = generator.getMaxValue(wp, size);
-    if(maxVal + position.y*(size) < TERRAIN_THRESHOLD) {
-      return new Chunk(size, seed, position, Tile.ROCK);
-    }
-    Chunk chunk = new Chunk(size, seed, position);
-    int sx = (position.x << sizeLog2);
-    int sy = (position.y << sizeLog2);
-    int sz = (position.z << sizeLog2);
-    for (int x = 0; x < size; x++) {
-      int rx = x + sx;
-      for (int y = 0; y < size; y++) {
-        int ry = y + sy;
-        for (int z = 0; z < size; z++) {
-          int rz = z + sz;
-          float v = ry + generator.getValueAt(rx, ry, rz);
-          float tv = typeGenerator.getValueAt(rx, ry, rz);
-          Tile tile = v < TERRAIN_THRESHOLD ? getGround(tv) : Tile.AIR;
-          if(tile != Tile.AIR) {
-            onlyAir = false;
-          }
-          chunk.set(x, y, z, tile);
-          // TODO Color from noise
-        }
-      }
-    }
-    if(onlyAir) {
-      return new Chunk(size, seed, position, Tile.AIR);
-    }
-    chunk = filterFloaters(chunk);
-    return chunk;
+    LOGGER.info(String.format("Noise %s: %d lattice blocks cached, %.1f%% cache hits",
+        name, noise.getCacheSize(), 100.0 * noise.getCacheHitRate()));
   }
-  
-  private final static Tile getGround(float v) {
-    return v < 0 ? Tile.GROUND : Tile.ROCK;
+
+  /**
+   * The stages of the generator. Terrain features can be added as carving or decoration stages.
+   */
+  public GenerationPipeline getPipeline() {
+    return pipeline;
   }
 
 }
@@ -0,0 +1,125 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+import fi.haju.haju3d.protocol.coordinate.Vector3i;
+import fi.haju.haju3d.protocol.world.FloatArray3d;
+import fi.haju.haju3d.protocol.world.Tile;
+import fi.haju.haju3d.server.world.utils.PerlinNoiseGenerator;
+
+/**
+ * Marks the tiles below the noise terrain surface as solid, writing them as {@link #SOLID} for the material stage
+ * to refine.
+ * <p/>
+ * Chunks entirely above or below the surface are made constant, so whole-solid chunks stay {@link #SOLID} rock. The
+ * whole chunk is tested with the same world space bounds as its blocks. Mixed chunks are split into octants until the
+ * noise bounds show a block is uniformly air or solid, or the block reaches the leaf size and is evaluated.
+ */
+public final class DensityStage implements GenerationStage {
+  public static final Tile SOLID = Tile.ROCK;
+  // slack for float rounding when comparing noise bounds against the threshold
+  static final float BOUND_MARGIN = 0.01f;
+  private static final int BUFFER_SLOT = 0;
+
+  private final int threshold;
+  private final int leafSize;
+  private volatile PerlinNoiseGenerator noise;
+
+  public DensityStage(int threshold, int leafSize) {
+    this.threshold = threshold;
+    this.leafSize = leafSize;
+  }
+
+  public void setNoise(PerlinNoiseGenerator noise) {
+    this.noise = noise;
+  }
+
+  @Override
+  public String getName() {
+    return "density";
+  }
+
+  @Override
+  public boolean appliesToConstantChunks() {
+    return false;
+  }
+
+  @Override
+  public void apply(GenerationContext context) {
+    PerlinNoiseGenerator noise = this.noise;
+    int size = context.getSize();
+    Vector3i wp = context.getCorner();
+    if(wp.y + noise.getMinValue(wp, size) >= threshold + BOUND_MARGIN) {
+      context.setConstant(Tile.AIR);
+      return;
+    }
+    if(wp.y + size - 1 + noise.getMaxValue(wp, size) < threshold - BOUND_MARGIN) {
+      context.setConstant(SOLID);
+      return;
+    }
+    if(fillBlock(context, noise, 0, 0, 0, size)) {
+      context.setConstant(Tile.AIR);
+    }
+  }
+
+  /**
+   * Returns true if the block is only air.
+   */
+  private boolean fillBlock(GenerationContext context, PerlinNoiseGenerator noise, int x0, int y0, int z0, int edge) {
+    Vector3i corner = context.getCorner().add(x0, y0, z0);
+    if(corner.y + noise.getMinValue(corner, edge) >= threshold + BOUND_MARGIN) {
+      return true;
+    }
+    if(corner.y + edge - 1 + noise.getMaxValue(corner, edge) < threshold - BOUND_MARGIN) {
+      fillSolid(context, x0, y0, z0, edge);
+      return false;
+    }
+    if(edge <= leafSize) {
+      return fillEvaluated(context, noise, corner, x0, y0, z0, edge);
+    }
+    int half = edge >> 1;
+    boolean onlyAir = true;
+    for(int x = 0; x < 2; x++) {
+      for(int y = 0; y < 2; y++) {
+        for(int z = 0; z < 2; z++) {
+          onlyAir &= fillBlock(context, noise, x0 + x * half, y0 + y * half, z0 + z * half, half);
+        }
+      }
+    }
+    return onlyAir;
+  }
+
+  private static void fillSolid(GenerationContext context, int x0, int y0, int z0, int edge) {
+    byte[] tiles = context.getTiles();
+    byte solid = (byte) SOLID.ordinal();
+    for (int y = 0; y < edge; y++) {
+      for (int z = 0; z < edge; z++) {
+        int index = context.getIndex(x0, y0 + y, z0 + z);
+        for (int x = 0; x < edge; x++) {
+          tiles[index + x] = solid;
+        }
+      }
+    }
+  }
+
+  private boolean fillEvaluated(GenerationContext context, PerlinNoiseGenerator noise, Vector3i corner,
+      int x0, int y0, int z0, int edge) {
+    byte[] tiles = context.getTiles();
+    byte solid = (byte) SOLID.ordinal();
+    FloatArray3d values = context.getFloatBuffer(BUFFER_SLOT, edge);
+    noise.getValues(values, corner.x, corner.y, corner.z);
+    boolean onlyAir = true;
+    for (int y = 0; y < edge; y++) {
+      int ry = y + corner.y;
+      for (int z = 0; z < edge; z++) {
+        int index = context.getIndex(x0, y0 + y, z0 + z);
+        for (int x = 0; x < edge; x++) {
+          if(ry + values.get(x, y, z) < threshold) {
+            onlyAir = false;
+            tiles[index + x] = solid;
+          }
+        }
+      }
+    }
+    return onlyAir;
+  }
+
+}
@@ -0,0 +1,23 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+/**
+ * Turns solid tiles that are not connected to the chunk edges into air.
+ */
+public final class FloaterRemovalStage implements GenerationStage {
+
+  @Override
+  public String getName() {
+    return "floater removal";
+  }
+
+  @Override
+  public boolean appliesToConstantChunks() {
+    return false;
+  }
+
+  @Override
+  public void apply(GenerationContext context) {
+    context.getFloodFiller().removeFloaters(context.getTiles(), context.getColors());
+  }
+
+}
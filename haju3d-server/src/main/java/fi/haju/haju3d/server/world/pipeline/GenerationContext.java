@@ -0,0 +1,142 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.Vector3i;
+import fi.haju.haju3d.protocol.world.ByteArray3d;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.FloatArray3d;
+import fi.haju.haju3d.protocol.world.Tile;
+import fi.haju.haju3d.server.world.utils.FloodFiller;
+
+import java.util.Arrays;
+
+/**
+ * Working state of the chunk being generated by one thread.
+ * <p/>
+ * The tile and color buffers use the {@link ByteArray3d} layout and are reused for every chunk the thread
+ * generates, as are the float buffers and the flood filler handed out to the stages. A chunk is constant while
+ * {@link #getConstant()} is set, in which case the tile buffer is not used.
+ */
+public final class GenerationContext {
+  private static final int FLOAT_BUFFER_SLOTS = 4;
+
+  private final int size;
+  private final int sizeLog2;
+  private final byte[] tiles;
+  private final byte[] colors;
+  private final FloatArray3d[] floatBuffers = new FloatArray3d[FLOAT_BUFFER_SLOTS];
+  private FloodFiller floodFiller;
+
+  private ChunkPosition position;
+  private Vector3i corner;
+  private int seed;
+  private Tile constant;
+
+  public GenerationContext(int sizeLog2) {
+    this.sizeLog2 = sizeLog2;
+    this.size = 1 << sizeLog2;
+    this.tiles = new byte[size * size * size];
+    this.colors = new byte[size * size * size];
+  }
+
+  void reset(ChunkPosition position, int seed) {
+    this.position = position;
+    this.corner = position.mult(size);
+    this.seed = seed;
+    this.constant = null;
+    Arrays.fill(tiles, (byte) Tile.AIR.ordinal());
+    Arrays.fill(colors, (byte) 0);
+  }
+
+  Chunk toChunk() {
+    if (constant != null) {
+      return new Chunk(size, seed, position, constant);
+    }
+    ByteArray3d chunkColors = null;
+    if (hasColors()) {
+      chunkColors = new ByteArray3d(size, size, size, Arrays.copyOf(colors, colors.length));
+    }
+    return new Chunk(size, seed, position, new ByteArray3d(size, size, size, Arrays.copyOf(tiles, tiles.length)),
+        chunkColors);
+  }
+
+  private boolean hasColors() {
+    for (byte color : colors) {
+      if (color != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getSizeLog2() {
+    return sizeLog2;
+  }
+
+  public ChunkPosition getPosition() {
+    return position;
+  }
+
+  /**
+   * World tile coordinates of the lowest corner of the chunk.
+   */
+  public Vector3i getCorner() {
+    return corner;
+  }
+
+  public int getSeed() {
+    return seed;
+  }
+
+  public boolean isConstant() {
+    return constant != null;
+  }
+
+  public Tile getConstant() {
+    return constant;
+  }
+
+  /**
+   * Makes the whole chunk a single tile type. Set to null to go back to the tile buffer.
+   */
+  public void setConstant(Tile constant) {
+    this.constant = constant;
+  }
+
+  public byte[] getTiles() {
+    return tiles;
+  }
+
+  public byte[] getColors() {
+    return colors;
+  }
+
+  public int getIndex(int x, int y, int z) {
+    return x + (z << sizeLog2) + (y << (sizeLog2 << 1));
+  }
+
+  /**
+   * Returns a reusable cubic float buffer. Different slots can be used at the same time, and the contents of a
+   * slot are not kept between calls.
+   */
+  public FloatArray3d getFloatBuffer(int slot, int edge) {
+    FloatArray3d buffer = floatBuffers[slot];
+    if (buffer == null || buffer.getWidth() != edge) {
+      buffer = new FloatArray3d(edge, edge, edge);
+      floatBuffers[slot] = buffer;
+    }
+    return buffer;
+  }
+
+  public FloodFiller getFloodFiller() {
+    if (floodFiller == null) {
+      floodFiller = new FloodFiller(size);
+    }
+    return floodFiller;
+  }
+
+}
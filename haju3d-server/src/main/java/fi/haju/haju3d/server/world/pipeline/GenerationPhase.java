@@ -0,0 +1,17 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+/**
+ * The phases of chunk generation in the order they are run.
+ */
+public enum GenerationPhase {
+  /** decides which tiles are solid */
+  DENSITY,
+  /** chooses the tile type of the solid tiles */
+  MATERIALS,
+  /** removes solid tiles, for example caves */
+  CARVING,
+  /** removes solid tiles not connected to the chunk edges */
+  FLOATER_REMOVAL,
+  /** adds features on top of the finished terrain */
+  DECORATION
+}
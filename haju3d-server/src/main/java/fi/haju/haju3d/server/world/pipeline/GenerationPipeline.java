@@ -0,0 +1,96 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates chunks by running stages in phase order on a per-thread {@link GenerationContext}.
+ * <p/>
+ * Stages can be added at any time. Stages that do not apply to constant chunks are skipped once a chunk has become
+ * constant. The time spent in each stage is recorded and can be logged with {@link #logStatistics()}.
+ */
+public final class GenerationPipeline {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GenerationPipeline.class);
+
+  private final Map<GenerationPhase, List<StageTiming>> phases = new EnumMap<>(GenerationPhase.class);
+  private final ThreadLocal<GenerationContext> contexts = new ThreadLocal<>();
+
+  private static final class StageTiming {
+    private final GenerationStage stage;
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong skips = new AtomicLong();
+
+    public StageTiming(GenerationStage stage) {
+      this.stage = stage;
+    }
+  }
+
+  public GenerationPipeline() {
+    for (GenerationPhase phase : GenerationPhase.values()) {
+      phases.put(phase, new CopyOnWriteArrayList<StageTiming>());
+    }
+  }
+
+  /**
+   * Adds a stage after the stages already in the phase.
+   */
+  public void addStage(GenerationPhase phase, GenerationStage stage) {
+    phases.get(phase).add(new StageTiming(stage));
+  }
+
+  public Chunk generate(ChunkPosition position, int sizeLog2, int seed) {
+    GenerationContext context = getContext(sizeLog2);
+    context.reset(position, seed);
+    for (List<StageTiming> stages : phases.values()) {
+      for (StageTiming timing : stages) {
+        if (context.isConstant() && !timing.stage.appliesToConstantChunks()) {
+          timing.skips.incrementAndGet();
+          continue;
+        }
+        long start = System.nanoTime();
+        timing.stage.apply(context);
+        timing.nanos.addAndGet(System.nanoTime() - start);
+        timing.runs.incrementAndGet();
+      }
+    }
+    return context.toChunk();
+  }
+
+  public void logStatistics() {
+    List<StageTiming> all = Lists.newArrayList();
+    long totalNanos = 0;
+    for (List<StageTiming> stages : phases.values()) {
+      for (StageTiming timing : stages) {
+        all.add(timing);
+        totalNanos += timing.nanos.get();
+      }
+    }
+    for (StageTiming timing : all) {
+      long runs = timing.runs.get();
+      long nanos = timing.nanos.get();
+      LOGGER.info(String.format("Stage %s: %d runs, %d skipped, %.1f us per run, %.1f%% of generation time",
+          timing.stage.getName(), runs, timing.skips.get(), runs == 0 ? 0.0 : nanos / 1000.0 / runs,
+          totalNanos == 0 ? 0.0 : 100.0 * nanos / totalNanos));
+    }
+  }
+
+  private GenerationContext getContext(int sizeLog2) {
+    GenerationContext context = contexts.get();
+    if (context == null || context.getSizeLog2() != sizeLog2) {
+      context = new GenerationContext(sizeLog2);
+      contexts.set(context);
+    }
+    return context;
+  }
+
+}
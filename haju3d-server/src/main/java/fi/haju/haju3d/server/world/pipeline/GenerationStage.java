@@ -0,0 +1,20 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+/**
+ * One step of chunk generation. Stages work on the buffers of a {@link GenerationContext} and are run by a
+ * {@link GenerationPipeline} in the order of their {@link GenerationPhase}.
+ * <p/>
+ * Stages are shared by all generating threads, so any per-chunk state must live in the context.
+ */
+public interface GenerationStage {
+
+  String getName();
+
+  /**
+   * Whether the stage has to run for chunks an earlier stage has already made constant.
+   */
+  boolean appliesToConstantChunks();
+
+  void apply(GenerationContext context);
+
+}
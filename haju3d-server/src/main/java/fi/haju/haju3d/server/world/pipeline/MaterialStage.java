@@ -0,0 +1,118 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+import fi.haju.haju3d.protocol.coordinate.Vector3i;
+import fi.haju.haju3d.protocol.world.FloatArray3d;
+import fi.haju.haju3d.protocol.world.Tile;
+import fi.haju.haju3d.server.world.utils.PerlinNoiseGenerator;
+
+/**
+ * Chooses between ground and rock for the solid tiles from a type noise: negative values are ground.
+ * <p/>
+ * Solid tiles arrive as {@link DensityStage#SOLID} rock, so blocks whose type noise is known to be positive are
+ * left as they are and only blocks that may contain ground are visited.
+ */
+public final class MaterialStage implements GenerationStage {
+  private static final byte AIR = (byte) Tile.AIR.ordinal();
+  private static final byte GROUND = (byte) Tile.GROUND.ordinal();
+  private static final byte ROCK = (byte) Tile.ROCK.ordinal();
+  private static final int BUFFER_SLOT = 1;
+
+  private final int leafSize;
+  private volatile PerlinNoiseGenerator noise;
+
+  public MaterialStage(int leafSize) {
+    this.leafSize = leafSize;
+  }
+
+  public void setNoise(PerlinNoiseGenerator noise) {
+    this.noise = noise;
+  }
+
+  @Override
+  public String getName() {
+    return "materials";
+  }
+
+  @Override
+  public boolean appliesToConstantChunks() {
+    return false;
+  }
+
+  @Override
+  public void apply(GenerationContext context) {
+    assignBlock(context, noise, 0, 0, 0, context.getSize());
+  }
+
+  private void assignBlock(GenerationContext context, PerlinNoiseGenerator noise, int x0, int y0, int z0, int edge) {
+    Vector3i corner = context.getCorner().add(x0, y0, z0);
+    if(noise.getMinValue(corner, edge) >= DensityStage.BOUND_MARGIN) {
+      return;
+    }
+    if(noise.getMaxValue(corner, edge) < -DensityStage.BOUND_MARGIN) {
+      replaceSolid(context, x0, y0, z0, edge);
+      return;
+    }
+    if(edge <= leafSize) {
+      assignEvaluated(context, noise, corner, x0, y0, z0, edge);
+      return;
+    }
+    int half = edge >> 1;
+    for(int x = 0; x < 2; x++) {
+      for(int y = 0; y < 2; y++) {
+        for(int z = 0; z < 2; z++) {
+          assignBlock(context, noise, x0 + x * half, y0 + y * half, z0 + z * half, half);
+        }
+      }
+    }
+  }
+
+  private static void replaceSolid(GenerationContext context, int x0, int y0, int z0, int edge) {
+    byte[] tiles = context.getTiles();
+    for (int y = 0; y < edge; y++) {
+      for (int z = 0; z < edge; z++) {
+        int index = context.getIndex(x0, y0 + y, z0 + z);
+        for (int x = 0; x < edge; x++) {
+          if(tiles[index + x] != AIR) {
+            tiles[index + x] = GROUND;
+          }
+        }
+      }
+    }
+  }
+
+  private void assignEvaluated(GenerationContext context, PerlinNoiseGenerator noise, Vector3i corner,
+      int x0, int y0, int z0, int edge) {
+    if(isOnlyAir(context, x0, y0, z0, edge)) {
+      return;
+    }
+    byte[] tiles = context.getTiles();
+    FloatArray3d types = context.getFloatBuffer(BUFFER_SLOT, edge);
+    noise.getValues(types, corner.x, corner.y, corner.z);
+    for (int y = 0; y < edge; y++) {
+      for (int z = 0; z < edge; z++) {
+        int index = context.getIndex(x0, y0 + y, z0 + z);
+        for (int x = 0; x < edge; x++) {
+          if(tiles[index + x] != AIR) {
+            tiles[index + x] = types.get(x, y, z) < 0 ? GROUND : ROCK;
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isOnlyAir(GenerationContext context, int x0, int y0, int z0, int edge) {
+    byte[] tiles = context.getTiles();
+    for (int y = 0; y < edge; y++) {
+      for (int z = 0; z < edge; z++) {
+        int index = context.getIndex(x0, y0 + y, z0 + z);
+        for (int x = 0; x < edge; x++) {
+          if(tiles[index + x] != AIR) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+}
@@ -1,52 +1,141 @@
 package fi.haju.haju3d.server.world.utils;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
 
-import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
-import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.world.ByteArray3d;
 import fi.haju.haju3d.protocol.world.Chunk;
 import fi.haju.haju3d.protocol.world.Tile;
 
+/**
+ * Copies the non-air tiles of a chunk that are connected to the chunk edges, leaving out floating tiles.
+ * <p/>
+ * Works on linear tile indices with a preallocated int queue and a visited bit mask, so one instance can fill any
+ * number of chunks of the same size without allocating. Chunks can be filled into a new chunk or in place.
+ * Instances are not thread-safe.
+ */
 public final class FloodFiller {
-  private List<LocalTilePosition> front = new ArrayList<>();
-  private Set<LocalTilePosition> visited = new HashSet<>();
-  private Chunk ground;
-  private Chunk orig;
+  private static final byte AIR = (byte) Tile.AIR.ordinal();
 
-  public FloodFiller(Chunk ground, Chunk orig) {
-    this.ground = ground;
-    this.orig = orig;
+  private final int size;
+  private final int sizeLog2;
+  private final int mask;
+  private final int[] queue;
+  private final long[] visited;
+  private byte[] tiles;
+  private int tail;
+
+  public FloodFiller(int size) {
+    if (Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Chunk size must be a power of two, was " + size);
+    }
+    this.size = size;
+    this.sizeLog2 = Integer.numberOfTrailingZeros(size);
+    this.mask = size - 1;
+    this.queue = new int[size * size * size];
+    this.visited = new long[(queue.length + 63) >> 6];
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public void fill(Chunk ground, Chunk orig) {
+    ByteArray3d origTiles = orig.getTiles();
+    if (origTiles == null || ground.getTiles() == null || orig.getSize() != size || ground.getSize() != size) {
+      throw new IllegalArgumentException("Both chunks must be non-constant and of size " + size);
+    }
+    markConnected(origTiles.getData());
+    copyVisited(ground, orig);
+    tiles = null;
+  }
+
+  /**
+   * Turns the tiles that are not connected to the chunk edges into air in place. The arrays use the
+   * {@link ByteArray3d} layout of a chunk of this filler's size.
+   */
+  public void removeFloaters(byte[] chunkTiles, byte[] chunkColors) {
+    markConnected(chunkTiles);
+    for (int word = 0; word < visited.length; word++) {
+      long unvisited = ~visited[word];
+      while (unvisited != 0) {
+        int i = (word << 6) + Long.numberOfTrailingZeros(unvisited);
+        unvisited &= unvisited - 1;
+        if (i < chunkTiles.length && chunkTiles[i] != AIR) {
+          chunkTiles[i] = AIR;
+          chunkColors[i] = 0;
+        }
+      }
+    }
+    tiles = null;
   }
 
-  public void fill() {
-    Set<TilePosition> edge = ground.getPosition().getEdgeTilePositions(ground.getSize());
-    for(TilePosition pos : edge) {
-      test(pos.getTileWithinChunk()); 
+  private void markConnected(byte[] chunkTiles) {
+    tiles = chunkTiles;
+    Arrays.fill(visited, 0L);
+    tail = 0;
+    seedEdges();
+    // tiles are laid out as x + z * size + y * size * size
+    int zStep = size;
+    int yStep = size << sizeLog2;
+    for (int head = 0; head < tail; head++) {
+      int i = queue[head];
+      int x = i & mask;
+      int z = (i >> sizeLog2) & mask;
+      int y = i >> (sizeLog2 << 1);
+      if (x > 0) test(i - 1);
+      if (x < mask) test(i + 1);
+      if (z > 0) test(i - zStep);
+      if (z < mask) test(i + zStep);
+      if (y > 0) test(i - yStep);
+      if (y < mask) test(i + yStep);
     }
-    while (!front.isEmpty()) {
-      LocalTilePosition v = front.remove(front.size() - 1);
-      test(v.add(1, 0, 0));
-      test(v.add(-1, 0, 0));
-      test(v.add(0, 1, 0));
-      test(v.add(0, -1, 0));
-      test(v.add(0, 0, 1));
-      test(v.add(0, 0, -1));
+  }
+
+  private void seedEdges() {
+    int last = mask;
+    for (int a = 0; a < size; a++) {
+      for (int b = 0; b < size; b++) {
+        test(index(0, a, b));
+        test(index(last, a, b));
+        test(index(a, 0, b));
+        test(index(a, last, b));
+        test(index(a, b, 0));
+        test(index(a, b, last));
+      }
     }
   }
 
-  private void test(LocalTilePosition n) {
-    if (visited.contains(n)) {
+  private void test(int i) {
+    if (tiles[i] == AIR) {
       return;
     }
-    if (!orig.isInside(n.x, n.y, n.z) || orig.get(n.x, n.y, n.z) == Tile.AIR) {
+    long bit = 1L << i;
+    int word = i >> 6;
+    if ((visited[word] & bit) != 0) {
+      return;
+    }
+    visited[word] |= bit;
+    queue[tail++] = i;
+  }
+
+  private void copyVisited(Chunk ground, Chunk orig) {
+    byte[] groundTiles = ground.getTiles().getData();
+    for (int n = 0; n < tail; n++) {
+      int i = queue[n];
+      groundTiles[i] = tiles[i];
+    }
+    if (orig.getColors() == null) {
       return;
     }
-    ground.set(n.x, n.y, n.z, orig.get(n.x, n.y, n.z));
-    ground.setColor(n.x, n.y, n.z, orig.getColor(n.x, n.y, n.z));
-    visited.add(n);
-    front.add(n);
+    byte[] origColors = orig.getColors().getData();
+    byte[] groundColors = ground.getOrCreateColors().getData();
+    for (int n = 0; n < tail; n++) {
+      int i = queue[n];
+      groundColors[i] = origColors[i];
+    }
+  }
+
+  private int index(int x, int y, int z) {
+    return x + (z << sizeLog2) + (y << (sizeLog2 << 1));
   }
-}
\ No newline at end of file
+}
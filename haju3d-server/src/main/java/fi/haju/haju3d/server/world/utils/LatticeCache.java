@@ -0,0 +1,105 @@
+package fi.haju.haju3d.server.world.utils;
+
+import fi.haju.haju3d.protocol.world.FloatArray3d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe cache of noise lattice blocks keyed by packed block coordinates.
+ * <p/>
+ * The cache is split into segments that each keep their blocks in least recently used order, so threads working on
+ * different parts of the world rarely contend. Blocks are deterministic, so an evicted block is simply rebuilt by
+ * the loader when it is needed again.
+ */
+public final class LatticeCache {
+  private static final int SEGMENT_COUNT = 16;
+  private static final int COORDINATE_BITS = 21;
+  private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+  public interface Loader {
+    FloatArray3d load(int x, int y, int z);
+  }
+
+  private final Loader loader;
+  private final Segment[] segments = new Segment[SEGMENT_COUNT];
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final class Segment extends LinkedHashMap<Long, FloatArray3d> {
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    public Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, FloatArray3d> eldest) {
+      if (size() > capacity) {
+        evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  public LatticeCache(int capacity, Loader loader) {
+    this.loader = loader;
+    int segmentCapacity = Math.max(1, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment(segmentCapacity);
+    }
+  }
+
+  public FloatArray3d get(int x, int y, int z) {
+    long key = pack(x, y, z);
+    Segment segment = segments[segmentIndex(key)];
+    synchronized (segment) {
+      FloatArray3d block = segment.get(key);
+      if (block != null) {
+        hits.incrementAndGet();
+        return block;
+      }
+      misses.incrementAndGet();
+      block = loader.load(x, y, z);
+      segment.put(key, block);
+      return block;
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private static long pack(int x, int y, int z) {
+    return ((x & COORDINATE_MASK) << (2 * COORDINATE_BITS)) | ((y & COORDINATE_MASK) << COORDINATE_BITS) | (z & COORDINATE_MASK);
+  }
+
+  private static int segmentIndex(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 60) & (SEGMENT_COUNT - 1);
+  }
+
+}
@@ -1,11 +1,10 @@
 package fi.haju.haju3d.server.world.utils;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 import fi.haju.haju3d.protocol.coordinate.Vector3i;
 import fi.haju.haju3d.protocol.world.FloatArray3d;
@@ -13,6 +12,7 @@ import fi.haju.haju3d.util.noise.InterpolationUtil;
 
 public final class PerlinNoiseGenerator {
   private static final float LEVEL_AMPLITUDE_MULTIPLIER = 5.0f;
+  private static final int LATTICE_CACHE_CAPACITY = 128;
   private final int numberOfLevels;
   private final int baseMapSizeLog2;
   private final int seed;
@@ -21,18 +21,29 @@ public final class PerlinNoiseGenerator {
   private final static class NoiseLevel {
     public final int sizeLog2;
     public final float amplitude;
-    public final Map<Vector3i, FloatArray3d> data = Maps.newHashMap();
+    public final LatticeCache data;
     public final int seed;
-    private final DataAccessor accessor = new DataAccessor();
+    private final ThreadLocal<DataAccessor> accessor = new ThreadLocal<DataAccessor>() {
+      @Override
+      protected DataAccessor initialValue() {
+        return new DataAccessor();
+      }
+    };
     
     public NoiseLevel(int sizeLog2, float amplitude, int seed) {
       this.sizeLog2 = sizeLog2;
       this.amplitude = amplitude;
       this.seed = seed;
+      this.data = new LatticeCache(LATTICE_CACHE_CAPACITY, new LatticeCache.Loader() {
+        @Override
+        public FloatArray3d load(int x, int y, int z) {
+          return makeBlock(x, y, z);
+        }
+      });
     }
     
     /**
-     * Speed optimizer, refetch array from map only when needed
+     * Speed optimizer, refetch array from the cache only when needed. Each thread has its own accessor.
      */
     private final class DataAccessor {
       private int lastx = Integer.MIN_VALUE;
@@ -46,9 +57,7 @@ public final class PerlinNoiseGenerator {
         int gy = y >= 0 ? (y >> sizeLog2) : ~(~y >> sizeLog2);
         int gz = z >= 0 ? (z >> sizeLog2) : ~(~z >> sizeLog2);
         if(gx != lastx || gy != lasty || gz != lastz) {
-          Vector3i pos = new Vector3i(gx, gy, gz);
-          makeIfDoesNotExist(pos);
-          array = data.get(pos); 
+          array = data.get(gx, gy, gz); 
           lastx = gx;
           lasty = gy;
           lastz = gz;
@@ -62,6 +71,7 @@ public final class PerlinNoiseGenerator {
       int xi = (int)Math.floor(x);
       int yi = (int)Math.floor(y);
       int zi = (int)Math.floor(z);
+      DataAccessor accessor = this.accessor.get();
       return InterpolationUtil.interpolateLinear3d(x - xi, y - yi, z - zi,
           accessor.getValueAt(xi, yi, zi),
           accessor.getValueAt(xi + 1, yi, zi),
@@ -74,10 +84,24 @@ public final class PerlinNoiseGenerator {
       );
     }
     
-    private void makeIfDoesNotExist(Vector3i pos) {
-      if(data.containsKey(pos)) return;
+    /**
+     * Fetches the lattice values of a box of lattice points with lowest corner at the given point.
+     */
+    public void getLatticeValues(float[] target, int x0, int y0, int z0, int nx, int ny, int nz) {
+      DataAccessor accessor = this.accessor.get();
+      int i = 0;
+      for(int z = 0; z < nz; ++z) {
+        for(int y = 0; y < ny; ++y) {
+          for(int x = 0; x < nx; ++x) {
+            target[i++] = accessor.getValueAt(x0 + x, y0 + y, z0 + z);
+          }
+        }
+      }
+    }
+    
+    private FloatArray3d makeBlock(int x, int y, int z) {
       int size = 1 << sizeLog2;
-      data.put(pos, new FloatArray3d(size, size, size, new Random(seed ^ pos.hashCode())));
+      return new FloatArray3d(size, size, size, new Random(seed ^ new Vector3i(x, y, z).hashCode()));
     }
     
   }
@@ -87,6 +111,9 @@ public final class PerlinNoiseGenerator {
     this.baseMapSizeLog2 = baseMapSizeLog2;
     this.seed = seed;
     this.levels = new NoiseLevel[levels];
+    for(int level = 1; level <= levels; ++level) {
+      this.levels[level-1] = new NoiseLevel(4, level*LEVEL_AMPLITUDE_MULTIPLIER, seed ^ level);
+    }
   }
   
   /**
@@ -97,16 +124,93 @@ public final class PerlinNoiseGenerator {
     int size = 1 << baseMapSizeLog2;
     for(int level = 1; level <= numberOfLevels; ++level) {
       NoiseLevel noise = levels[level-1];
-      if(noise == null) {
-        noise = new NoiseLevel(4, level*LEVEL_AMPLITUDE_MULTIPLIER, seed ^ level);
-        levels[level-1] = noise;
-      }
       value += noise.getValueAt(x/(float)(size), y/(float)(size), z/(float)(size));
       size <<= 1;
     }
     return value;
   }
   
+  /**
+   * fills the target with the values of the box whose lowest corner is at the given coordinates.
+   * The result is identical to calling getValueAt for every point, but lattice values are fetched once per box
+   * and the interpolation along x and y is shared by all points along the z axis of a lattice cell.
+   */
+  public final void getValues(FloatArray3d target, int x0, int y0, int z0) {
+    int w = target.getWidth();
+    int h = target.getHeight();
+    int d = target.getDepth();
+    int zStride = w * h;
+    float[] out = target.getData();
+    Arrays.fill(out, 0.0f);
+    int[] xi = new int[w];
+    int[] yi = new int[h];
+    int[] zi = new int[d];
+    float[] xt = new float[w];
+    float[] yt = new float[h];
+    float[] zt = new float[d];
+    int size = 1 << baseMapSizeLog2;
+    for(int level = 1; level <= numberOfLevels; ++level) {
+      NoiseLevel noise = levels[level-1];
+      getLatticeCoordinates(x0, size, xi, xt);
+      getLatticeCoordinates(y0, size, yi, yt);
+      getLatticeCoordinates(z0, size, zi, zt);
+      int nx = xi[w - 1] - xi[0] + 2;
+      int ny = yi[h - 1] - yi[0] + 2;
+      int nz = zi[d - 1] - zi[0] + 2;
+      int nxy = nx * ny;
+      float[] lattice = new float[nxy * nz];
+      noise.getLatticeValues(lattice, xi[0], yi[0], zi[0], nx, ny, nz);
+      for(int x = 0; x < w; ++x) {
+        int lx = xi[x] - xi[0];
+        float tx = xt[x];
+        for(int y = 0; y < h; ++y) {
+          int ly = yi[y] - yi[0];
+          float ty = yt[y];
+          int index = x + y * w;
+          int lastz = -1;
+          float z1 = 0.0f;
+          float z2 = 0.0f;
+          for(int z = 0; z < d; ++z) {
+            int lz = zi[z] - zi[0];
+            if(lz != lastz) {
+              // same operations as InterpolationUtil.interpolateLinear3d up to the final z step
+              int i = lx + ly * nx + lz * nxy;
+              float n1 = lattice[i];
+              float n2 = lattice[i + 1];
+              float n3 = lattice[i + nx];
+              float n4 = lattice[i + nx + 1];
+              float n5 = lattice[i + nxy];
+              float n6 = lattice[i + nxy + 1];
+              float n7 = lattice[i + nxy + nx];
+              float n8 = lattice[i + nxy + nx + 1];
+              float x1 = n1 + (n2 - n1) * tx;
+              float x2 = n3 + (n4 - n3) * tx;
+              z1 = x1 + (x2 - x1) * ty;
+              float xx1 = n5 + (n6 - n5) * tx;
+              float xx2 = n7 + (n8 - n7) * tx;
+              z2 = xx1 + (xx2 - xx1) * ty;
+              lastz = lz;
+            }
+            out[index + z * zStride] += z1 + (z2 - z1) * zt[z];
+          }
+        }
+      }
+      size <<= 1;
+    }
+  }
+  
+  /**
+   * computes the lattice cell and the offset within it for consecutive coordinates the same way as getValueAt
+   */
+  private static void getLatticeCoordinates(int start, int size, int[] cells, float[] offsets) {
+    for(int i = 0; i < cells.length; ++i) {
+      float v = (start + i)/(float)(size);
+      int cell = (int)Math.floor(v);
+      cells[i] = cell;
+      offsets[i] = v - cell;
+    }
+  }
+  
   /**
    * returns a value that is guaranteed to be above any value in the noise map  
    */
@@ -127,15 +231,11 @@ public final class PerlinNoiseGenerator {
   public float getMinValue(Vector3i corner, int edge) {
     List<Vector3i> corners = getCorners(corner, edge);
     float sum = 0;
-    Vector3i localPos = null;
     int sizeLog2 = baseMapSizeLog2;
     for(int i = 1; i <= numberOfLevels; ++i) {
+      Vector3i localPos = null;
       float min = Float.MAX_VALUE;
       NoiseLevel level = levels[i-1];
-      if(level == null) {
-        level = new NoiseLevel(4, i*LEVEL_AMPLITUDE_MULTIPLIER, seed ^ i);
-        levels[i-1] = level;
-      }
       int size = 1 << sizeLog2;
       for(Vector3i v : corners) {
         int gx = v.x >= 0 ? (v.x >> sizeLog2) : ~(~v.x >> sizeLog2);
@@ -163,15 +263,11 @@ public final class PerlinNoiseGenerator {
   public float getMaxValue(Vector3i corner, int edge) {
     List<Vector3i> corners = getCorners(corner, edge);
     float sum = 0;
-    Vector3i localPos = null;
     int sizeLog2 = baseMapSizeLog2;
     for(int i = 1; i <= numberOfLevels; ++i) {
-      float max = Float.MIN_VALUE;
+      Vector3i localPos = null;
+      float max = -Float.MAX_VALUE;
       NoiseLevel level = levels[i-1];
-      if(level == null) {
-        level = new NoiseLevel(4, i*LEVEL_AMPLITUDE_MULTIPLIER, seed ^ i);
-        levels[i-1] = level;
-      }
       int size = 1 << sizeLog2;
       for(Vector3i v : corners) {
         int gx = v.x >= 0 ? (v.x >> sizeLog2) : ~(~v.x >> sizeLog2);
@@ -193,6 +289,30 @@ public final class PerlinNoiseGenerator {
     return sum;
   }
 
+  /**
+   * returns the lattice cache hit rate over all noise levels
+   */
+  public float getCacheHitRate() {
+    long hits = 0;
+    long total = 0;
+    for(NoiseLevel level : levels) {
+      hits += level.data.getHits();
+      total += level.data.getHits() + level.data.getMisses();
+    }
+    return total == 0 ? 0.0f : hits / (float)total;
+  }
+  
+  /**
+   * returns the number of lattice blocks currently cached over all noise levels
+   */
+  public int getCacheSize() {
+    int size = 0;
+    for(NoiseLevel level : levels) {
+      size += level.data.size();
+    }
+    return size;
+  }
+
   private List<Vector3i> getCorners(Vector3i corner, int edge) {
     List<Vector3i> corners = Lists.newArrayList(
         corner, corner.add(0,edge,0), corner.add(edge,edge,0), corner.add(edge,0,0),
@@ -0,0 +1,120 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.Client;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkInterestTest {
+
+  @Test
+  public void testEditsAreRoutedToTheClientsHoldingTheirChunks() {
+    ChunkInterest interest = new ChunkInterest();
+    Client near = client();
+    Client far = client();
+    interest.register(near);
+    interest.register(far);
+    interest.add(near, Lists.newArrayList(new ChunkPosition(0, 0, 0), new ChunkPosition(1, 0, 0)));
+    interest.add(far, Lists.newArrayList(new ChunkPosition(100, 0, 0)));
+
+    WorldEdit first = edit(new ChunkPosition(0, 0, 0));
+    WorldEdit unheld = edit(new ChunkPosition(50, 0, 0));
+    WorldEdit second = edit(new ChunkPosition(1, 0, 0));
+    Map<Client, List<WorldEdit>> routed = interest.route(Lists.newArrayList(first, unheld, second));
+
+    assertEquals(1, routed.size());
+    assertEquals(Lists.newArrayList(first, second), routed.get(near));
+  }
+
+  @Test
+  public void testRemovedAndUnregisteredClientsHoldNothing() {
+    ChunkInterest interest = new ChunkInterest();
+    Client client = client();
+    Client unregistered = client();
+    interest.register(client);
+    interest.add(client, Lists.newArrayList(new ChunkPosition(0, 0, 0)));
+    interest.add(unregistered, Lists.newArrayList(new ChunkPosition(0, 0, 0)));
+    assertEquals(1, interest.getHeldCount(client));
+    assertEquals(0, interest.getHeldCount(unregistered));
+
+    interest.remove(client);
+    assertEquals(0, interest.getHeldCount(client));
+    assertTrue(interest.route(Lists.newArrayList(edit(new ChunkPosition(0, 0, 0)))).isEmpty());
+
+    interest.register(client);
+    assertFalse(interest.route(Lists.newArrayList(edit(new ChunkPosition(0, 0, 0)))).containsKey(client));
+  }
+
+  @Test
+  public void testEditsToChunksInFlightReachTheClientBeforeTheChunk() throws InterruptedException {
+    final List<String> calls = Collections.synchronizedList(Lists.<String>newArrayList());
+    final CountDownLatch sent = new CountDownLatch(2);
+    Client client = new Client() {
+      @Override
+      public void registerWorldEdits(List<WorldEdit> edits) {
+        calls.add("edits");
+        sent.countDown();
+      }
+
+      @Override
+      public void receiveChunks(List<byte[]> chunks) {
+        calls.add("chunk");
+        sent.countDown();
+      }
+
+      @Override
+      public void chunksFailed(List<ChunkPosition> positions) {
+      }
+    };
+    ChunkInterest interest = new ChunkInterest();
+    interest.register(client);
+    ClientOutbox outbox = new ClientOutbox(client, 1 << 20, 0, null);
+    try {
+      // the chunk is asked for and encoded, and an edit is made before the encoding is queued
+      interest.add(client, Lists.newArrayList(new ChunkPosition(0, 0, 0)));
+      Map<Client, List<WorldEdit>> routed = interest.route(Lists.newArrayList(edit(new ChunkPosition(0, 0, 0))));
+      outbox.sendEdits(routed.get(client));
+      outbox.sendChunk(new byte[10]);
+      assertTrue(sent.await(5, TimeUnit.SECONDS));
+      // the client keeps the edit until the chunk arrives
+      assertEquals(Lists.newArrayList("edits", "chunk"), calls);
+    } finally {
+      outbox.close();
+    }
+  }
+
+  private static WorldEdit edit(ChunkPosition position) {
+    return new WorldEdit(new TilePosition(position, new LocalTilePosition(0, 0, 0)), Tile.ROCK);
+  }
+
+  private static Client client() {
+    return new Client() {
+      @Override
+      public void registerWorldEdits(List<WorldEdit> edits) {
+      }
+
+      @Override
+      public void receiveChunks(List<byte[]> chunks) {
+      }
+
+      @Override
+      public void chunksFailed(List<ChunkPosition> positions) {
+      }
+    };
+  }
+
+}
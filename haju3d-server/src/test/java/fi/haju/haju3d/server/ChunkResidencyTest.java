@@ -0,0 +1,93 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkResidencyTest {
+
+  @Test
+  public void testLeastRecentlyUsedSavedChunksOutOfReachAreEvicted() {
+    final Set<ChunkPosition> unsaved = Sets.newHashSet();
+    final List<ChunkPosition> removed = Lists.newArrayList();
+    ChunkResidency residency = new ChunkResidency(new ChunkResidency.Store() {
+      @Override
+      public boolean isSaved(ChunkPosition position) {
+        return !unsaved.contains(position);
+      }
+
+      @Override
+      public void remove(ChunkPosition position, Chunk chunk) {
+        removed.add(position);
+      }
+    }, 2, 0);
+    try {
+      residency.setReach("client", position(0), 1);
+      residency.add(position(0), chunk(0));
+      residency.add(position(10), chunk(10));
+      residency.add(position(20), chunk(20));
+      residency.add(position(30), chunk(30));
+      residency.add(position(40), chunk(40));
+      residency.touch(position(10));
+      unsaved.add(position(20));
+
+      // 0 is within reach, 20 has unsaved changes and 10 was used last
+      assertEquals(3, residency.evict());
+      assertEquals(Lists.newArrayList(position(30), position(40), position(10)), removed);
+      assertEquals(2, residency.getResidentCount());
+
+      residency.add(position(30), chunk(30));
+      assertEquals(1, residency.getReloads());
+      assertEquals(3, residency.getEvictions());
+    } finally {
+      residency.shutdown();
+    }
+  }
+
+  @Test
+  public void testChunksChangedAfterBeingPickedAreKept() {
+    final List<ChunkPosition> removed = Lists.newArrayList();
+    final AtomicInteger checks = new AtomicInteger();
+    ChunkResidency residency = new ChunkResidency(new ChunkResidency.Store() {
+      @Override
+      public boolean isSaved(ChunkPosition position) {
+        // chunk 0 is edited after it has been picked
+        return !position.equals(position(0)) || checks.incrementAndGet() == 1;
+      }
+
+      @Override
+      public void remove(ChunkPosition position, Chunk chunk) {
+        removed.add(position);
+      }
+    }, 1, 0);
+    try {
+      residency.add(position(0), chunk(0));
+      residency.add(position(10), chunk(10));
+      assertEquals(0, residency.evict());
+      assertEquals(2, residency.getResidentCount());
+
+      assertEquals(1, residency.evict());
+      assertEquals(Lists.newArrayList(position(10)), removed);
+    } finally {
+      residency.shutdown();
+    }
+  }
+
+  private static ChunkPosition position(int x) {
+    return new ChunkPosition(x, 0, 0);
+  }
+
+  private static Chunk chunk(int x) {
+    return new Chunk(4, 0, position(x), Tile.AIR);
+  }
+
+}
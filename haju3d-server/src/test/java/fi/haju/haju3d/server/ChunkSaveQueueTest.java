@@ -0,0 +1,110 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkSaveQueueTest {
+
+  @Test
+  public void testChunksAreCoalescedAndWrittenOnShutdown() throws Exception {
+    RecordingWriter writer = new RecordingWriter(null);
+    ChunkSaveQueue queue = new ChunkSaveQueue(writer, 2, 100, 100, 1, TimeUnit.HOURS, 10);
+    Chunk a = chunk(0);
+    Chunk b = chunk(1);
+    queue.add(a);
+    queue.add(b);
+    queue.add(a);
+    assertSame(a, queue.getPending(a.getPosition()).get());
+    assertEquals(2, queue.getPendingCount());
+    Thread.sleep(50);
+    // not old enough yet
+    assertTrue(writer.written.isEmpty());
+    assertEquals(0, queue.shutdown(10, TimeUnit.SECONDS));
+    assertEquals(2, writer.written.size());
+    assertFalse(queue.getPending(a.getPosition()).isPresent());
+  }
+
+  @Test
+  public void testReachingTheThresholdWritesInRegionBatches() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingWriter writer = new RecordingWriter(release);
+    ChunkSaveQueue queue = new ChunkSaveQueue(writer, 1, 100, 3, 1, TimeUnit.HOURS, 10);
+    queue.add(chunk(0));
+    queue.add(chunk(100));
+    queue.add(chunk(1));
+    release.countDown();
+    // the rest is below the threshold and waits
+    while (queue.getPendingCount() > 1) {
+      Thread.sleep(1);
+    }
+    // the first batch has both chunks of the first region
+    assertEquals(2, writer.batches.get(0).size());
+    assertEquals(0, queue.shutdown(10, TimeUnit.SECONDS));
+    assertEquals(3, writer.written.size());
+  }
+
+  @Test
+  public void testFailedWritesAreRetriedAfterADelay() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    ChunkSaveQueue.Writer failing = new ChunkSaveQueue.Writer() {
+      @Override
+      public void write(List<Chunk> chunks) {
+        attempts.incrementAndGet();
+        throw new RuntimeException("disk full");
+      }
+    };
+    ChunkSaveQueue queue = new ChunkSaveQueue(failing, 2, 100, 1, 1, TimeUnit.HOURS, 10,
+        TimeUnit.MILLISECONDS.toNanos(100));
+    queue.add(chunk(0));
+    assertEquals(1, queue.flush(500, TimeUnit.MILLISECONDS));
+    // written at once, then after 100 ms and 200 ms more, instead of over and over
+    assertTrue("attempts " + attempts.get(), attempts.get() >= 2 && attempts.get() <= 4);
+    assertTrue(queue.getPending(chunk(0).getPosition()).isPresent());
+    // shutting down tries once more without waiting for the delay
+    int before = attempts.get();
+    assertEquals(1, queue.shutdown(10, TimeUnit.SECONDS));
+    assertEquals(before + 1, attempts.get());
+  }
+
+  private static Chunk chunk(int x) {
+    return new Chunk(4, 0, new ChunkPosition(x, 0, 0), Tile.AIR);
+  }
+
+  private static final class RecordingWriter implements ChunkSaveQueue.Writer {
+    private final CountDownLatch release;
+    private final List<Chunk> written = Collections.synchronizedList(Lists.<Chunk>newArrayList());
+    private final List<List<Chunk>> batches = Collections.synchronizedList(Lists.<List<Chunk>>newArrayList());
+
+    public RecordingWriter(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void write(List<Chunk> chunks) {
+      if (release != null) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      batches.add(chunks);
+      written.addAll(chunks);
+    }
+  }
+
+}
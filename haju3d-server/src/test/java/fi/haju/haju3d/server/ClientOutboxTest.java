@@ -0,0 +1,117 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.Client;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClientOutboxTest {
+
+  @Test
+  public void testEditsWithinTheBatchDelayAreMergedInOrder() throws InterruptedException {
+    final List<String> calls = Collections.synchronizedList(Lists.<String>newArrayList());
+    final CountDownLatch sent = new CountDownLatch(4);
+    Client client = new Client() {
+      @Override
+      public void registerWorldEdits(List<WorldEdit> edits) {
+        calls.add(edits.size() + " edits");
+        sent.countDown();
+      }
+
+      @Override
+      public void receiveChunks(List<byte[]> chunks) {
+        calls.add(chunks.size() + " chunks");
+        sent.countDown();
+      }
+
+      @Override
+      public void chunksFailed(List<ChunkPosition> positions) {
+        calls.add(positions.size() + " failed");
+        sent.countDown();
+      }
+    };
+    ClientOutbox outbox = new ClientOutbox(client, 1 << 20, 100, null);
+    try {
+      outbox.sendEdits(edits(2));
+      outbox.sendEdits(edits(3));
+      outbox.sendChunk(new byte[10]);
+      outbox.sendFailed(new ChunkPosition(1, 0, 0));
+      outbox.sendFailed(new ChunkPosition(2, 0, 0));
+      outbox.sendEdits(edits(1));
+      assertTrue(sent.await(5, TimeUnit.SECONDS));
+      assertEquals(Lists.newArrayList("5 edits", "1 chunks", "2 failed", "1 edits"), calls);
+      assertEquals(0, outbox.getQueuedBytes());
+    } finally {
+      outbox.close();
+    }
+  }
+
+  @Test
+  public void testClientIsGivenUpOnWhenTheQueueOverflows() throws InterruptedException {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Client client = new Client() {
+      @Override
+      public void registerWorldEdits(List<WorldEdit> edits) {
+      }
+
+      @Override
+      public void receiveChunks(List<byte[]> chunks) {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      @Override
+      public void chunksFailed(List<ChunkPosition> positions) {
+      }
+    };
+    final AtomicReference<Client> failed = new AtomicReference<>();
+    ClientOutbox outbox = new ClientOutbox(client, 1000, 0, new ClientOutbox.Listener() {
+      @Override
+      public void failed(Client client, String reason) {
+        failed.set(client);
+      }
+    });
+    try {
+      outbox.sendChunk(new byte[100]);
+      assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      // the first one is being sent, ten more fill the queue
+      for (int i = 0; i < 10; i++) {
+        outbox.sendChunk(new byte[100]);
+      }
+      assertEquals(null, failed.get());
+      outbox.sendChunk(new byte[100]);
+      assertEquals(client, failed.get());
+      assertEquals(0, outbox.getQueuedBytes());
+    } finally {
+      release.countDown();
+      outbox.close();
+    }
+  }
+
+  private static List<WorldEdit> edits(int count) {
+    List<WorldEdit> edits = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      edits.add(new WorldEdit(new TilePosition(new ChunkPosition(0, 0, 0), new LocalTilePosition(i, 0, 0)), Tile.ROCK));
+    }
+    return edits;
+  }
+
+}
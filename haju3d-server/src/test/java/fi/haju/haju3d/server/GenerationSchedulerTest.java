@@ -0,0 +1,95 @@
+package fi.haju.haju3d.server;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GenerationSchedulerTest {
+
+  @Test
+  public void testForegroundWorkRunsBeforeBackgroundWork() throws Exception {
+    GenerationScheduler scheduler = new GenerationScheduler(1);
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      List<ChunkPosition> order = Collections.synchronizedList(Lists.<ChunkPosition>newArrayList());
+      Object client = new Object();
+      Object ring = new Object();
+      // occupy the only worker until everything else is queued
+      ListenableFuture<Chunk> blocker = scheduler.schedule(client, pos(0), 0, work(pos(0), order, release));
+      scheduler.scheduleBackground(ring, pos(1), 0, work(pos(1), order, null));
+      ListenableFuture<Chunk> promoted = scheduler.scheduleBackground(ring, pos(2), 5, work(pos(2), order, null));
+      ListenableFuture<Chunk> foreground = scheduler.schedule(client, pos(3), 1, work(pos(3), order, null));
+      assertSame(promoted, scheduler.schedule(client, pos(2), 2, work(pos(2), order, null)));
+      release.countDown();
+      blocker.get();
+      foreground.get();
+      promoted.get();
+      while (scheduler.getQueuedCount() > 0) {
+        Thread.sleep(1);
+      }
+      assertEquals(Lists.newArrayList(pos(0), pos(3), pos(2), pos(1)), order);
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testErrorsFailTheFuture() throws Exception {
+    GenerationScheduler scheduler = new GenerationScheduler(1);
+    try {
+      ListenableFuture<Chunk> failed = scheduler.schedule(new Object(), pos(0), 0, new Callable<Chunk>() {
+        @Override
+        public Chunk call() {
+          throw new StackOverflowError();
+        }
+      });
+      try {
+        failed.get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause().getCause() instanceof StackOverflowError);
+      }
+      // the worker survives
+      assertEquals(pos(1), scheduler.schedule(new Object(), pos(1), 0, work(pos(1), null, null))
+          .get(5, TimeUnit.SECONDS).getPosition());
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  private static ChunkPosition pos(int x) {
+    return new ChunkPosition(x, 0, 0);
+  }
+
+  private static Callable<Chunk> work(final ChunkPosition position, final List<ChunkPosition> order,
+      final CountDownLatch wait) {
+    return new Callable<Chunk>() {
+      @Override
+      public Chunk call() throws Exception {
+        if (wait != null) {
+          wait.await();
+        }
+        if (order != null) {
+          order.add(position);
+        }
+        return new Chunk(1, 0, position, Tile.AIR);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,64 @@
+package fi.haju.haju3d.server.storage;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.LocalTilePosition;
+import fi.haju.haju3d.protocol.coordinate.TilePosition;
+import fi.haju.haju3d.protocol.interaction.WorldEdit;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EditJournalTest {
+
+  @Test
+  public void testEditsAreReadBackUntilCheckpointed() throws Exception {
+    File directory = Files.createTempDir();
+    try {
+      EditJournal journal = new EditJournal(directory);
+      journal.append(Lists.newArrayList(edit(-1, 2, Tile.BRICK), edit(3, 63, Tile.AIR)));
+      journal.append(Lists.newArrayList(edit(5, 0, Tile.WOOD)));
+      long size = journal.getSize();
+      journal.append(Lists.newArrayList(edit(6, 0, Tile.STONE)));
+      journal.close();
+      // a batch torn by a crash
+      File segment = directory.listFiles()[0];
+      RandomAccessFile file = new RandomAccessFile(segment, "rw");
+      file.setLength(size + 10);
+      file.close();
+
+      journal = new EditJournal(directory);
+      List<WorldEdit> edits = journal.readOldSegments();
+      assertEquals(3, edits.size());
+      assertEquals(new ChunkPosition(-1, 0, 0), edits.get(0).getPosition().getChunkPosition());
+      assertEquals(new LocalTilePosition(2, 2, 2), edits.get(0).getPosition().getTileWithinChunk());
+      assertEquals(Tile.BRICK, edits.get(0).getNewTile());
+      assertEquals(new LocalTilePosition(63, 63, 63), edits.get(1).getPosition().getTileWithinChunk());
+      assertEquals(Tile.WOOD, edits.get(2).getNewTile());
+
+      journal.append(Lists.newArrayList(edit(7, 1, Tile.SNOW)));
+      journal.rotate();
+      journal.deleteOldSegments();
+      journal.close();
+      journal = new EditJournal(directory);
+      assertTrue(journal.readOldSegments().isEmpty());
+      journal.close();
+    } finally {
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
+  private static WorldEdit edit(int chunkX, int tile, Tile newTile) {
+    return new WorldEdit(new TilePosition(new ChunkPosition(chunkX, 0, 0), new LocalTilePosition(tile, tile, tile)),
+        newTile);
+  }
+
+}
@@ -0,0 +1,180 @@
+package fi.haju.haju3d.server.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RegionFileTest {
+
+  @Test
+  public void testEntriesSurviveRewritesAndReopening() throws Exception {
+    File file = File.createTempFile("region", null);
+    file.delete();
+    try {
+      byte[] small = randomBytes(100, 1);
+      byte[] large = randomBytes(3 * RegionFile.SECTOR_SIZE + 1, 2);
+      byte[] other = randomBytes(RegionFile.SECTOR_SIZE, 3);
+      int a = RegionFile.getIndex(0, 0, 0);
+      int b = RegionFile.getIndex(15, 15, 15);
+
+      RegionFile region = new RegionFile(file);
+      assertFalse(region.contains(a));
+      region.write(a, small);
+      region.write(b, other);
+      region.write(a, large);
+      region.write(a, small);
+      region.flush();
+      long length = file.length();
+      // the sectors freed by the earlier versions are reused once the header is on disk
+      region.write(a, large);
+      assertEquals(length, file.length());
+      region.close();
+
+      region = new RegionFile(file);
+      assertTrue(region.contains(a));
+      assertArrayEquals(large, region.read(a).get());
+      assertArrayEquals(other, region.read(b).get());
+      region.delete(b);
+      assertFalse(region.read(b).isPresent());
+      region.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testBatchWrites() throws Exception {
+    File file = File.createTempFile("region", null);
+    file.delete();
+    try {
+      Map<Integer, byte[]> entries = new LinkedHashMap<>();
+      for (int i = 0; i < 5; i++) {
+        entries.put(RegionFile.getIndex(i, 0, 0), randomBytes(i * RegionFile.SECTOR_SIZE / 2 + 1, i));
+      }
+      RegionFile region = new RegionFile(file);
+      region.write(RegionFile.getIndex(0, 0, 0), randomBytes(10, 10));
+      region.write(entries);
+      region.close();
+
+      region = new RegionFile(file);
+      for (Map.Entry<Integer, byte[]> entry : entries.entrySet()) {
+        assertArrayEquals(entry.getValue(), region.read(entry.getKey()).get());
+      }
+      region.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testReplacedSectorsAreReusedOnlyAfterFlush() throws Exception {
+    File file = File.createTempFile("region", null);
+    file.delete();
+    try {
+      byte[] old = randomBytes(100, 1);
+      RegionFile region = new RegionFile(file);
+      region.write(0, old);
+      region.write(1, randomBytes(100, 2));
+      region.write(0, randomBytes(100, 3));
+      long length = file.length();
+      // the header written for entry 0 may not be on disk yet, so its old data is kept
+      region.write(2, randomBytes(100, 4));
+      assertEquals(length + RegionFile.SECTOR_SIZE, file.length());
+      RandomAccessFile raw = new RandomAccessFile(file, "r");
+      try {
+        byte[] stored = new byte[old.length];
+        raw.seek((length / RegionFile.SECTOR_SIZE - 2) * RegionFile.SECTOR_SIZE);
+        raw.readFully(stored);
+        assertArrayEquals(old, stored);
+      } finally {
+        raw.close();
+      }
+
+      region.flush();
+      region.write(3, randomBytes(100, 5));
+      assertEquals(length + RegionFile.SECTOR_SIZE, file.length());
+      region.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testConstantEntriesTakeNoSectors() throws Exception {
+    File file = File.createTempFile("region", null);
+    file.delete();
+    try {
+      int a = RegionFile.getIndex(1, 2, 3);
+      int b = RegionFile.getIndex(3, 2, 1);
+      RegionFile region = new RegionFile(file);
+      region.write(a, randomBytes(100, 1));
+      long length = file.length();
+      region.writeConstant(a, 2, 64, -42);
+      region.writeConstant(b, 0, 64, 7);
+      region.flush();
+      // the data of the replaced entry is free again
+      region.write(b, randomBytes(100, 2));
+      region.writeConstant(b, 0, 64, 7);
+      assertEquals(length, file.length());
+      region.close();
+
+      region = new RegionFile(file);
+      assertTrue(region.contains(a));
+      assertFalse(region.read(a).isPresent());
+      RegionFile.Constant constant = region.readConstant(a).get();
+      assertEquals(2, constant.tile);
+      assertEquals(64, constant.size);
+      assertEquals(-42, constant.seed);
+      assertEquals(0, region.readConstant(b).get().tile);
+      region.write(a, randomBytes(100, 3));
+      assertFalse(region.readConstant(a).isPresent());
+      region.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testCompactionMovesEntriesIntoFreeSectors() throws Exception {
+    File file = File.createTempFile("region", null);
+    file.delete();
+    try {
+      RegionFile region = new RegionFile(file);
+      for (int i = 0; i < 10; i++) {
+        region.write(i, randomBytes(2 * RegionFile.SECTOR_SIZE, i));
+      }
+      long length = file.length();
+      for (int i = 0; i < 8; i++) {
+        region.delete(i);
+      }
+      assertEquals(length, file.length());
+      assertEquals(16L * RegionFile.SECTOR_SIZE, region.compact());
+      assertEquals(length - 16L * RegionFile.SECTOR_SIZE, file.length());
+      region.close();
+
+      region = new RegionFile(file);
+      assertEquals(2, region.getEntries().size());
+      assertArrayEquals(randomBytes(2 * RegionFile.SECTOR_SIZE, 8), region.read(8).get());
+      assertArrayEquals(randomBytes(2 * RegionFile.SECTOR_SIZE, 9), region.read(9).get());
+      region.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static byte[] randomBytes(int length, int seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+}
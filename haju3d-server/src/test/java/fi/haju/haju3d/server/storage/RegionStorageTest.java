@@ -0,0 +1,46 @@
+package fi.haju.haju3d.server.storage;
+
+import com.google.common.io.Files;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RegionStorageTest {
+
+  @Test
+  public void testSnapshotsCopyOnlyChangedRegions() throws Exception {
+    File directory = Files.createTempDir();
+    try {
+      RegionStorage storage = new RegionStorage(new File(directory, "world"));
+      ChunkPosition a = new ChunkPosition(0, 0, 0);
+      ChunkPosition b = new ChunkPosition(-20, 3, 40);
+      storage.write(a, new byte[] {1});
+      storage.write(b, new byte[] {2});
+      File first = new File(directory, "first");
+      assertEquals(2, storage.snapshot(first, null));
+
+      storage.write(b, new byte[] {3, 4});
+      File second = new File(directory, "second");
+      assertEquals(1, storage.snapshot(second, first));
+      File third = new File(directory, "third");
+      assertEquals(0, storage.snapshot(third, second));
+      storage.close();
+
+      RegionStorage copy = new RegionStorage(third);
+      assertArrayEquals(new byte[] {1}, copy.read(a).get());
+      assertArrayEquals(new byte[] {3, 4}, copy.read(b).get());
+      copy.close();
+      copy = new RegionStorage(first);
+      assertArrayEquals(new byte[] {2}, copy.read(b).get());
+      copy.close();
+    } finally {
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
+}
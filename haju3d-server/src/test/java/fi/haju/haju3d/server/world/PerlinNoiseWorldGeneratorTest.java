@@ -1,13 +1,20 @@
 package fi.haju.haju3d.server.world;
 
 import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.coordinate.Vector3i;
 import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.ChunkCoordinateSystem;
+import fi.haju.haju3d.protocol.world.Tile;
+import fi.haju.haju3d.server.world.utils.FloodFiller;
+import fi.haju.haju3d.server.world.utils.PerlinNoiseGenerator;
 import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class PerlinNoiseWorldGeneratorTest {
@@ -17,7 +24,9 @@ public class PerlinNoiseWorldGeneratorTest {
 
   @Test
   public void testCompressionRatios() {
-    Chunk chunk = new PerlinNoiseWorldGenerator().generateChunk(new ChunkPosition(0, 0, 0), 64);
+    PerlinNoiseWorldGenerator generator = new PerlinNoiseWorldGenerator();
+    generator.setSeed(42);
+    Chunk chunk = generator.generateChunk(new ChunkPosition(0, 0, 0), 6);
     byte[] data = chunk.getTiles().getData();
 
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -44,4 +53,87 @@ public class PerlinNoiseWorldGeneratorTest {
     // verify at least 10x compression
     assertTrue(LZ_4_COMPRESSOR.compress(baos.toByteArray()).length * 10 < data.length);
   }
+
+  @Test
+  public void testBoundedGenerationMatchesFullEvaluation() {
+    for (int seed : new int[] {-12345, 42, 1001}) {
+      PerlinNoiseWorldGenerator generator = new PerlinNoiseWorldGenerator();
+      generator.setSeed(seed);
+      for (int y = -2; y <= 2; y++) {
+        for (int x = 0; x < 3; x++) {
+          ChunkPosition position = new ChunkPosition(x, y, x - 1);
+          assertSameTiles(seed, position, generateFully(seed, position, 5), generator.generateChunk(position, 5));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMixedChunkAtDefaultSizeIsNotMadeConstant() {
+    int sizeLog2 = ChunkCoordinateSystem.DEFAULT.getChunkSizeLog2();
+    PerlinNoiseWorldGenerator generator = new PerlinNoiseWorldGenerator();
+    generator.setSeed(-12345);
+    ChunkPosition position = new ChunkPosition(2, 0, 0);
+    Chunk chunk = generator.generateChunk(position, sizeLog2);
+    assertSameTiles(-12345, position, generateFully(-12345, position, sizeLog2), chunk);
+  }
+
+  @Test
+  public void testChunkBelowTheSurfaceIsConstantRock() {
+    PerlinNoiseWorldGenerator generator = new PerlinNoiseWorldGenerator();
+    generator.setSeed(42);
+    Chunk chunk = generator.generateChunk(new ChunkPosition(0, -2, 0), ChunkCoordinateSystem.DEFAULT.getChunkSizeLog2());
+    assertNull(chunk.getTiles());
+    assertEquals(Tile.ROCK, chunk.get(1, 2, 3));
+  }
+
+  /**
+   * Evaluates the noise for every tile, the way the generator did before it used noise bounds. A chunk the density
+   * bounds show to be below the surface is constant rock, as in the generator.
+   */
+  static Chunk generateFully(int seed, ChunkPosition position, int sizeLog2) {
+    PerlinNoiseGenerator density = new PerlinNoiseGenerator(7, 3, seed);
+    PerlinNoiseGenerator types = new PerlinNoiseGenerator(2, 3, seed);
+    int size = 1 << sizeLog2;
+    Vector3i corner = new Vector3i(position.x << sizeLog2, position.y << sizeLog2, position.z << sizeLog2);
+    if (corner.y + size - 1 + density.getMaxValue(corner, size) < 64 - 0.01f) {
+      return new Chunk(size, 0, position, Tile.ROCK);
+    }
+    Chunk chunk = new Chunk(size, 0, position);
+    boolean onlyAir = true;
+    for (int x = 0; x < size; x++) {
+      int rx = x + (position.x << sizeLog2);
+      for (int y = 0; y < size; y++) {
+        int ry = y + (position.y << sizeLog2);
+        for (int z = 0; z < size; z++) {
+          int rz = z + (position.z << sizeLog2);
+          if (ry + density.getValueAt(rx, ry, rz) < 64) {
+            chunk.set(x, y, z, types.getValueAt(rx, ry, rz) < 0 ? Tile.GROUND : Tile.ROCK);
+            onlyAir = false;
+          }
+        }
+      }
+    }
+    if (onlyAir) {
+      return new Chunk(size, 0, position, Tile.AIR);
+    }
+    Chunk ground = new Chunk(size, 0, position);
+    new FloodFiller(size).fill(ground, chunk);
+    return ground;
+  }
+
+  static void assertSameTiles(int seed, ChunkPosition position, Chunk expected, Chunk actual) {
+    int size = expected.getSize();
+    for (int x = 0; x < size; x++) {
+      for (int y = 0; y < size; y++) {
+        for (int z = 0; z < size; z++) {
+          if (expected.get(x, y, z) != actual.get(x, y, z)) {
+            assertEquals("seed " + seed + ", chunk " + position + ", tile " + x + "," + y + "," + z,
+                expected.get(x, y, z), actual.get(x, y, z));
+          }
+        }
+      }
+    }
+  }
+
 }
@@ -0,0 +1,114 @@
+package fi.haju.haju3d.server.world.pipeline;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.Tile;
+import fi.haju.haju3d.server.world.PerlinNoiseWorldGenerator;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class GenerationPipelineTest {
+
+  @Test
+  public void testStagesRunInPhaseOrderAndSkipConstantChunks() {
+    final List<String> runs = Lists.newArrayList();
+    GenerationPipeline pipeline = new GenerationPipeline();
+    pipeline.addStage(GenerationPhase.DECORATION, new RecordingStage("decoration", true, runs) {
+      @Override
+      public void apply(GenerationContext context) {
+        super.apply(context);
+        if (!context.isConstant()) {
+          context.getTiles()[context.getIndex(1, 2, 3)] = (byte) Tile.WOOD.ordinal();
+        }
+      }
+    });
+    pipeline.addStage(GenerationPhase.CARVING, new RecordingStage("carving", false, runs));
+    pipeline.addStage(GenerationPhase.DENSITY, new RecordingStage("density", false, runs) {
+      @Override
+      public void apply(GenerationContext context) {
+        super.apply(context);
+        if (context.getPosition().y > 0) {
+          context.setConstant(Tile.AIR);
+        }
+      }
+    });
+
+    Chunk mixed = pipeline.generate(new ChunkPosition(0, 0, 0), 3, 7);
+    assertEquals(Lists.newArrayList("density", "carving", "decoration"), runs);
+    assertEquals(Tile.WOOD, mixed.get(1, 2, 3));
+    assertEquals(Tile.AIR, mixed.get(3, 2, 1));
+
+    runs.clear();
+    Chunk constant = pipeline.generate(new ChunkPosition(0, 1, 0), 3, 7);
+    assertEquals(Lists.newArrayList("density", "decoration"), runs);
+    assertNull(constant.getTiles());
+    assertEquals(Tile.AIR, constant.get(1, 2, 3));
+  }
+
+  /**
+   * Checksums of the tiles the generator made by evaluating every tile before it was split into stages, for chunks
+   * of the default size that it did not make constant.
+   */
+  @Test
+  public void testGeneratorMatchesThePerTileGenerator() {
+    assertChecksums(42, new ChunkPosition[] {
+        new ChunkPosition(0, 0, 0), new ChunkPosition(2, 0, 0), new ChunkPosition(1, -1, 0),
+        new ChunkPosition(-1, 1, 2)
+    }, new long[] {0x8cc10cddL, 0x28afad35L, 0x07030342L, 0x4cb7410eL});
+    assertChecksums(-12345, new ChunkPosition[] {
+        new ChunkPosition(0, 0, 0), new ChunkPosition(2, 0, 0), new ChunkPosition(1, -1, 0),
+        new ChunkPosition(-1, 1, 2), new ChunkPosition(0, 1, 0)
+    }, new long[] {0x23f9b461L, 0xcdc4da9dL, 0x04a903c1L, 0xf6910e41L, 0x33ab56c4L});
+  }
+
+  private static void assertChecksums(int seed, ChunkPosition[] positions, long[] checksums) {
+    PerlinNoiseWorldGenerator generator = new PerlinNoiseWorldGenerator();
+    generator.setSeed(seed);
+    for (int i = 0; i < positions.length; i++) {
+      Chunk chunk = generator.generateChunk(positions[i], 6);
+      CRC32 crc = new CRC32();
+      for (int x = 0; x < chunk.getSize(); x++) {
+        for (int y = 0; y < chunk.getSize(); y++) {
+          for (int z = 0; z < chunk.getSize(); z++) {
+            crc.update(chunk.get(x, y, z).ordinal());
+          }
+        }
+      }
+      assertEquals("seed " + seed + ", chunk " + positions[i], checksums[i], crc.getValue());
+    }
+  }
+
+  private static class RecordingStage implements GenerationStage {
+    private final String name;
+    private final boolean appliesToConstantChunks;
+    private final List<String> runs;
+
+    public RecordingStage(String name, boolean appliesToConstantChunks, List<String> runs) {
+      this.name = name;
+      this.appliesToConstantChunks = appliesToConstantChunks;
+      this.runs = runs;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean appliesToConstantChunks() {
+      return appliesToConstantChunks;
+    }
+
+    @Override
+    public void apply(GenerationContext context) {
+      runs.add(name);
+    }
+  }
+
+}
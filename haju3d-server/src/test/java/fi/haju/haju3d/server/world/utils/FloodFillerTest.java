@@ -0,0 +1,40 @@
+package fi.haju.haju3d.server.world.utils;
+
+import fi.haju.haju3d.protocol.coordinate.ChunkPosition;
+import fi.haju.haju3d.protocol.world.Chunk;
+import fi.haju.haju3d.protocol.world.Tile;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FloodFillerTest {
+
+  @Test
+  public void testKeepsOnlyTilesConnectedToEdges() {
+    int size = 8;
+    Chunk orig = new Chunk(size, 0, new ChunkPosition(0, 0, 0));
+    // floor along the bottom edge with a pillar on top of it
+    for (int x = 0; x < size; x++) {
+      for (int z = 0; z < size; z++) {
+        orig.set(x, 0, z, Tile.GROUND);
+      }
+    }
+    orig.set(2, 1, 2, Tile.ROCK);
+    orig.set(2, 2, 2, Tile.ROCK);
+    // floating block in the middle
+    orig.set(4, 4, 4, Tile.ROCK);
+    orig.set(4, 5, 4, Tile.ROCK);
+
+    FloodFiller filler = new FloodFiller(size);
+    // the same filler is reused to check that no state leaks between fills
+    for (int i = 0; i < 2; i++) {
+      Chunk ground = new Chunk(size, 0, orig.getPosition());
+      filler.fill(ground, orig);
+      assertEquals(Tile.GROUND, ground.get(5, 0, 7));
+      assertEquals(Tile.ROCK, ground.get(2, 2, 2));
+      assertEquals(Tile.AIR, ground.get(4, 4, 4));
+      assertEquals(Tile.AIR, ground.get(4, 5, 4));
+    }
+  }
+
+}
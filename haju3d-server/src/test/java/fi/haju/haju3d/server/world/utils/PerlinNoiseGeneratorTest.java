@@ -0,0 +1,118 @@
+package fi.haju.haju3d.server.world.utils;
+
+import com.google.common.collect.Lists;
+import fi.haju.haju3d.protocol.world.FloatArray3d;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PerlinNoiseGeneratorTest {
+
+  @Test
+  public void testBatchValuesMatchPointValues() {
+    PerlinNoiseGenerator generator = new PerlinNoiseGenerator(7, 3, 1234);
+    assertBatchMatches(generator, 0, 0, 0, 16, 16, 16);
+    assertBatchMatches(generator, -70, -3, -129, 13, 21, 35);
+    assertBatchMatches(generator, 1021, -515, 77, 40, 9, 64);
+  }
+
+  @Test
+  public void testCacheCountersMoveWithLookups() {
+    PerlinNoiseGenerator generator = new PerlinNoiseGenerator(7, 3, 1234);
+    assertEquals(0, generator.getCacheSize());
+    assertEquals(0.0f, generator.getCacheHitRate(), 0.0f);
+    FloatArray3d values = new FloatArray3d(16, 16, 16);
+    generator.getValues(values, 0, 0, 0);
+    generator.getValues(values, 5000, 0, 5000);
+    int size = generator.getCacheSize();
+    float firstRate = generator.getCacheHitRate();
+    assertTrue(size > 0);
+    // alternate between two far apart boxes, so that the lattice blocks are fetched from the cache again
+    for (int i = 0; i < 10; i++) {
+      generator.getValues(values, 0, 0, 0);
+      generator.getValues(values, 5000, 0, 5000);
+    }
+    // the same blocks again, so nothing new is cached and the lookups hit
+    assertEquals(size, generator.getCacheSize());
+    assertTrue(generator.getCacheHitRate() > firstRate);
+  }
+
+  @Test
+  public void testConcurrentValuesMatchSingleThreadedValues() throws Exception {
+    final int size = 24;
+    final int[][] corners = new int[32][];
+    Random random = new Random(99);
+    for (int i = 0; i < corners.length; i++) {
+      // far apart, so that the lattice caches evict blocks while the threads use them
+      corners[i] = new int[] {random.nextInt(20000) - 10000, random.nextInt(2000) - 1000, random.nextInt(20000) - 10000};
+    }
+    PerlinNoiseGenerator reference = new PerlinNoiseGenerator(7, 3, 1234);
+    float[][] expected = new float[corners.length][];
+    for (int i = 0; i < corners.length; i++) {
+      FloatArray3d values = new FloatArray3d(size, size, size);
+      reference.getValues(values, corners[i][0], corners[i][1], corners[i][2]);
+      expected[i] = values.getData();
+    }
+
+    final PerlinNoiseGenerator shared = new PerlinNoiseGenerator(7, 3, 1234);
+    ExecutorService threads = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<float[]>> futures = Lists.newArrayList();
+      List<Integer> order = Lists.newArrayList();
+      for (int round = 0; round < 4; round++) {
+        for (int i = 0; i < corners.length; i++) {
+          final int index = (i * 7 + round * 5) % corners.length;
+          final boolean batch = (i + round) % 2 == 0;
+          order.add(index);
+          futures.add(threads.submit(new Callable<float[]>() {
+            @Override
+            public float[] call() {
+              int[] corner = corners[index];
+              FloatArray3d values = new FloatArray3d(size, size, size);
+              if (batch) {
+                shared.getValues(values, corner[0], corner[1], corner[2]);
+              } else {
+                for (int x = 0; x < size; x++) {
+                  for (int y = 0; y < size; y++) {
+                    for (int z = 0; z < size; z++) {
+                      values.set(x, y, z, shared.getValueAt(corner[0] + x, corner[1] + y, corner[2] + z));
+                    }
+                  }
+                }
+              }
+              return values.getData();
+            }
+          }));
+        }
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        assertArrayEquals(expected[order.get(i)], futures.get(i).get(), 0.0f);
+      }
+    } finally {
+      threads.shutdownNow();
+    }
+  }
+
+  private static void assertBatchMatches(PerlinNoiseGenerator generator, int x0, int y0, int z0, int w, int h, int d) {
+    FloatArray3d values = new FloatArray3d(w, h, d);
+    generator.getValues(values, x0, y0, z0);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        for (int z = 0; z < d; z++) {
+          // exact match: the batch path must produce bit-identical terrain
+          assertEquals(generator.getValueAt(x0 + x, y0 + y, z0 + z), values.get(x, y, z), 0.0f);
+        }
+      }
+    }
+  }
+
+}